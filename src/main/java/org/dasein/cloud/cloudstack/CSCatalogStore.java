@@ -0,0 +1,404 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+
+/**
+ * Keeps the raw responses of slow-changing catalog commands (accounts, offerings, hypervisors, OS types) in a file
+ * per endpoint and account, so that a freshly started JVM can answer them without calling the management server.
+ * The store is off unless the <code>catalogCacheDir</code> custom property names a writable directory.
+ * <p>Stored responses are served immediately. Once older than <code>catalogCacheTtlMinutes</code> (60 by default)
+ * they are revalidated in the background, and only responses older than <code>catalogCacheMaxAgeHours</code>
+ * (168 by default) are reloaded before they are used. Every store waits a random delay of up to five minutes
+ * after it is read from disk before it revalidates anything, so that workers restarted together do not all call the
+ * server at once; before fetching, a revalidation re-reads the file and adopts a response another worker sharing the
+ * directory has already refreshed.</p>
+ * <p>Credentials contained in a response (the <code>secretkey</code> of <code>listAccounts</code>) are removed
+ * before anything is written, and the file is made readable by its owner only.</p>
+ */
+public class CSCatalogStore {
+    static private final Logger logger = CSCloud.getLogger(CSCatalogStore.class, "std");
+
+    static private final int     MAGIC           = 0x43534353;
+    /**
+     * The layout of the file; files of any other format are ignored and rewritten.
+     */
+    static private final int     FORMAT_VERSION  = 1;
+    static private final long    DEFAULT_TTL     = TimeUnit.MINUTES.toMillis(60);
+    static private final long    DEFAULT_MAX_AGE = TimeUnit.HOURS.toMillis(168);
+    static private final long    STARTUP_JITTER  = TimeUnit.MINUTES.toMillis(5);
+    static private final Pattern SECRET_XML      = Pattern.compile("(?is)<secretkey>.*?</secretkey>");
+    static private final Pattern SECRET_JSON     = Pattern.compile("(?is)\"secretkey\"\\s*:\\s*\"(?:[^\"\\\\]|\\\\.)*\"");
+    static private final Random  random          = new Random();
+
+    static private class Entry {
+        final String body;
+        final long   savedAt;
+
+        Entry(@Nonnull String body, long savedAt) {
+            this.body = body;
+            this.savedAt = savedAt;
+        }
+    }
+
+    static private class Snapshot {
+        long              generation;
+        Map<String,Entry> entries = new HashMap<String,Entry>();
+    }
+
+    static private final ConcurrentHashMap<String,CSCatalogStore> stores = new ConcurrentHashMap<String,CSCatalogStore>();
+
+    /**
+     * Provides the store for the account of the provider's current context.
+     * @param provider the provider asking
+     * @return the store, or <code>null</code> if no <code>catalogCacheDir</code> is configured
+     * @throws CloudException the provider has no context or no credentials
+     * @throws InternalException the request signer could not be set up
+     */
+    static public @Nullable CSCatalogStore getInstance(@Nonnull CSCloud provider) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        Properties p = ctx.getCustomProperties();
+        String dir = (p == null ? null : p.getProperty("catalogCacheDir"));
+
+        if( dir == null || dir.trim().length() < 1 ) {
+            return null;
+        }
+        File file = new File(dir.trim(), toFileName(ctx.getCloud().getEndpoint() + "#" + provider.getSigner().getApiKey()));
+        String key = file.getAbsolutePath();
+        CSCatalogStore store = stores.get(key);
+
+        if( store == null ) {
+            CSCatalogStore created = new CSCatalogStore(file, getMillis(p, "catalogCacheTtlMinutes", TimeUnit.MINUTES, DEFAULT_TTL), getMillis(p, "catalogCacheMaxAgeHours", TimeUnit.HOURS, DEFAULT_MAX_AGE));
+
+            store = stores.putIfAbsent(key, created);
+            if( store == null ) {
+                store = created;
+            }
+        }
+        return store;
+    }
+
+    static private long getMillis(@Nullable Properties p, @Nonnull String name, @Nonnull TimeUnit unit, long defaultValue) {
+        String value = (p == null ? null : p.getProperty(name));
+
+        if( value != null && value.trim().length() > 0 ) {
+            try {
+                return unit.toMillis(Long.parseLong(value.trim()));
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Ignoring invalid value for " + name + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * The API key is part of what identifies the account, but it has no business showing up in a directory listing.
+     */
+    static private @Nonnull String toFileName(@Nonnull String account) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder str = new StringBuilder("catalog-");
+
+            for( byte b : digest.digest(account.getBytes("utf-8")) ) {
+                str.append(String.format("%02x", b & 0xff));
+            }
+            return str.append(".bin").toString();
+        }
+        catch( NoSuchAlgorithmException e ) {
+            throw new RuntimeException("This cannot happen: " + e.getMessage(), e);
+        }
+        catch( IOException e ) {
+            throw new RuntimeException("This cannot happen: " + e.getMessage(), e);
+        }
+    }
+
+    private final File              file;
+    private final long              ttl;
+    private final long              maxAge;
+    private final long              revalidateAfter;
+    private final Set<String>       revalidating = Collections.synchronizedSet(new HashSet<String>());
+    private Map<String,Entry>       entries;
+    private long                    generation;
+
+    private CSCatalogStore(@Nonnull File file, long ttl, long maxAge) {
+        this.file = file;
+        this.ttl = ttl;
+        this.maxAge = maxAge;
+        Snapshot snapshot = read();
+
+        this.entries = snapshot.entries;
+        this.generation = snapshot.generation;
+        this.revalidateAfter = System.currentTimeMillis() + (long)(random.nextDouble() * STARTUP_JITTER);
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Loaded " + entries.size() + " catalog responses from " + file);
+        }
+    }
+
+    /**
+     * Provides the stored response for the key, loading and storing it if there is none or it is too old to be
+     * served. A response past the TTL is returned as is and refreshed in the background.
+     * @param key the command and parameters the response belongs to
+     * @param provider the provider whose executor runs background revalidation
+     * @param loader fetches the response from the server
+     * @return the response body, or <code>null</code> if the server returned none
+     * @throws CloudException an error occurred with the cloud provider while loading the response
+     * @throws InternalException an error occurred locally while loading the response
+     */
+    public @Nullable String get(@Nonnull String key, @Nonnull CSCloud provider, @Nonnull Callable<String> loader) throws CloudException, InternalException {
+        long now = System.currentTimeMillis();
+        Entry entry;
+
+        synchronized( this ) {
+            entry = entries.get(key);
+        }
+        if( entry != null && now - entry.savedAt < maxAge ) {
+            if( now - entry.savedAt > ttl && now > revalidateAfter ) {
+                revalidate(key, provider, loader);
+            }
+            return entry.body;
+        }
+        return load(key, loader);
+    }
+
+    private @Nullable String load(@Nonnull String key, @Nonnull Callable<String> loader) throws CloudException, InternalException {
+        String body;
+
+        try {
+            body = loader.call();
+        }
+        catch( CloudException e ) {
+            throw e;
+        }
+        catch( InternalException e ) {
+            throw e;
+        }
+        catch( Exception e ) {
+            throw new InternalException(e);
+        }
+        if( body != null ) {
+            put(key, body);
+        }
+        return body;
+    }
+
+    private void revalidate(@Nonnull final String key, @Nonnull final CSCloud provider, @Nonnull final Callable<String> loader) {
+        if( !revalidating.add(key) ) {
+            return;
+        }
+        provider.hold();
+        try {
+            provider.getExecutor().execute(new Runnable() {
+                public void run() {
+                    try {
+                        if( !adopt(key) ) {
+                            load(key, loader);
+                        }
+                    }
+                    catch( Throwable t ) {
+                        logger.warn("Unable to revalidate " + key + ", keeping the stored response: " + t.getMessage());
+                    }
+                    finally {
+                        revalidating.remove(key);
+                        provider.release();
+                    }
+                }
+            });
+        }
+        catch( RejectedExecutionException e ) {
+            revalidating.remove(key);
+            provider.release();
+        }
+    }
+
+    /**
+     * Picks up responses written by other processes since this one last read the file.
+     * @return true if the response for the key is now fresh
+     */
+    private boolean adopt(@Nonnull String key) {
+        Snapshot snapshot = read();
+
+        synchronized( this ) {
+            if( snapshot.generation > generation ) {
+                merge(snapshot.entries);
+                generation = snapshot.generation;
+            }
+            Entry entry = entries.get(key);
+
+            return (entry != null && System.currentTimeMillis() - entry.savedAt < ttl);
+        }
+    }
+
+    private synchronized void put(@Nonnull String key, @Nonnull String body) {
+        entries.put(key, new Entry(scrub(body), System.currentTimeMillis()));
+        // merge with what other processes wrote in the meantime rather than overwrite it
+        Snapshot snapshot = read();
+
+        merge(snapshot.entries);
+        generation = Math.max(generation, snapshot.generation) + 1;
+        write();
+    }
+
+    private void merge(@Nonnull Map<String,Entry> other) {
+        for( Map.Entry<String,Entry> e : other.entrySet() ) {
+            Entry mine = entries.get(e.getKey());
+
+            if( mine == null || mine.savedAt < e.getValue().savedAt ) {
+                entries.put(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private @Nonnull String scrub(@Nonnull String body) {
+        body = SECRET_XML.matcher(body).replaceAll("");
+        return SECRET_JSON.matcher(body).replaceAll("\"secretkey\":\"\"");
+    }
+
+    private @Nonnull Snapshot read() {
+        Snapshot snapshot = new Snapshot();
+
+        if( !file.exists() ) {
+            return snapshot;
+        }
+        DataInputStream input = null;
+
+        try {
+            input = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+            if( input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION ) {
+                logger.info("Ignoring catalog cache " + file + " written in an unknown format");
+                return snapshot;
+            }
+            long generation = input.readLong();
+            int count = input.readInt();
+            Map<String,Entry> entries = new HashMap<String,Entry>();
+
+            for( int i=0; i<count; i++ ) {
+                String key = input.readUTF();
+                long savedAt = input.readLong();
+                byte[] body = new byte[input.readInt()];
+
+                input.readFully(body);
+                entries.put(key, new Entry(new String(body, "utf-8"), savedAt));
+            }
+            snapshot.generation = generation;
+            snapshot.entries = entries;
+        }
+        catch( FileNotFoundException ignore ) {
+            // removed since we checked
+        }
+        catch( IOException e ) {
+            logger.warn("Ignoring unreadable catalog cache " + file + ": " + e.getMessage());
+        }
+        finally {
+            if( input != null ) {
+                try { input.close(); }
+                catch( IOException ignore ) { }
+            }
+        }
+        return snapshot;
+    }
+
+    private void write() {
+        File dir = file.getAbsoluteFile().getParentFile();
+
+        if( dir != null && !dir.exists() && !dir.mkdirs() ) {
+            logger.warn("Unable to create catalog cache directory " + dir);
+            return;
+        }
+        File tmp = new File(dir, file.getName() + "." + Long.toHexString(random.nextLong()) + ".tmp");
+        DataOutputStream output = null;
+
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+
+            tmp.setReadable(false, false);
+            tmp.setReadable(true, true);
+            tmp.setWritable(false, false);
+            tmp.setWritable(true, true);
+            output = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(fos)));
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeLong(generation);
+            output.writeInt(entries.size());
+            for( Map.Entry<String,Entry> e : entries.entrySet() ) {
+                byte[] body = e.getValue().body.getBytes("utf-8");
+
+                output.writeUTF(e.getKey());
+                output.writeLong(e.getValue().savedAt);
+                output.writeInt(body.length);
+                output.write(body);
+            }
+            output.close();
+            output = null;
+            // readers only ever see a complete file
+            if( !tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)) ) {
+                logger.warn("Unable to replace catalog cache " + file);
+            }
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to write catalog cache " + file + ": " + e.getMessage());
+        }
+        finally {
+            if( output != null ) {
+                try { output.close(); }
+                catch( IOException ignore ) { }
+            }
+            if( tmp.exists() && !tmp.delete() ) {
+                tmp.deleteOnExit();
+            }
+        }
+    }
+}
@@ -24,10 +24,38 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
 import org.apache.log4j.Logger;
 import org.dasein.cloud.AbstractCloud;
 import org.dasein.cloud.CloudException;
@@ -173,6 +201,234 @@ public class CSCloud extends AbstractCloud {
         return serviceProvider;
     }
 
+    static private final int  DEFAULT_MAX_CONNECTIONS           = 50;
+    static private final int  DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    static private final long IDLE_CONNECTION_TIMEOUT           = 30000L;
+
+    private transient PoolingClientConnectionManager connectionManager;
+    private transient DefaultHttpClient              httpClient;
+    private transient volatile long                  lastIdleCheck;
+
+    /**
+     * Provides the HTTP client shared by all API calls made through this provider instance. The client sits on top
+     * of a pooled, thread-safe connection manager so that TCP and TLS sessions are reused between calls instead of
+     * being set up for every request. Pool sizes may be tuned through the <code>maxConnections</code> and
+     * <code>maxConnectionsPerRoute</code> custom properties; <code>proxyHost</code>/<code>proxyPort</code> are honoured
+     * as before.
+     * @return the shared HTTP client
+     * @throws InternalException no context has been set for this provider
+     */
+    synchronized @Nonnull HttpClient getHttpClient() throws InternalException {
+        ProviderContext ctx = getContext();
+
+        if( ctx == null ) {
+            throw new InternalException("No context was specified for this request");
+        }
+        if( httpClient == null ) {
+            Properties p = ctx.getCustomProperties();
+            PoolingClientConnectionManager manager = new PoolingClientConnectionManager();
+
+            manager.setMaxTotal(getIntProperty(p, "maxConnections", DEFAULT_MAX_CONNECTIONS));
+            manager.setDefaultMaxPerRoute(getIntProperty(p, "maxConnectionsPerRoute", DEFAULT_MAX_CONNECTIONS_PER_ROUTE));
+
+            HttpParams params = new BasicHttpParams();
+
+            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+            //noinspection deprecation
+            HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+            HttpProtocolParams.setUserAgent(params, "Dasein Cloud");
+            if( p != null ) {
+                String proxyHost = p.getProperty("proxyHost");
+                String proxyPort = p.getProperty("proxyPort");
+
+                if( proxyHost != null ) {
+                    String endpoint = ctx.getCloud().getEndpoint();
+                    boolean ssl = (endpoint != null && endpoint.startsWith("https"));
+                    int port = 0;
+
+                    if( proxyPort != null && proxyPort.length() > 0 ) {
+                        port = Integer.parseInt(proxyPort);
+                    }
+                    params.setParameter(ConnRoutePNames.DEFAULT_PROXY, new HttpHost(proxyHost, port, ssl ? "https" : "http"));
+                }
+            }
+            DefaultHttpClient client = new DefaultHttpClient(manager, params);
+
+            client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+                @Override
+                public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                    long duration = super.getKeepAliveDuration(response, context);
+
+                    // servers that don't advertise a keep-alive timeout get reused only while we consider them fresh
+                    return (duration > 0L ? Math.min(duration, IDLE_CONNECTION_TIMEOUT) : IDLE_CONNECTION_TIMEOUT);
+                }
+            });
+            connectionManager = manager;
+            httpClient = client;
+            lastIdleCheck = System.currentTimeMillis();
+        }
+        else if( System.currentTimeMillis() - lastIdleCheck > IDLE_CONNECTION_TIMEOUT ) {
+            lastIdleCheck = System.currentTimeMillis();
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        return httpClient;
+    }
+
+    /**
+     * Indicates whether API responses should be requested as JSON rather than CloudStack's default XML. Enabled by
+     * setting the <code>responseFormat</code> custom property to <code>json</code>.
+     * @return true if requests should carry <code>response=json</code>
+     */
+    public boolean isJsonResponseFormat() {
+        ProviderContext ctx = getContext();
+        Properties p = (ctx == null ? null : ctx.getCustomProperties());
+
+        return (p != null && "json".equalsIgnoreCase(p.getProperty("responseFormat", "xml").trim()));
+    }
+
+    static private final int DEFAULT_ASYNC_THREADS    = 10;
+    static private final int DEFAULT_PAGE_PARALLELISM = 4;
+
+    private transient ThreadPoolExecutor executor;
+
+    /**
+     * Provides the bounded pool used to run API calls off the caller's thread (see
+     * {@link CSMethod#getAsync(String, Param...)}). The pool size may be tuned through the <code>asyncThreads</code>
+     * custom property; idle threads time out and all threads are daemons, so an unused pool costs nothing.
+     * @return the executor for asynchronous work on behalf of this provider
+     */
+    public synchronized @Nonnull ExecutorService getExecutor() {
+        if( executor == null ) {
+            ProviderContext ctx = getContext();
+            int threads = getIntProperty((ctx == null ? null : ctx.getCustomProperties()), "asyncThreads", DEFAULT_ASYNC_THREADS);
+            final String prefix = "CloudStack-" + getCloudName() + "-";
+            ThreadFactory factory = new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(@Nonnull Runnable r) {
+                    Thread t = new Thread(r, prefix + count.incrementAndGet());
+
+                    t.setDaemon(true);
+                    return t;
+                }
+            };
+
+            executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * @return the number of list pages {@link CSPager} fetches at once, tunable through the
+     * <code>pageParallelism</code> custom property
+     */
+    public int getPageParallelism() {
+        ProviderContext ctx = getContext();
+
+        return getIntProperty((ctx == null ? null : ctx.getCustomProperties()), "pageParallelism", DEFAULT_PAGE_PARALLELISM);
+    }
+
+    static private final class SignerBinding {
+        final ProviderContext context;
+        final CSSigner        signer;
+
+        SignerBinding(@Nonnull ProviderContext context, @Nonnull CSSigner signer) {
+            this.context = context;
+            this.signer = signer;
+        }
+    }
+
+    private transient final ConcurrentHashMap<String,CSSigner> signers = new ConcurrentHashMap<String,CSSigner>();
+    private transient volatile SignerBinding signerBinding;
+
+    /**
+     * Provides the request signer for the credentials of the current context. Signers are cached by API key, so
+     * switching between contexts for the same account reuses the same key material and HMAC engines.
+     * @return the signer for the current credentials
+     * @throws CloudException no context has been set or it carries no API key pair
+     * @throws InternalException the signer could not be set up for the key pair
+     */
+    @Nonnull CSSigner getSigner() throws CloudException, InternalException {
+        ProviderContext ctx = getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        SignerBinding binding = signerBinding;
+
+        if( binding != null && binding.context == ctx ) {
+            return binding.signer;
+        }
+        String apiKey = "", secret = "";
+
+        try {
+            for( ContextRequirements.Field f : getContextRequirements().getConfigurableValues() ) {
+                if( f.type.equals(ContextRequirements.FieldType.KEYPAIR) ) {
+                    byte[][] keyPair = ( byte[][] ) ctx.getConfigurationValue(f);
+
+                    if( keyPair != null ) {
+                        apiKey = new String(keyPair[0], "utf-8");
+                        secret = new String(keyPair[1], "utf-8");
+                    }
+                }
+            }
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new RuntimeException("This cannot happen: " + e.getMessage(), e);
+        }
+        if( apiKey.trim().length() < 1 || secret.trim().length() < 1 ) {
+            throw new CloudException("No API key pair was set for this request");
+        }
+        CSSigner signer = signers.get(apiKey);
+
+        if( signer == null || !signer.matches(secret) ) {
+            signer = new CSSigner(apiKey, secret);
+            signers.put(apiKey, signer);
+        }
+        signerBinding = new SignerBinding(ctx, signer);
+        return signer;
+    }
+
+    static private int getIntProperty(@Nullable Properties p, @Nonnull String name, int defaultValue) {
+        String value = (p == null ? null : p.getProperty(name));
+
+        if( value != null && value.trim().length() > 0 ) {
+            try {
+                return Integer.parseInt(value.trim());
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Ignoring invalid value for " + name + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    @Override
+    public void close() {
+        try {
+            synchronized( this ) {
+                if( connectionManager != null ) {
+                    connectionManager.shutdown();
+                }
+                connectionManager = null;
+                httpClient = null;
+                if( executor != null ) {
+                    executor.shutdown();
+                }
+                executor = null;
+                if( jobTracker != null ) {
+                    jobTracker.shutdown();
+                }
+                jobTracker = null;
+            }
+        }
+        finally {
+            super.close();
+        }
+    }
+
     private transient String versionString;
 
     public @Nonnull String getVersionString() throws CloudException {
@@ -180,13 +436,7 @@ public class CSCloud extends AbstractCloud {
         if( versionString == null ) {
             //run list zone query to check whether this might be v4
             try {
-                CSMethod method = new CSMethod(this);
-                Document doc = method.get("listZones", new Param("available", "true"));
-                NodeList meta = doc.getElementsByTagName("listzonesresponse");
-                for (int item = 0; item<meta.getLength(); item++) {
-                    Node node = meta.item(item);
-                    versionString = node.getAttributes().getNamedItem("cloud-stack-version").getNodeValue();
-                }
+                versionString = getZoneCatalog().getVersion();
             }
             catch (Throwable e) {
                 throw new CloudException("Unable to get CloudStack version for "+getCloudName(), e);
@@ -211,21 +461,16 @@ public class CSCloud extends AbstractCloud {
             if (properties == null || properties.getProperty("apiVersion") == null || properties.getProperty("apiVersion").equals("")) {
                //run list zone query to check whether this might be v4
                 try {
-                    CSMethod method = new CSMethod(this);
-                    Document doc = method.get("listZones", new Param("available", "true"));
-                    NodeList meta = doc.getElementsByTagName("listzonesresponse");
-                    for (int item = 0; item<meta.getLength(); item++) {
-                        Node node = meta.item(item);
-                        String v = node.getAttributes().getNamedItem("cloud-stack-version").getNodeValue();
-                        if (v.startsWith("4")) {
-                            if (properties == null) {
-                                properties = new Properties();
-                            }
-                            properties.setProperty("apiVersion", "CS4");
-                            logger.info("Version property not found so setting based on result of query: "+v);
-                            version = CSVersion.CS4;
-                            return version;
+                    String v = getZoneCatalog().getVersion();
+
+                    if (v != null && v.startsWith("4")) {
+                        if (properties == null) {
+                            properties = new Properties();
                         }
+                        properties.setProperty("apiVersion", "CS4");
+                        logger.info("Version property not found so setting based on result of query: "+v);
+                        version = CSVersion.CS4;
+                        return version;
                     }
                 }
                 catch (Throwable ignore) {}
@@ -245,6 +490,48 @@ public class CSCloud extends AbstractCloud {
         return version;
     }
 
+    private transient final ConcurrentHashMap<String,CSInventory> inventories = new ConcurrentHashMap<String,CSInventory>();
+
+    /**
+     * Provides the resource index for the region of the current context. Indexing is off unless the
+     * <code>inventoryMaxStalenessSeconds</code> custom property is set; lookups answered from the index may then be
+     * that much out of date with respect to changes made outside this provider.
+     * @return the inventory of the current region, or <code>null</code> if indexing is not enabled
+     * @throws CloudException the inventory could not be set up
+     */
+    public @Nullable CSInventory getInventory() throws CloudException {
+        ProviderContext ctx = getContext();
+
+        if( ctx == null || ctx.getRegionId() == null ) {
+            return null;
+        }
+        int staleness = getIntProperty(ctx.getCustomProperties(), "inventoryMaxStalenessSeconds", -1);
+
+        if( staleness < 0 ) {
+            return null;
+        }
+        CSInventory inventory = inventories.get(ctx.getRegionId());
+
+        if( inventory == null ) {
+            CSInventory created = new CSInventory(this, TimeUnit.SECONDS.toMillis(staleness));
+
+            inventory = inventories.putIfAbsent(ctx.getRegionId(), created);
+            if( inventory == null ) {
+                inventory = created;
+            }
+        }
+        return inventory;
+    }
+
+    /**
+     * @return the zones of the current account, shared with every other provider instance for the same account
+     * @throws CloudException the zones could not be listed
+     * @throws InternalException an error occurred locally while listing the zones
+     */
+    public @Nonnull CSZoneCatalog getZoneCatalog() throws CloudException, InternalException {
+        return CSZoneCatalog.getInstance(this);
+    }
+
     private boolean isSubscribed() throws CloudException, InternalException {
         APITrace.begin(this, "CSCloud.isSubscribed");
         try {
@@ -489,71 +776,114 @@ public class CSCloud extends AbstractCloud {
     public Document waitForJob(Document doc, String jobName) throws CloudException, InternalException {
         NodeList matches = doc.getElementsByTagName("jobid");
         if( matches.getLength() > 0 ) {
-            return waitForJob(matches.item(0).getFirstChild().getNodeValue(), jobName);
+            return waitForJob(matches.item(0).getFirstChild().getNodeValue(), jobName, getPollingPolicy(getCommand(doc)));
         }    
         return null;
     }
+
+    /**
+     * Tracks the job started by a command without waiting for it, the non-blocking counterpart of
+     * {@link #waitForJob(Document, String)}. A response without a job is reported as completed right away.
+     * @param doc the response of the command that started the job
+     * @param jobName a readable name for the job used in error messages
+     * @param callback notified once the job has finished
+     */
+    public void trackJob(@Nonnull Document doc, @Nonnull String jobName, @Nonnull CSJobTracker.Callback callback) {
+        NodeList matches = doc.getElementsByTagName("jobid");
+
+        if( matches.getLength() > 0 ) {
+            getJobTracker().track(matches.item(0).getFirstChild().getNodeValue(), jobName, getPollingPolicy(getCommand(doc)), callback);
+        }
+        else {
+            callback.completed(doc);
+        }
+    }
+
+    static private @Nullable String getCommand(@Nonnull Document doc) {
+        if( doc.getDocumentElement() == null ) {
+            return null;
+        }
+        // e.g. createtagsresponse -> createtags
+        String command = doc.getDocumentElement().getNodeName();
+
+        if( command.toLowerCase().endsWith("response") ) {
+            command = command.substring(0, command.length() - "response".length());
+        }
+        return command;
+    }
     
+    private transient CSJobTracker jobTracker;
+
+    /**
+     * @return the tracker polling the outstanding asynchronous jobs started through this provider instance
+     */
+    public synchronized @Nonnull CSJobTracker getJobTracker() {
+        if( jobTracker == null ) {
+            jobTracker = new CSJobTracker(this);
+        }
+        return jobTracker;
+    }
+
+    /**
+     * Provides the polling schedule for jobs started by the specified command. The command picks the profile
+     * (see {@link CSPollingPolicy#forCommand(String)}); the <code>jobTimeoutMinutes</code> and
+     * <code>jobPollMaxMillis</code> custom properties override the deadline and the longest delay between polls.
+     * @param command the API command that started the job, if known
+     * @return the polling policy to use
+     */
+    public @Nonnull CSPollingPolicy getPollingPolicy(@Nullable String command) {
+        CSPollingPolicy policy = CSPollingPolicy.forCommand(command);
+        ProviderContext ctx = getContext();
+        Properties p = (ctx == null ? null : ctx.getCustomProperties());
+        int timeout = getIntProperty(p, "jobTimeoutMinutes", -1);
+        int maxDelay = getIntProperty(p, "jobPollMaxMillis", -1);
+
+        if( timeout > 0 ) {
+            policy = policy.withTimeout(TimeUnit.MINUTES.toMillis(timeout));
+        }
+        if( maxDelay > 0 ) {
+            policy = policy.withMaxDelay(maxDelay);
+        }
+        return policy;
+    }
+
     public Document waitForJob(String jobId, String jobName) throws CloudException, InternalException {
+        return waitForJob(jobId, jobName, getPollingPolicy(null));
+    }
+
+    /**
+     * Waits for an asynchronous job to finish.
+     * @param jobId the ID of the job
+     * @param jobName a readable name for the job used in error messages
+     * @param policy the polling schedule and deadline for the job
+     * @return the <code>queryAsyncJobResult</code> response of the finished job
+     * @throws CSJobTimeoutException the job did not finish before the deadline of the policy
+     * @throws CloudException the job failed
+     * @throws InternalException the waiting thread was interrupted; the interrupt status is preserved
+     */
+    public Document waitForJob(@Nonnull String jobId, @Nonnull String jobName, @Nonnull CSPollingPolicy policy) throws CloudException, InternalException {
         APITrace.begin(this, "waitForJob");
         try {
-            CSMethod method = new CSMethod(this);
-            while( true ) {
-                try { Thread.sleep(5000L); }
-                catch( InterruptedException e ) { /* ignore */ }
-                Document doc = method.get("queryAsyncJobResult", new Param("jobId", jobId));
+            Future<Document> job = getJobTracker().track(jobId, jobName, policy);
 
-                NodeList matches = doc.getElementsByTagName("jobstatus");
-                int status = 0;
+            try {
+                return job.get();
+            }
+            catch( InterruptedException e ) {
+                job.cancel(false);
+                Thread.currentThread().interrupt();
+                throw new InternalException("Interrupted while waiting for " + jobName + " (job " + jobId + ")");
+            }
+            catch( ExecutionException e ) {
+                Throwable cause = e.getCause();
 
-                if( matches.getLength() > 0 ) {
-                    status = Integer.parseInt(matches.item(0).getFirstChild().getNodeValue());
+                if( cause instanceof CloudException ) {
+                    throw ( CloudException ) cause;
                 }
-                if( status > 0 ) {
-                    int code = status;
-
-                    if( status == 1 ) {
-                        return doc;
-                    }
-                    if( status == 2 ) {
-                        matches = doc.getElementsByTagName("jobresult");
-                        if( matches.getLength() > 0 ) {
-                            String str = matches.item(0).getFirstChild().getNodeValue();
-
-                            if( str == null || str.trim().length() < 1 ) {
-                                NodeList nodes = matches.item(0).getChildNodes();
-                                String message = null;
-
-                                for( int i=0; i<nodes.getLength(); i++ ) {
-                                    Node n = nodes.item(i);
-
-                                    if( n.getNodeName().equalsIgnoreCase("errorcode") ) {
-                                        try {
-                                            code = Integer.parseInt(n.getFirstChild().getNodeValue().trim());
-                                        }
-                                        catch( NumberFormatException ignore ) {
-                                            // ignore
-                                        }
-                                    }
-                                    else if( n.getNodeName().equalsIgnoreCase("errortext") ) {
-                                        message = n.getFirstChild().getNodeValue().trim();
-                                    }
-                                }
-                                CSMethod.ParsedError error = new CSMethod.ParsedError();
-
-                                error.code = code;
-                                error.message = message;
-                                throw new CSException(error);
-                            }
-                            else {
-                                throw new CloudException(str);
-                            }
-                        }
-                        else {
-                            throw new CloudException(jobName + " failed with an unexplained error.");
-                        }
-                    }
+                if( cause instanceof InternalException ) {
+                    throw ( InternalException ) cause;
                 }
+                throw new CloudException(cause);
             }
         }
         finally {
@@ -616,7 +946,7 @@ public class CSCloud extends AbstractCloud {
         APITrace.begin(this, "getUserAccountData");
 
         try {
-            Document doc = new CSMethod(this).get("listAccounts");
+            Document doc = new CSMethod(this).getCatalog("listAccounts");
             String ctxKey = null;
             List<ContextRequirements.Field> fields = getContextRequirements().getConfigurableValues();
             for( ContextRequirements.Field f : fields ) {
@@ -762,7 +1092,7 @@ public class CSCloud extends AbstractCloud {
             return zoneHypervisors;
         }
         try {
-            Document doc = new CSMethod(this).get(LIST_HYPERVISORS, new Param("zoneid", ctx.getRegionId()));
+            Document doc = new CSMethod(this).getCatalog(LIST_HYPERVISORS, new Param("zoneid", ctx.getRegionId()));
             NodeList nodes = doc.getElementsByTagName("name");
             zoneHypervisors = new ArrayList<String>();
             for( int i = 0; i < nodes.getLength(); i++ ) {
@@ -776,103 +1106,333 @@ public class CSCloud extends AbstractCloud {
         }
     }
 
+    /**
+     * Resources per <code>createTags</code>/<code>deleteTags</code> call, which keeps the signed GET well within
+     * common URL length limits.
+     */
+    static private final int TAG_BATCH_SIZE     = 100;
+    /**
+     * Below this many resources, listing each resource's tags is cheaper than listing every tag of the type.
+     */
+    static private final int BULK_TAG_THRESHOLD = 10;
+
+    /**
+     * The resources that get the same set of tags added or removed, so they can share one call.
+     */
+    static private class TagBatch {
+        final List<Tag>    tags;
+        final List<String> resourceIds = new ArrayList<String>();
+
+        TagBatch(@Nonnull List<Tag> tags) {
+            this.tags = tags;
+        }
+    }
+
+    private transient CSTagJobs tagJobs;
+
+    /**
+     * @return the background confirmation of tag changes, which also carries the tag listeners and counters
+     */
+    public synchronized @Nonnull CSTagJobs getTagJobs() {
+        if( tagJobs == null ) {
+            tagJobs = new CSTagJobs(this);
+        }
+        return tagJobs;
+    }
+
+    /**
+     * Indicates whether tag changes return once submitted and are confirmed in the background by {@link CSTagJobs}.
+     * Enabled by setting the <code>tagMode</code> custom property to <code>deferred</code>.
+     * @return true if tag jobs are not waited for
+     */
+    public boolean isDeferredTagging() {
+        ProviderContext ctx = getContext();
+        Properties p = (ctx == null ? null : ctx.getCustomProperties());
+
+        return (p != null && "deferred".equalsIgnoreCase(p.getProperty("tagMode", "sync").trim()));
+    }
+
     public @Nullable void createTags(@Nonnull String[] resIds, @Nonnull String resourceType, Tag... keyValuePairs) throws InternalException, CloudException {
         APITrace.begin(this, "Cloud.createTags");
         try {
             try {
-                String resourceIds = "";
-                for( String resId : resIds ) {
-                    resourceIds += resId + ",";
-                }
-                if( resourceIds.endsWith(",") ) {
-                    resourceIds = resourceIds.substring(0, resourceIds.length() - 1);
-                }
-                List<Param> params = new ArrayList<Param>();
-                params.add(new Param("resourceids", resourceIds));
-                params.add(new Param("resourcetype", resourceType));
-                for( int i = 0; i < keyValuePairs.length; i++ ) {
-                    // Tag value can't be null or ""
-                    if( keyValuePairs[i].getValue() != null && !keyValuePairs[i].getValue().equals("") ) {
-                        params.add(new Param("tags[" + i + "].key", keyValuePairs[i].getKey()));
-                        params.add(new Param("tags[" + i + "].value", keyValuePairs[i].getValue()));
-                    }
+                List<Document> jobs = submitTags(CREATE_TAGS, Arrays.asList(resIds), resourceType, Arrays.asList(keyValuePairs));
+
+                if( isDeferredTagging() ) {
+                    getTagJobs().track(jobs, "Create Tags", resourceType, Arrays.asList(resIds), null);
+                    return;
+                }
+                for( Document doc : jobs ) {
+                    waitForJob(doc, "Create Tags");
                 }
-                Document doc = new CSMethod(this).get(CREATE_TAGS, params);
-                waitForJob(doc, "Create Tags");
             }
             catch( CloudException e ) {
                 logger.error("Error while creating tags for " + resourceType + " - ", e);
             }
+            finally {
+                invalidate(resourceType, Arrays.asList(resIds));
+            }
         }
         finally {
             APITrace.end();
         }
     }
 
+    /**
+     * Sets the tags on all the resources. Existing values are read in one go, only tags whose value actually changes
+     * are removed and re-created, and resources needing the same change share a <code>deleteTags</code> or
+     * <code>createTags</code> call. A tag with an empty value removes the tag.
+     * @param resIds the resources to tag
+     * @param resourceType the CloudStack resource type, such as <code>UserVm</code>
+     * @param keyValuePairs the tags to set
+     */
     public @Nullable void updateTags(@Nonnull String[] resIds, String resourceType, Tag... keyValuePairs) throws InternalException, CloudException {
         APITrace.begin(this, "Cloud.updateTags");
         try {
             try {
-                // List and remove existing tags to update the values
+                Map<String,List<Tag>> existing;
+
+                if( resIds.length < BULK_TAG_THRESHOLD ) {
+                    existing = new HashMap<String,List<Tag>>();
+                    for( String resId : resIds ) {
+                        existing.put(resId, Arrays.asList(getTags(resId)));
+                    }
+                }
+                else {
+                    existing = getTags(resourceType, Arrays.asList(resIds));
+                }
+                Map<String,TagBatch> removals = new LinkedHashMap<String,TagBatch>();
+                Map<String,TagBatch> additions = new LinkedHashMap<String,TagBatch>();
+
                 for( String resId : resIds ) {
-                    Tag[] tagList = getTags(resId);
-                    if( tagList.length > 0 ) {
-                        List<Tag> tags = new ArrayList<Tag>();
-                        // New tags to update
-                        for( int i = 0; i < keyValuePairs.length; i++ ) {
-                            // Existing tags
-                            for( int k = 0; k < tagList.length; k++ ) {
-                                if( keyValuePairs[i].getKey().equals(tagList[k].getKey()) ) {
-                                    if( tagList[k].getValue() != null ) {
-                                        tags.add(new Tag(tagList[k].getKey(), tagList[k].getValue()));
+                    List<Tag> current = existing.get(resId);
+                    List<Tag> remove = new ArrayList<Tag>();
+                    List<Tag> add = new ArrayList<Tag>();
+
+                    for( Tag tag : keyValuePairs ) {
+                        boolean present = false;
+
+                        if( current != null ) {
+                            for( Tag old : current ) {
+                                if( tag.getKey().equals(old.getKey()) && old.getValue() != null ) {
+                                    if( old.getValue().equals(tag.getValue()) ) {
+                                        present = true;
+                                    }
+                                    else {
+                                        remove.add(old);
                                     }
                                 }
                             }
                         }
-                        if( tags.size() > 0 ) {
-                            removeTags(new String[]{ resId }, resourceType, tags.toArray(new Tag[tags.size()]));
+                        if( !present && tag.getValue() != null && !tag.getValue().equals("") ) {
+                            add.add(tag);
                         }
                     }
+                    addToBatch(removals, remove, resId);
+                    addToBatch(additions, add, resId);
+                }
+                // values must be gone before they can be set again
+                List<Document> jobs = submitTags(DELETE_TAGS, removals.values(), resourceType);
+
+                if( isDeferredTagging() ) {
+                    final Collection<TagBatch> pending = additions.values();
+                    final String type = resourceType;
+                    final List<String> ids = Arrays.asList(resIds);
+
+                    if( jobs.isEmpty() ) {
+                        getTagJobs().track(submitTags(CREATE_TAGS, pending, type), "Update Tags", type, ids, null);
+                        return;
+                    }
+                    getTagJobs().track(jobs, "Delete Tags", type, ids, new Runnable() {
+                        public void run() {
+                            try {
+                                getTagJobs().track(submitTags(CREATE_TAGS, pending, type), "Update Tags", type, ids, null);
+                            }
+                            catch( Throwable t ) {
+                                getTagJobs().failed("Update Tags", type, ids, t);
+                            }
+                        }
+                    });
+                    return;
+                }
+                for( Document doc : jobs ) {
+                    waitForJob(doc, "Delete Tags");
+                }
+                for( Document doc : submitTags(CREATE_TAGS, additions.values(), resourceType) ) {
+                    waitForJob(doc, "Create Tags");
                 }
-                // Update tags
-                createTags(resIds, resourceType, keyValuePairs);
             }
             catch( CloudException e ) {
                 logger.error("Error while updating tags for " + resourceType + " - ", e);
             }
+            finally {
+                invalidate(resourceType, Arrays.asList(resIds));
+            }
         }
         finally {
             APITrace.end();
         }
     }
 
+    /**
+     * Drops resources whose tags changed from the inventory, if one is kept, so they are fetched again with their
+     * new tags. Deferred tag changes are invalidated once more when their jobs finish.
+     */
+    void invalidate(@Nonnull String resourceType, @Nonnull Collection<String> resourceIds) {
+        try {
+            CSInventory inventory = getInventory();
+
+            if( inventory != null ) {
+                inventory.invalidate(resourceType, resourceIds);
+            }
+        }
+        catch( CloudException e ) {
+            logger.warn("Unable to update the inventory after tagging " + resourceType + " " + resourceIds + ": " + e.getMessage());
+        }
+    }
+
+    static private void addToBatch(@Nonnull Map<String,TagBatch> batches, @Nonnull List<Tag> tags, @Nonnull String resourceId) {
+        if( tags.isEmpty() ) {
+            return;
+        }
+        StringBuilder signature = new StringBuilder();
+
+        for( Tag tag : tags ) {
+            signature.append(tag.getKey()).append('=').append(tag.getValue()).append('\n');
+        }
+        TagBatch batch = batches.get(signature.toString());
+
+        if( batch == null ) {
+            batch = new TagBatch(tags);
+            batches.put(signature.toString(), batch);
+        }
+        batch.resourceIds.add(resourceId);
+    }
+
+    private @Nonnull List<Document> submitTags(@Nonnull String command, @Nonnull Collection<TagBatch> batches, @Nonnull String resourceType) throws InternalException, CloudException {
+        List<Document> jobs = new ArrayList<Document>();
+
+        for( TagBatch batch : batches ) {
+            jobs.addAll(submitTags(command, batch.resourceIds, resourceType, batch.tags));
+        }
+        return jobs;
+    }
+
+    /**
+     * Issues the tag command for up to {@link #TAG_BATCH_SIZE} resources per call.
+     * @return the responses holding the job ids, one per call
+     */
+    private @Nonnull List<Document> submitTags(@Nonnull String command, @Nonnull List<String> resIds, @Nonnull String resourceType, @Nonnull List<Tag> keyValuePairs) throws InternalException, CloudException {
+        List<Param> tagParams = new ArrayList<Param>();
+        int i = 0;
+
+        for( Tag tag : keyValuePairs ) {
+            // Tag value can't be null or ""
+            if( tag.getValue() != null && !tag.getValue().equals("") ) {
+                tagParams.add(new Param("tags[" + i + "].key", tag.getKey()));
+                tagParams.add(new Param("tags[" + i + "].value", tag.getValue()));
+                i++;
+            }
+        }
+        List<Document> jobs = new ArrayList<Document>();
+
+        for( int from = 0; from < resIds.size(); from += TAG_BATCH_SIZE ) {
+            StringBuilder resourceIds = new StringBuilder();
+
+            for( String resId : resIds.subList(from, Math.min(resIds.size(), from + TAG_BATCH_SIZE)) ) {
+                if( resourceIds.length() > 0 ) {
+                    resourceIds.append(",");
+                }
+                resourceIds.append(resId);
+            }
+            List<Param> params = new ArrayList<Param>();
+
+            params.add(new Param("resourceids", resourceIds.toString()));
+            params.add(new Param("resourcetype", resourceType));
+            params.addAll(tagParams);
+            jobs.add(new CSMethod(this).get(command, params));
+        }
+        return jobs;
+    }
+
     public @Nullable void removeTags(@Nonnull String[] vmIds, String resourceType, Tag... keyValuePairs) throws InternalException, CloudException {
         APITrace.begin(this, "Cloud.removeTags");
         try {
-            String resourceIds = "";
             try {
-                for( String vmId : vmIds ) {
-                    resourceIds += vmId + ",";
-                }
-                if( resourceIds.endsWith(",") ) {
-                    resourceIds = resourceIds.substring(0, resourceIds.length() - 1);
-                }
-                List<Param> params = new ArrayList<Param>();
-                params.add(new Param("resourceids", resourceIds));
-                params.add(new Param("resourcetype", resourceType));
-                for( int i = 0; i < keyValuePairs.length; i++ ) {
-                    // Tag value can't be null or ""
-                    if( keyValuePairs[i].getValue() != null && !keyValuePairs[i].getValue().equals("") ) {
-                        params.add(new Param("tags[" + i + "].key", keyValuePairs[i].getKey()));
-                        params.add(new Param("tags[" + i + "].value", keyValuePairs[i].getValue()));
-                    }
+                List<Document> jobs = submitTags(DELETE_TAGS, Arrays.asList(vmIds), resourceType, Arrays.asList(keyValuePairs));
+
+                if( isDeferredTagging() ) {
+                    getTagJobs().track(jobs, "Delete Tags", resourceType, Arrays.asList(vmIds), null);
+                    return;
+                }
+                for( Document doc : jobs ) {
+                    waitForJob(doc, "Delete Tags");
                 }
-                Document doc = new CSMethod(this).get(DELETE_TAGS, params);
-                waitForJob(doc, "Delete Tags");
             }
             catch( CloudException e ) {
                 logger.error("Error while removing tags for " + resourceType + " - ", e);
             }
+            finally {
+                invalidate(resourceType, Arrays.asList(vmIds));
+            }
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Lists the tags of many resources of one type with a single paged <code>listTags</code> rather than one call per
+     * resource.
+     * @param resourceType the CloudStack resource type, such as <code>UserVm</code>
+     * @param resourceIds the resources of interest, or <code>null</code> for every tagged resource of the type
+     * @return the tags by resource id; every requested resource has an entry, if only an empty one
+     * @throws CloudException an error occurred with the cloud provider while listing the tags
+     * @throws InternalException an error occurred locally while listing the tags
+     */
+    public @Nonnull Map<String,List<Tag>> getTags(@Nonnull String resourceType, @Nullable Collection<String> resourceIds) throws InternalException, CloudException {
+        APITrace.begin(this, "Cloud.listTagsByType");
+        try {
+            final Set<String> wanted = (resourceIds == null ? null : new HashSet<String>(resourceIds));
+            final Map<String,List<Tag>> tags = new HashMap<String,List<Tag>>();
+
+            if( wanted != null ) {
+                for( String id : wanted ) {
+                    tags.put(id, new ArrayList<Tag>());
+                }
+            }
+            new CSPager<Node>(this, LIST_TAGS, "tag", CSPager.NODES, new Param("resourcetype", resourceType)).forEach(new CSPager.Consumer<Node>() {
+                public void accept(@Nonnull Node node) {
+                    NodeList attributes = node.getChildNodes();
+                    String resourceId = null, key = null, value = null;
+
+                    for( int i = 0; i < attributes.getLength(); i++ ) {
+                        Node attribute = attributes.item(i);
+                        String name = attribute.getNodeName();
+
+                        if( name.equalsIgnoreCase("resourceid") ) {
+                            resourceId = attribute.getTextContent();
+                        }
+                        else if( name.equalsIgnoreCase("key") ) {
+                            key = attribute.getTextContent();
+                        }
+                        else if( name.equalsIgnoreCase("value") ) {
+                            value = attribute.getTextContent();
+                        }
+                    }
+                    if( resourceId == null || key == null || (wanted != null && !wanted.contains(resourceId)) ) {
+                        return;
+                    }
+                    List<Tag> list = tags.get(resourceId);
+
+                    if( list == null ) {
+                        list = new ArrayList<Tag>();
+                        tags.put(resourceId, list);
+                    }
+                    list.add(new Tag(key, value));
+                }
+            });
+            return tags;
         }
         finally {
             APITrace.end();
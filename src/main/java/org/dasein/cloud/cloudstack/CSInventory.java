@@ -0,0 +1,996 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.cloudstack.compute.VirtualMachines;
+import org.dasein.cloud.cloudstack.compute.Volumes;
+import org.dasein.cloud.cloudstack.network.IpAddress;
+import org.dasein.cloud.cloudstack.network.SecurityGroup;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.Volume;
+import org.dasein.cloud.network.Firewall;
+import org.dasein.cloud.network.IPVersion;
+import org.dasein.cloud.network.Networkable;
+import org.dasein.cloud.network.RawAddress;
+import org.dasein.cloud.util.APITrace;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * An in-memory view of the virtual machines, volumes, public IP addresses and security groups of one region that is
+ * kept current from the event log rather than by re-listing everything. The first {@link #sync()} loads the full
+ * inventory; later calls read the events since the previous sync and re-fetch only the resources they mention, by id.
+ * <p>When the events cannot be trusted to describe every change (the event listing fails, too much time has passed,
+ * there are more events than targeted fetches would be worth, or an event cannot be tied to a resource) the affected
+ * resource types are listed in full again, so the inventory never silently drifts. Tag changes are not reliably tied
+ * to resources by their events, so the provider's own tag calls {@link #invalidate(String, Collection) invalidate} the
+ * resources they touch, and everything is listed in full again at least every twelve hours.</p>
+ * <p>The resources are indexed by VLAN, virtual machine, public IP address, security group and tag. The lookup
+ * methods first bring the inventory up to date if it is older than the staleness bound it was created with, and the
+ * provider's own create and delete operations update it directly (see {@link CSCloud#getInventory()}).</p>
+ */
+public class CSInventory {
+    static private final Logger logger = CSCloud.getLogger(CSInventory.class, "std");
+
+    static public final String LIST_EVENTS = "listEvents";
+
+    /**
+     * Overlap applied to the watermark so that events logged while the previous sync ran are not missed; events
+     * seen before are recognized by id.
+     */
+    static private final long    OVERLAP        = TimeUnit.MINUTES.toMillis(15);
+    /**
+     * Past this age of the last sync the event log may have been purged, so a full load is safer. It also bounds how
+     * long anything the events missed can stay out of date, since a full load is made at least this often.
+     */
+    static private final long    MAX_DELTA_AGE  = TimeUnit.HOURS.toMillis(12);
+    static private final Pattern UUID           = Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+    static private final Pattern NUMERIC_ID     = Pattern.compile("(?i)\\bid\\s*[:=]\\s*(\\d+)");
+
+    private enum Kind { VM, VOLUME, ADDRESS, FIREWALL }
+
+    /**
+     * The kinds of resources whose tags are indexed.
+     */
+    static private final Kind[] TAGGED = { Kind.VM, Kind.VOLUME };
+
+    /**
+     * Resources by one secondary key.
+     */
+    static private class Index {
+        private final Map<String,Set<Object>> entries = new HashMap<String,Set<Object>>();
+
+        void update(@Nullable String key, @Nonnull Object resource, boolean add) {
+            if( key == null ) {
+                return;
+            }
+            Set<Object> resources = entries.get(key);
+
+            if( add ) {
+                if( resources == null ) {
+                    resources = new LinkedHashSet<Object>();
+                    entries.put(key, resources);
+                }
+                resources.add(resource);
+            }
+            else if( resources != null ) {
+                resources.remove(resource);
+                if( resources.isEmpty() ) {
+                    entries.remove(key);
+                }
+            }
+        }
+
+        @Nonnull <T> List<T> get(@Nonnull String key, @Nonnull Class<T> type) {
+            Set<Object> resources = entries.get(key);
+            List<T> matches = new ArrayList<T>();
+
+            if( resources != null ) {
+                for( Object resource : resources ) {
+                    if( type.isInstance(resource) ) {
+                        matches.add(type.cast(resource));
+                    }
+                }
+            }
+            return matches;
+        }
+    }
+
+    static private class Event {
+        String id;
+        String type;
+        String state;
+        String description;
+        Date   created;
+        String offset;
+    }
+
+    private final CSCloud provider;
+    private final String  regionId;
+    private final long    maxStaleness;
+
+    private final Map<Kind,Map<String,Object>> resources  = new EnumMap<Kind,Map<String,Object>>(Kind.class);
+    private final Index                        byVlan     = new Index();
+    private final Index                        byVm       = new Index();
+    private final Index                        byPublicIp = new Index();
+    private final Index                        byFirewall = new Index();
+    private final Index                        byTag      = new Index();
+    private final Map<String,Date>             seen       = new HashMap<String,Date>();
+    private final Map<Kind,Set<String>>        invalid    = new EnumMap<Kind,Set<String>>(Kind.class);
+
+    /**
+     * Held for the whole of a sync so only one runs at a time. The API calls of a sync are made without holding the
+     * inventory's own monitor, which is only taken to swap the results in, so lookups and the provider's own updates
+     * are not held up by a sync.
+     */
+    private final Object syncLock = new Object();
+
+    // guarded by syncLock
+    private Date     watermark;
+    private TimeZone serverZone;
+    private long     lastFullSync;
+
+    private volatile long lastSync;
+
+    /**
+     * @param provider a provider whose context is set to the region to track
+     * @param maxStaleness how old, in milliseconds, the inventory may be when a lookup is answered from it
+     * @throws CloudException the provider has no context
+     */
+    public CSInventory(@Nonnull CSCloud provider, long maxStaleness) throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        if( ctx.getRegionId() == null ) {
+            throw new CloudException("No region was set for this request");
+        }
+        this.provider = provider;
+        this.regionId = ctx.getRegionId();
+        this.maxStaleness = maxStaleness;
+        for( Kind kind : Kind.values() ) {
+            resources.put(kind, new LinkedHashMap<String,Object>());
+            invalid.put(kind, new LinkedHashSet<String>());
+        }
+    }
+
+    public @Nonnull String getRegionId() {
+        return regionId;
+    }
+
+    /**
+     * @return the time of the last successful sync, or 0 if the inventory has not been loaded yet
+     */
+    public long getLastSync() {
+        return lastSync;
+    }
+
+    public synchronized @Nonnull List<VirtualMachine> getVirtualMachines() {
+        return list(Kind.VM, VirtualMachine.class);
+    }
+
+    public synchronized @Nonnull List<Volume> getVolumes() {
+        return list(Kind.VOLUME, Volume.class);
+    }
+
+    public synchronized @Nonnull List<org.dasein.cloud.network.IpAddress> getIpAddresses() {
+        return list(Kind.ADDRESS, org.dasein.cloud.network.IpAddress.class);
+    }
+
+    public synchronized @Nonnull List<Firewall> getFirewalls() {
+        return list(Kind.FIREWALL, Firewall.class);
+    }
+
+    /**
+     * Tells whether lookups would be answered without syncing first. Callers that have an API call of their own to
+     * fall back on use the inventory only when it is fresh. It never is on the thread running a sync, since a sync
+     * fetches resources through those same calls.
+     * @return whether the inventory is loaded and no older than the allowed staleness
+     */
+    public boolean isFresh() {
+        long last = lastSync;
+
+        return (last > 0L && System.currentTimeMillis() - last <= maxStaleness && !Thread.holdsLock(syncLock));
+    }
+
+    public @Nullable VirtualMachine getVirtualMachine(@Nonnull String vmId) throws CloudException, InternalException {
+        ensureCurrent();
+        synchronized( this ) {
+            return (VirtualMachine)resources.get(Kind.VM).get(vmId);
+        }
+    }
+
+    public @Nullable Volume getVolume(@Nonnull String volumeId) throws CloudException, InternalException {
+        ensureCurrent();
+        synchronized( this ) {
+            return (Volume)resources.get(Kind.VOLUME).get(volumeId);
+        }
+    }
+
+    /**
+     * @param vlanId the VLAN to look in
+     * @return the virtual machines, IP addresses and security groups in the VLAN
+     */
+    public @Nonnull List<Networkable> listResources(@Nonnull String vlanId) throws CloudException, InternalException {
+        ensureCurrent();
+        synchronized( this ) {
+            return byVlan.get(vlanId, Networkable.class);
+        }
+    }
+
+    /**
+     * @param vmId the virtual machine
+     * @return the volumes and IP addresses attached to the virtual machine
+     */
+    public @Nonnull List<Object> listAttachments(@Nonnull String vmId) throws CloudException, InternalException {
+        ensureCurrent();
+        synchronized( this ) {
+            return byVm.get(vmId, Object.class);
+        }
+    }
+
+    /**
+     * @param address a public IP address such as 203.0.113.10
+     * @return the IP address resource and the virtual machines that hold the address
+     */
+    public @Nonnull List<Object> findByPublicIp(@Nonnull String address) throws CloudException, InternalException {
+        ensureCurrent();
+        synchronized( this ) {
+            return byPublicIp.get(address, Object.class);
+        }
+    }
+
+    public @Nonnull List<VirtualMachine> listVirtualMachinesInFirewall(@Nonnull String firewallId) throws CloudException, InternalException {
+        ensureCurrent();
+        synchronized( this ) {
+            return byFirewall.get(firewallId, VirtualMachine.class);
+        }
+    }
+
+    /**
+     * @return the virtual machines and volumes carrying the tag
+     */
+    public @Nonnull List<Object> findByTag(@Nonnull String key, @Nonnull String value) throws CloudException, InternalException {
+        ensureCurrent();
+        synchronized( this ) {
+            return byTag.get(key + "=" + value, Object.class);
+        }
+    }
+
+    public synchronized void put(@Nonnull VirtualMachine vm) {
+        if( regionId.equals(vm.getProviderRegionId()) ) {
+            store(Kind.VM, vm.getProviderVirtualMachineId(), vm);
+        }
+    }
+
+    public synchronized void put(@Nonnull Volume volume) {
+        store(Kind.VOLUME, volume.getProviderVolumeId(), volume);
+    }
+
+    public synchronized void put(@Nonnull org.dasein.cloud.network.IpAddress address) {
+        if( regionId.equals(address.getRegionId()) ) {
+            store(Kind.ADDRESS, address.getProviderIpAddressId(), address);
+        }
+    }
+
+    public synchronized void put(@Nonnull Firewall firewall) {
+        store(Kind.FIREWALL, firewall.getProviderFirewallId(), firewall);
+    }
+
+    public synchronized void removeVirtualMachine(@Nonnull String vmId) {
+        store(Kind.VM, vmId, null);
+    }
+
+    public synchronized void removeVolume(@Nonnull String volumeId) {
+        store(Kind.VOLUME, volumeId, null);
+    }
+
+    public synchronized void removeIpAddress(@Nonnull String addressId) {
+        store(Kind.ADDRESS, addressId, null);
+    }
+
+    public synchronized void removeFirewall(@Nonnull String firewallId) {
+        store(Kind.FIREWALL, firewallId, null);
+    }
+
+    /**
+     * Drops resources that were changed in a way the event log does not reliably report, such as their tags. Lookups
+     * leave them out until the next sync has fetched them again.
+     * @param resourceType the CloudStack resource type, such as <code>UserVm</code>
+     * @param ids the resources that changed
+     */
+    public synchronized void invalidate(@Nonnull String resourceType, @Nonnull Collection<String> ids) {
+        Kind kind = toKindOfResourceType(resourceType);
+
+        if( kind == null ) {
+            return;
+        }
+        for( String id : ids ) {
+            store(kind, id, null);
+            invalid.get(kind).add(id);
+        }
+    }
+
+    /**
+     * @return a copy of the resources invalidated so far, which a sync fetches again
+     */
+    private synchronized @Nonnull Map<Kind,Set<String>> getInvalid() {
+        Map<Kind,Set<String>> copy = new EnumMap<Kind,Set<String>>(Kind.class);
+
+        for( Kind kind : Kind.values() ) {
+            copy.put(kind, new LinkedHashSet<String>(invalid.get(kind)));
+        }
+        return copy;
+    }
+
+    /**
+     * Marks the invalidated resources a sync fetched as current again. Resources invalidated while the sync was
+     * fetching may have been fetched before they changed, so they are dropped again until the next sync. Must be
+     * called while holding the monitor.
+     * @param fetched the invalidated resources as they were when the sync started
+     */
+    private void revalidate(@Nonnull Map<Kind,Set<String>> fetched) {
+        for( Kind kind : Kind.values() ) {
+            Set<String> ids = invalid.get(kind);
+
+            ids.removeAll(fetched.get(kind));
+            for( String id : ids ) {
+                store(kind, id, null);
+            }
+        }
+    }
+
+    private void ensureCurrent() throws CloudException, InternalException {
+        if( System.currentTimeMillis() - lastSync > maxStaleness ) {
+            synchronized( syncLock ) {
+                // another caller may have synced while this one waited
+                if( System.currentTimeMillis() - lastSync > maxStaleness ) {
+                    sync();
+                }
+            }
+        }
+    }
+
+    private @Nonnull <T> List<T> list(@Nonnull Kind kind, @Nonnull Class<T> type) {
+        List<T> list = new ArrayList<T>();
+
+        for( Object resource : resources.get(kind).values() ) {
+            list.add(type.cast(resource));
+        }
+        return list;
+    }
+
+    /**
+     * Brings the inventory up to date, with a full load the first time and whenever the event log leaves a gap.
+     * Changed resources of a type are fetched by id as long as there are no more of them than a full listing of the
+     * type has pages; beyond that the type is listed in full instead.
+     * @throws CloudException an error occurred with the cloud provider while syncing
+     * @throws InternalException an error occurred locally while syncing
+     */
+    public void sync() throws CloudException, InternalException {
+        synchronized( syncLock ) {
+            APITrace.begin(provider, "CSInventory.sync");
+            try {
+                long now = System.currentTimeMillis();
+
+                if( watermark == null || now - lastSync > MAX_DELTA_AGE || now - lastFullSync > MAX_DELTA_AGE ) {
+                    fullSync(now);
+                    return;
+                }
+                List<Event> events;
+
+                try {
+                    events = listEvents();
+                }
+                catch( CloudException e ) {
+                    logger.warn("Unable to read events for " + regionId + ", falling back to a full sync: " + e.getMessage());
+                    fullSync(now);
+                    return;
+                }
+                if( events == null ) {
+                    logger.info("The events for " + regionId + " changed while they were listed, falling back to a full sync");
+                    fullSync(now);
+                    return;
+                }
+                learnServerZone(events);
+                Map<Kind,Set<String>> invalidated = getInvalid();
+                Map<Kind,Set<String>> ids = new HashMap<Kind,Set<String>>();
+                Set<String> tagged = new HashSet<String>();
+                Set<Kind> stale = new LinkedHashSet<Kind>();
+
+                for( Kind kind : Kind.values() ) {
+                    ids.put(kind, new LinkedHashSet<String>(invalidated.get(kind)));
+                }
+                for( Event event : events ) {
+                    if( isTagEvent(event.type) ) {
+                        if( event.state != null && !event.state.equalsIgnoreCase("Completed") ) {
+                            continue;
+                        }
+                        // the event does not say what kind of resource was tagged, so it may be either
+                        Collection<String> mentioned = extractIds(event.description);
+
+                        for( Kind kind : TAGGED ) {
+                            if( mentioned.isEmpty() ) {
+                                stale.add(kind);
+                            }
+                            else {
+                                ids.get(kind).addAll(mentioned);
+                            }
+                        }
+                        tagged.addAll(mentioned);
+                        continue;
+                    }
+                    Kind kind = toKind(event.type);
+
+                    if( kind == null || (event.state != null && !event.state.equalsIgnoreCase("Completed")) ) {
+                        continue;
+                    }
+                    Collection<String> mentioned = extractIds(event.description);
+
+                    if( mentioned.isEmpty() ) {
+                        logger.debug("An event for " + kind + " in " + regionId + " could not be tied to resources, reloading them");
+                        stale.add(kind);
+                    }
+                    else {
+                        ids.get(kind).addAll(mentioned);
+                    }
+                    // attaching volumes and static NAT change what the VM reports, too
+                    if( kind != Kind.VM && (event.type.startsWith("VOLUME.ATTACH") || event.type.startsWith("VOLUME.DETACH") || event.type.startsWith("STATICNAT.")) ) {
+                        ids.get(Kind.VM).addAll(mentioned);
+                    }
+                }
+                Map<Kind,Map<String,Object>> fetched = new EnumMap<Kind,Map<String,Object>>(Kind.class);
+
+                for( Kind kind : Kind.values() ) {
+                    Set<String> changed = ids.get(kind);
+
+                    if( stale.contains(kind) || changed.isEmpty() ) {
+                        continue;
+                    }
+                    if( changed.size() > getPageCount(kind) ) {
+                        logger.debug(changed.size() + " " + kind + " resources changed in " + regionId + ", listing them in full");
+                        stale.add(kind);
+                    }
+                    else {
+                        fetched.put(kind, fetch(kind, changed));
+                    }
+                }
+                Map<Kind,Map<String,Object>> listed = new EnumMap<Kind,Map<String,Object>>(Kind.class);
+
+                for( Kind kind : stale ) {
+                    listed.put(kind, fetchAll(kind));
+                }
+                List<Kind> unresolved = new ArrayList<Kind>();
+
+                synchronized( this ) {
+                    for( Map.Entry<Kind,Map<String,Object>> entry : fetched.entrySet() ) {
+                        Kind kind = entry.getKey();
+                        Map<String,Object> found = entry.getValue();
+
+                        // only ids from the events of this kind are expected to resolve
+                        if( !apply(kind, found) && !isExpected(found.keySet(), tagged, invalidated.get(kind)) ) {
+                            unresolved.add(kind);
+                        }
+                    }
+                    for( Map.Entry<Kind,Map<String,Object>> entry : listed.entrySet() ) {
+                        replace(entry.getKey(), entry.getValue());
+                    }
+                    revalidate(invalidated);
+                }
+                for( Kind kind : unresolved ) {
+                    logger.debug("Events for " + kind + " in " + regionId + " named no known resources, reloading them");
+                    Map<String,Object> all = fetchAll(kind);
+
+                    synchronized( this ) {
+                        replace(kind, all);
+                    }
+                }
+                advance(events, now);
+            }
+            finally {
+                APITrace.end();
+            }
+        }
+    }
+
+    private void fullSync(long now) throws CloudException, InternalException {
+        boolean noEvents = false;
+
+        if( serverZone == null ) {
+            // the event dates are in the server's zone, which only the events themselves reveal
+            try {
+                List<Event> latest = listLatestEvents();
+
+                learnServerZone(latest);
+                noEvents = latest.isEmpty();
+            }
+            catch( CloudException e ) {
+                logger.warn("Unable to read events for " + regionId + ": " + e.getMessage());
+            }
+        }
+        // anything that happens while the listings run is picked up again by the next delta; an account without any
+        // events yet has nothing to replay, so its first delta may read from the beginning
+        Date mark = (serverZone == null && noEvents ? new Date(0L) : new Date(now - OVERLAP));
+        Map<Kind,Set<String>> invalidated = getInvalid();
+        Map<Kind,Map<String,Object>> listed = new EnumMap<Kind,Map<String,Object>>(Kind.class);
+
+        for( Kind kind : Kind.values() ) {
+            listed.put(kind, fetchAll(kind));
+        }
+        synchronized( this ) {
+            for( Map.Entry<Kind,Map<String,Object>> entry : listed.entrySet() ) {
+                replace(entry.getKey(), entry.getValue());
+            }
+            revalidate(invalidated);
+        }
+        seen.clear();
+        watermark = mark;
+        lastSync = now;
+        lastFullSync = now;
+    }
+
+    /**
+     * @return the number of pages a full listing of the resources of the kind takes
+     */
+    private synchronized int getPageCount(@Nonnull Kind kind) {
+        return Math.max(1, (resources.get(kind).size() + CSPager.PAGE_SIZE - 1) / CSPager.PAGE_SIZE);
+    }
+
+    /**
+     * Lists all resources of the kind. Makes API calls, so it must not be called while holding the monitor.
+     */
+    private @Nonnull Map<String,Object> fetchAll(@Nonnull Kind kind) throws CloudException, InternalException {
+        Map<String,Object> all = new LinkedHashMap<String,Object>();
+
+        switch( kind ) {
+            case VM:
+                for( VirtualMachine vm : getVirtualMachineSupport().listVirtualMachines() ) {
+                    all.put(vm.getProviderVirtualMachineId(), vm);
+                }
+                break;
+            case VOLUME:
+                for( Volume volume : getVolumeSupport().listVolumes() ) {
+                    all.put(volume.getProviderVolumeId(), volume);
+                }
+                break;
+            case ADDRESS:
+                IpAddress ipSupport = provider.getNetworkServices().getIpAddressSupport();
+
+                if( ipSupport != null ) {
+                    for( org.dasein.cloud.network.IpAddress addr : ipSupport.listIpPool(IPVersion.IPV4, false) ) {
+                        all.put(addr.getProviderIpAddressId(), addr);
+                    }
+                }
+                break;
+            case FIREWALL:
+                SecurityGroup fwSupport = provider.getNetworkServices().getFirewallSupport();
+
+                if( fwSupport != null ) {
+                    for( Firewall fw : fwSupport.list() ) {
+                        all.put(fw.getProviderFirewallId(), fw);
+                    }
+                }
+                break;
+        }
+        return all;
+    }
+
+    /**
+     * Replaces all resources of the kind with a full listing. Must be called while holding the monitor.
+     */
+    private void replace(@Nonnull Kind kind, @Nonnull Map<String,Object> all) {
+        for( String id : new ArrayList<String>(resources.get(kind).keySet()) ) {
+            if( !all.containsKey(id) ) {
+                store(kind, id, null);
+            }
+        }
+        for( Map.Entry<String,Object> entry : all.entrySet() ) {
+            store(kind, entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Replaces or removes a resource, keeping the secondary indexes in step.
+     * @return <code>true</code> if the inventory held the resource before or holds it now
+     */
+    private boolean store(@Nonnull Kind kind, @Nonnull String id, @Nullable Object resource) {
+        Object old = (resource == null ? resources.get(kind).remove(id) : resources.get(kind).put(id, resource));
+
+        if( old != null ) {
+            index(old, false);
+        }
+        if( resource != null ) {
+            index(resource, true);
+        }
+        return (old != null || resource != null);
+    }
+
+    private void index(@Nonnull Object resource, boolean add) {
+        if( resource instanceof VirtualMachine ) {
+            VirtualMachine vm = (VirtualMachine)resource;
+
+            byVlan.update(vm.getProviderVlanId(), vm, add);
+            RawAddress[] addresses = vm.getPublicAddresses();
+
+            if( addresses != null ) {
+                for( RawAddress a : addresses ) {
+                    byPublicIp.update(a.getIpAddress(), vm, add);
+                }
+            }
+            String[] firewalls = vm.getProviderFirewallIds();
+
+            if( firewalls != null ) {
+                for( String fw : firewalls ) {
+                    byFirewall.update(fw, vm, add);
+                }
+            }
+            indexTags(vm.getTags(), vm, add);
+        }
+        else if( resource instanceof Volume ) {
+            Volume volume = (Volume)resource;
+
+            byVm.update(volume.getProviderVirtualMachineId(), volume, add);
+            indexTags(volume.getTags(), volume, add);
+        }
+        else if( resource instanceof org.dasein.cloud.network.IpAddress ) {
+            org.dasein.cloud.network.IpAddress addr = (org.dasein.cloud.network.IpAddress)resource;
+
+            byVlan.update(addr.getProviderVlanId(), addr, add);
+            byVm.update(addr.getServerId(), addr, add);
+            byPublicIp.update(addr.getAddress(), addr, add);
+        }
+        else if( resource instanceof Firewall ) {
+            Firewall fw = (Firewall)resource;
+
+            byVlan.update(fw.getProviderVlanId(), fw, add);
+            byFirewall.update(fw.getProviderFirewallId(), fw, add);
+        }
+    }
+
+    private void indexTags(@Nullable Map<String,String> tags, @Nonnull Object resource, boolean add) {
+        if( tags != null ) {
+            for( Map.Entry<String,String> tag : tags.entrySet() ) {
+                byTag.update(tag.getKey() + "=" + tag.getValue(), resource, add);
+            }
+        }
+    }
+
+    /**
+     * Fetches the resources with the given ids. Makes API calls, so it must not be called while holding the monitor.
+     * @return the resources by id, with <code>null</code> for those that no longer exist; ids that are not valid for
+     * this kind of resource are left out
+     */
+    private @Nonnull Map<String,Object> fetch(@Nonnull Kind kind, @Nonnull Set<String> ids) throws CloudException, InternalException {
+        Map<String,Object> found = new LinkedHashMap<String,Object>();
+
+        if( kind == Kind.ADDRESS ) {
+            // looked up together so the load balancer and server lookups are made once, not once per address
+            IpAddress ipSupport = provider.getNetworkServices().getIpAddressSupport();
+
+            if( ipSupport != null ) {
+                for( Map.Entry<String,org.dasein.cloud.network.IpAddress> entry : ipSupport.getIpAddresses(ids).entrySet() ) {
+                    org.dasein.cloud.network.IpAddress addr = entry.getValue();
+
+                    found.put(entry.getKey(), addr != null && regionId.equals(addr.getRegionId()) ? addr : null);
+                }
+            }
+            return found;
+        }
+        for( String id : ids ) {
+            try {
+                found.put(id, fetch(kind, id));
+            }
+            catch( CloudException e ) {
+                // an id from the description that is not valid for this kind of resource
+                if( e.getHttpCode() != 431 ) {
+                    throw e;
+                }
+            }
+        }
+        return found;
+    }
+
+    private @Nullable Object fetch(@Nonnull Kind kind, @Nonnull String id) throws CloudException, InternalException {
+        switch( kind ) {
+            case VM:
+                VirtualMachine vm = getVirtualMachineSupport().getVirtualMachine(id);
+
+                return (vm != null && regionId.equals(vm.getProviderRegionId()) ? vm : null);
+            case VOLUME:
+                return getVolumeSupport().getVolume(id);
+            case FIREWALL:
+                SecurityGroup fwSupport = provider.getNetworkServices().getFirewallSupport();
+
+                return (fwSupport == null ? null : fwSupport.getFirewall(id));
+        }
+        return null;
+    }
+
+    /**
+     * Stores fetched resources. Must be called while holding the monitor.
+     * @return <code>false</code> if none of the ids turned out to be a resource of this kind
+     */
+    private boolean apply(@Nonnull Kind kind, @Nonnull Map<String,Object> found) {
+        boolean resolved = false;
+
+        for( Map.Entry<String,Object> entry : found.entrySet() ) {
+            resolved |= store(kind, entry.getKey(), entry.getValue());
+        }
+        return resolved;
+    }
+
+    /**
+     * @return the most recent events, or at least one page of events, for learning the server's time zone
+     */
+    private @Nonnull List<Event> listLatestEvents() throws CloudException, InternalException {
+        NodeList matches = new CSMethod(provider).get(LIST_EVENTS, new Param("page", "1"), new Param("pagesize", "1")).getElementsByTagName("event");
+        List<Event> events = new ArrayList<Event>();
+
+        for( int i=0; i<matches.getLength(); i++ ) {
+            Event event = toEvent(matches.item(i));
+
+            if( event != null ) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Takes the server's time zone from the offset of the newest event, which the watermark must be expressed in.
+     */
+    private void learnServerZone(@Nonnull List<Event> events) {
+        Date newest = null;
+
+        for( Event event : events ) {
+            if( event.created != null && event.offset != null && (newest == null || event.created.after(newest)) ) {
+                newest = event.created;
+                serverZone = TimeZone.getTimeZone("GMT" + event.offset.substring(0, 3) + ":" + event.offset.substring(3));
+            }
+        }
+    }
+
+    /**
+     * Lists the events since the watermark that have not been seen yet. The events are listed newest first, so events
+     * logged while the listing runs push older ones onto later pages, and purged events pull them onto earlier ones.
+     * The pages are therefore read one after another, and a listing that ends up with fewer distinct events than the
+     * count the server reported has skipped some of them.
+     * @return the new events, or <code>null</code> if the listing may have skipped events
+     */
+    private @Nullable List<Event> listEvents() throws CloudException, InternalException {
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+        fmt.setTimeZone(serverZone == null ? TimeZone.getDefault() : serverZone);
+        final Map<String,Event> listed = new LinkedHashMap<String,Event>();
+        final int[] unidentified = new int[1];
+        CSMethod.ElementHandler handler = new CSMethod.ElementHandler() {
+            public void handle(@Nonnull Node node) {
+                Event event = toEvent(node);
+
+                if( event == null ) {
+                    unidentified[0]++;
+                }
+                else if( !listed.containsKey(event.id) ) {
+                    listed.put(event.id, event);
+                }
+            }
+        };
+        Param since = new Param("startdate", fmt.format(watermark));
+        int count = new CSMethod(provider).stream(LIST_EVENTS, "event", handler, since, new Param("pagesize", String.valueOf(CSPager.PAGE_SIZE)), new Param("page", "1"));
+        int pages = (count + CSPager.PAGE_SIZE - 1) / CSPager.PAGE_SIZE;
+
+        for( int page=2; page<=pages; page++ ) {
+            new CSMethod(provider).stream(LIST_EVENTS, "event", handler, since, new Param("pagesize", String.valueOf(CSPager.PAGE_SIZE)), new Param("page", String.valueOf(page)));
+        }
+        if( listed.size() + unidentified[0] < count ) {
+            return null;
+        }
+        List<Event> events = new ArrayList<Event>();
+
+        for( Event event : listed.values() ) {
+            if( !seen.containsKey(event.id) ) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Moves the watermark to the newest event, less the overlap, and forgets event ids that fall before it.
+     */
+    private void advance(@Nonnull List<Event> events, long now) {
+        Date newest = null;
+
+        for( Event event : events ) {
+            Date created = (event.created == null ? new Date(now) : event.created);
+
+            seen.put(event.id, created);
+            if( newest == null || created.after(newest) ) {
+                newest = created;
+            }
+        }
+        if( newest != null ) {
+            Date mark = new Date(newest.getTime() - OVERLAP);
+
+            if( mark.after(watermark) ) {
+                watermark = mark;
+            }
+        }
+        for( Iterator<Map.Entry<String,Date>> it = seen.entrySet().iterator(); it.hasNext(); ) {
+            if( it.next().getValue().before(watermark) ) {
+                it.remove();
+            }
+        }
+        lastSync = now;
+    }
+
+    /**
+     * @return whether some of the ids are expected to name resources of the kind, i.e. they are not all ids of tagged
+     * resources, which may be of another kind, or of invalidated resources, which may be gone
+     */
+    static private boolean isExpected(@Nonnull Set<String> ids, @Nonnull Set<String> tagged, @Nonnull Set<String> invalidated) {
+        for( String id : ids ) {
+            if( !tagged.contains(id) && !invalidated.contains(id) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static private boolean isTagEvent(@Nullable String type) {
+        return (type != null && (type.equals("CREATE_TAGS") || type.equals("DELETE_TAGS")));
+    }
+
+    static private @Nullable Kind toKindOfResourceType(@Nonnull String resourceType) {
+        if( resourceType.equalsIgnoreCase("UserVm") ) {
+            return Kind.VM;
+        }
+        if( resourceType.equalsIgnoreCase("Volume") ) {
+            return Kind.VOLUME;
+        }
+        if( resourceType.equalsIgnoreCase("PublicIpAddress") ) {
+            return Kind.ADDRESS;
+        }
+        if( resourceType.equalsIgnoreCase("SecurityGroup") ) {
+            return Kind.FIREWALL;
+        }
+        return null;
+    }
+
+    static private @Nullable Kind toKind(@Nullable String type) {
+        if( type == null ) {
+            return null;
+        }
+        if( type.startsWith("VM.") ) {
+            return Kind.VM;
+        }
+        if( type.startsWith("VOLUME.") ) {
+            return Kind.VOLUME;
+        }
+        if( type.equals("NET.IPASSIGN") || type.equals("NET.IPRELEASE") || type.startsWith("STATICNAT.") ) {
+            return Kind.ADDRESS;
+        }
+        if( type.startsWith("SG.") ) {
+            return Kind.FIREWALL;
+        }
+        return null;
+    }
+
+    /**
+     * Event descriptions name the resources they concern (e.g. "Vm Id: 3f2c...") but not in a structured way, so
+     * UUIDs are taken where present and numeric <code>id:</code> references otherwise.
+     */
+    static @Nonnull Collection<String> extractIds(@Nullable String description) {
+        Set<String> ids = new LinkedHashSet<String>();
+
+        if( description == null ) {
+            return ids;
+        }
+        Matcher m = UUID.matcher(description);
+
+        while( m.find() ) {
+            ids.add(m.group());
+        }
+        if( ids.isEmpty() ) {
+            m = NUMERIC_ID.matcher(description);
+            while( m.find() ) {
+                ids.add(m.group(1));
+            }
+        }
+        return ids;
+    }
+
+    static private @Nullable Event toEvent(@Nonnull Node node) {
+        NodeList attributes = node.getChildNodes();
+        Event event = new Event();
+
+        for( int i=0; i<attributes.getLength(); i++ ) {
+            Node attribute = attributes.item(i);
+
+            if( !attribute.hasChildNodes() ) {
+                continue;
+            }
+            String name = attribute.getNodeName().toLowerCase();
+            String value = attribute.getFirstChild().getNodeValue().trim();
+
+            if( name.equals("id") ) {
+                event.id = value;
+            }
+            else if( name.equals("type") ) {
+                event.type = value;
+            }
+            else if( name.equals("state") ) {
+                event.state = value;
+            }
+            else if( name.equals("description") ) {
+                event.description = value;
+            }
+            else if( name.equals("created") ) {
+                DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ"); //2009-02-03T05:26:32+0000
+
+                try {
+                    event.created = df.parse(value);
+                    if( value.length() > 5 && (value.charAt(value.length() - 5) == '+' || value.charAt(value.length() - 5) == '-') ) {
+                        event.offset = value.substring(value.length() - 5);
+                    }
+                }
+                catch( ParseException e ) {
+                    logger.warn("Invalid event date: " + value);
+                }
+            }
+        }
+        return (event.id == null ? null : event);
+    }
+
+    private @Nonnull VirtualMachines getVirtualMachineSupport() {
+        return provider.getComputeServices().getVirtualMachineSupport();
+    }
+
+    private @Nonnull Volumes getVolumeSupport() {
+        return provider.getComputeServices().getVolumeSupport();
+    }
+}
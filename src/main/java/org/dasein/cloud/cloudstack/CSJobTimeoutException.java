@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import org.dasein.cloud.CloudErrorType;
+import org.dasein.cloud.CloudException;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Raised when an asynchronous job has not finished within the deadline of its {@link CSPollingPolicy}. The job
+ * itself may still complete in the cloud.
+ */
+public class CSJobTimeoutException extends CloudException {
+    private final String jobId;
+
+    public CSJobTimeoutException(@Nonnull String jobId, @Nonnull String jobName, long timeout) {
+        super(CloudErrorType.GENERAL, 408, "408", jobName + " (job " + jobId + ") did not complete within " + (timeout / 1000L) + " seconds");
+        this.jobId = jobId;
+    }
+
+    public @Nonnull String getJobId() {
+        return jobId;
+    }
+}
@@ -0,0 +1,597 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.util.APITrace;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Tracks the outstanding asynchronous jobs of a {@link CSCloud} instance from a single scheduler thread. Rather
+ * than every waiting caller polling <code>queryAsyncJobResult</code> on its own, each tick resolves the status of all
+ * jobs that are due with one <code>listAsyncJobs</code> listing and only fetches the full result of jobs that have
+ * finished. Jobs the listing does not account for, or every job if the listing is unavailable, fall back to
+ * individual queries. Each job is polled on the schedule of its own {@link CSPollingPolicy} and fails with a
+ * {@link CSJobTimeoutException} once the policy's deadline passes.
+ */
+public class CSJobTracker {
+    static private final Logger logger = CSCloud.getLogger(CSJobTracker.class, "std");
+
+    static public final String LIST_ASYNC_JOBS        = "listAsyncJobs";
+    static public final String QUERY_ASYNC_JOB_RESULT = "queryAsyncJobResult";
+
+    /**
+     * Notified once a tracked job has finished, for callers that do not want to block on the job's future. Callbacks
+     * run on the tracker's thread, so they must hand anything slow off to another thread.
+     */
+    static public interface Callback {
+        public void completed(@Nonnull Document result);
+
+        /**
+         * @param cause the failure, e.g. a {@link CSJobTimeoutException} if the job did not finish in time
+         */
+        public void failed(@Nonnull Throwable cause);
+    }
+
+    /**
+     * One caller's wait for a job. Several callers may wait for the same job; cancelling a wait detaches only that
+     * caller, and the job is only dropped once nobody is waiting for it any more.
+     */
+    private class Waiter implements Future<Document>, Callback {
+        private final Job            job;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Document             result;
+        private Throwable            error;
+        private boolean              cancelled;
+
+        Waiter(@Nonnull Job job) {
+            this.job = job;
+        }
+
+        public synchronized void completed(@Nonnull Document result) {
+            if( !isDone() ) {
+                this.result = result;
+                done.countDown();
+            }
+        }
+
+        public synchronized void failed(@Nonnull Throwable cause) {
+            if( !isDone() ) {
+                this.error = cause;
+                done.countDown();
+            }
+        }
+
+        /**
+         * Stops waiting for the job. The job keeps running in the cloud, and other callers waiting for it are not
+         * affected.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized( this ) {
+                if( isDone() ) {
+                    return false;
+                }
+                cancelled = true;
+                done.countDown();
+            }
+            job.detach(this);
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return (done.getCount() == 0);
+        }
+
+        @Override
+        public Document get() throws InterruptedException, ExecutionException {
+            done.await();
+            return getResult();
+        }
+
+        @Override
+        public Document get(long timeout, @Nonnull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if( !done.await(timeout, unit) ) {
+                throw new TimeoutException(job.jobName + " (" + job.jobId + ") did not complete in time");
+            }
+            return getResult();
+        }
+
+        private synchronized Document getResult() throws ExecutionException {
+            if( cancelled ) {
+                throw new CancellationException(job.jobName + " (" + job.jobId + ") is no longer being waited for");
+            }
+            if( error != null ) {
+                throw new ExecutionException(error);
+            }
+            return result;
+        }
+    }
+
+    private class Job {
+        private final String          jobId;
+        private final String          jobName;
+        private final CSPollingPolicy policy;
+        private final long            registered = System.currentTimeMillis();
+        private final long            deadline;
+        private final CountDownLatch  done       = new CountDownLatch(1);
+        private int                   attempts;
+        private long                  nextPoll;
+        private volatile Document     result;
+        private volatile Throwable    error;
+        private List<Callback>        callbacks = new ArrayList<Callback>();
+
+        Job(@Nonnull String jobId, @Nonnull String jobName, @Nonnull CSPollingPolicy policy) {
+            this.jobId = jobId;
+            this.jobName = jobName;
+            this.policy = policy;
+            this.deadline = registered + policy.getTimeout();
+            this.nextPoll = registered + policy.getDelay(0);
+        }
+
+        void complete(@Nonnull Document doc) {
+            result = doc;
+            done.countDown();
+            notifyCallbacks();
+        }
+
+        void fail(@Nonnull Throwable t) {
+            error = t;
+            done.countDown();
+            notifyCallbacks();
+        }
+
+        /**
+         * Adds a callback to be notified once the job finishes. Must be called while holding the lock on
+         * <code>jobs</code>, so that the job cannot be dropped for lack of callbacks in the meantime.
+         * @return <code>false</code> if the job has already finished, in which case the caller must notify the
+         * callback itself
+         */
+        synchronized boolean attach(@Nonnull Callback callback) {
+            if( callbacks == null ) {
+                return false;
+            }
+            callbacks.add(callback);
+            return true;
+        }
+
+        /**
+         * Removes a callback, and stops tracking the job once no callbacks are left.
+         */
+        void detach(@Nonnull Callback callback) {
+            synchronized( jobs ) {
+                synchronized( this ) {
+                    if( callbacks == null ) {
+                        return;
+                    }
+                    callbacks.remove(callback);
+                    if( callbacks.isEmpty() && jobs.get(jobId) == this ) {
+                        jobs.remove(jobId);
+                    }
+                }
+            }
+        }
+
+        private void notifyCallbacks() {
+            List<Callback> list;
+
+            synchronized( this ) {
+                list = callbacks;
+                callbacks = null;
+            }
+            if( list != null ) {
+                for( Callback callback : list ) {
+                    notify(callback);
+                }
+            }
+        }
+
+        private void notify(@Nonnull Callback callback) {
+            try {
+                if( error != null ) {
+                    callback.failed(error);
+                }
+                else {
+                    callback.completed(result);
+                }
+            }
+            catch( Throwable t ) {
+                logger.error("Callback for " + jobName + " (" + jobId + ") failed: " + t.getMessage(), t);
+            }
+        }
+
+        boolean isDone() {
+            return (done.getCount() == 0);
+        }
+    }
+
+    private final CSCloud provider;
+    private final Map<String,Job> jobs = new HashMap<String,Job>();
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> tick;
+    private long tickAt;
+    private long tickCount;
+    private volatile boolean bulkSupported = true;
+
+    public CSJobTracker(@Nonnull CSCloud provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * Starts tracking the job. Registering a job that is already being tracked waits for the same job.
+     * @param jobId the ID of the asynchronous job
+     * @param jobName a readable name for the job used in error messages
+     * @param policy the polling schedule and deadline for the job
+     * @return a future completed with the <code>queryAsyncJobResult</code> response once the job succeeds, or with
+     * the same {@link CSException}/{@link CloudException} {@link CSCloud#waitForJob(String, String)} raises if it fails;
+     * cancelling the future stops this caller's wait, and stops tracking the job if nobody else is waiting for it
+     */
+    public @Nonnull Future<Document> track(@Nonnull String jobId, @Nonnull String jobName, @Nonnull CSPollingPolicy policy) {
+        return track(jobId, jobName, policy, null);
+    }
+
+    /**
+     * Starts tracking the job and notifies the callback when it finishes.
+     * @param jobId the ID of the asynchronous job
+     * @param jobName a readable name for the job used in error messages
+     * @param policy the polling schedule and deadline for the job
+     * @param callback notified on the tracker's thread once the job has finished, if any
+     * @return the future of the job, as with {@link #track(String, String, CSPollingPolicy)}
+     */
+    public @Nonnull Future<Document> track(@Nonnull String jobId, @Nonnull String jobName, @Nonnull CSPollingPolicy policy, @Nullable Callback callback) {
+        Job job;
+        Waiter waiter;
+        boolean waiting, notifying;
+
+        synchronized( jobs ) {
+            job = jobs.get(jobId);
+            if( job == null ) {
+                job = new Job(jobId, jobName, policy);
+                jobs.put(jobId, job);
+            }
+            waiter = new Waiter(job);
+            waiting = job.attach(waiter);
+            notifying = (callback == null || job.attach(callback));
+            schedule();
+        }
+        // the job may have finished before the attach
+        if( !waiting ) {
+            job.notify(waiter);
+        }
+        if( !notifying ) {
+            job.notify(callback);
+        }
+        return waiter;
+    }
+
+    public void shutdown() {
+        List<Job> stopped;
+
+        synchronized( jobs ) {
+            if( scheduler != null ) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+            stopped = new ArrayList<Job>(jobs.values());
+            jobs.clear();
+            tick = null;
+        }
+        // failing a job runs its callbacks, which must not hold up others waiting for the lock
+        for( Job job : stopped ) {
+            job.fail(new CloudException("Stopped tracking " + job.jobName + " (" + job.jobId + ") because the provider was closed"));
+        }
+    }
+
+    /**
+     * Makes sure a tick is scheduled for the earliest due job. Must be called while holding the lock on
+     * <code>jobs</code>.
+     */
+    private void schedule() {
+        if( jobs.isEmpty() ) {
+            return;
+        }
+        long next = Long.MAX_VALUE;
+
+        for( Job job : jobs.values() ) {
+            next = Math.min(next, Math.min(job.nextPoll, job.deadline));
+        }
+        if( tick != null ) {
+            if( tickAt <= next ) {
+                return;
+            }
+            // a newly tracked job is due before the pending tick
+            tick.cancel(false);
+        }
+        if( scheduler == null ) {
+            final String name = "CloudStack-Jobs-" + provider.getCloudName();
+
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(@Nonnull Runnable r) {
+                    Thread t = new Thread(r, name);
+
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+            // as with the provider's executor, an idle tracker should not keep a thread around
+            executor.setKeepAliveTime(60L, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            scheduler = executor;
+        }
+        final long current = ++tickCount;
+
+        tickAt = next;
+        tick = scheduler.schedule(new Runnable() {
+            public void run() {
+                synchronized( jobs ) {
+                    if( tickCount == current ) {
+                        tick = null;
+                    }
+                }
+                try {
+                    poll();
+                }
+                catch( Throwable t ) {
+                    logger.error("Unexpected error polling async jobs: " + t.getMessage(), t);
+                }
+                finally {
+                    synchronized( jobs ) {
+                        if( tick == null ) {
+                            schedule();
+                        }
+                    }
+                }
+            }
+        }, Math.max(0L, next - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        List<Job> due = new ArrayList<Job>();
+        long now = System.currentTimeMillis();
+
+        synchronized( jobs ) {
+            for( Job job : new ArrayList<Job>(jobs.values()) ) {
+                if( now >= job.deadline ) {
+                    jobs.remove(job.jobId);
+                    job.fail(new CSJobTimeoutException(job.jobId, job.jobName, job.policy.getTimeout()));
+                }
+                else if( now >= job.nextPoll ) {
+                    due.add(job);
+                }
+            }
+        }
+        if( due.isEmpty() ) {
+            return;
+        }
+        APITrace.begin(provider, "CSJobTracker.poll");
+        try {
+            Map<String,Integer> statuses = null;
+
+            if( due.size() > 1 && bulkSupported ) {
+                statuses = listJobStatuses(due);
+            }
+            for( Job job : due ) {
+                Integer status = (statuses == null ? null : statuses.get(job.jobId));
+
+                if( job.isDone() ) {
+                    continue;
+                }
+                if( status == null || status != 0 ) {
+                    try {
+                        Document doc = new CSMethod(provider).get(QUERY_ASYNC_JOB_RESULT, new Param("jobId", job.jobId));
+
+                        if( checkJobResult(doc, job.jobName) != null ) {
+                            finish(job).complete(doc);
+                            continue;
+                        }
+                    }
+                    catch( Throwable t ) {
+                        finish(job).fail(t);
+                        continue;
+                    }
+                }
+                synchronized( jobs ) {
+                    job.attempts++;
+                    job.nextPoll = System.currentTimeMillis() + job.policy.getDelay(job.attempts);
+                }
+            }
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    private @Nonnull Job finish(@Nonnull Job job) {
+        synchronized( jobs ) {
+            jobs.remove(job.jobId);
+        }
+        return job;
+    }
+
+    /**
+     * Pages through <code>listAsyncJobs</code> until every pending job has been found or the listing is exhausted.
+     * @return the status of each pending job found in the listing, or <code>null</code> if the listing failed
+     */
+    private @Nullable Map<String,Integer> listJobStatuses(@Nonnull List<Job> pending) {
+        long earliest = System.currentTimeMillis();
+
+        for( Job job : pending ) {
+            earliest = Math.min(earliest, job.registered);
+        }
+        // back off a day so the server's time zone cannot hide jobs started around midnight
+        String startDate = new SimpleDateFormat("yyyy-MM-dd").format(new Date(earliest - TimeUnit.DAYS.toMillis(1)));
+        final Map<String,Integer> statuses = new HashMap<String,Integer>();
+        Set<String> wanted = new HashSet<String>();
+
+        for( Job job : pending ) {
+            wanted.add(job.jobId);
+        }
+        try {
+            CSMethod.ElementHandler handler = new CSMethod.ElementHandler() {
+                public void handle(@Nonnull Node node) throws CloudException, InternalException {
+                    NodeList attributes = node.getChildNodes();
+                    String jobId = null;
+                    Integer status = null;
+
+                    for( int i = 0; i < attributes.getLength(); i++ ) {
+                        Node attribute = attributes.item(i);
+                        String name = attribute.getNodeName();
+
+                        if( !attribute.hasChildNodes() ) {
+                            continue;
+                        }
+                        if( name.equalsIgnoreCase("jobid") ) {
+                            jobId = attribute.getFirstChild().getNodeValue().trim();
+                        }
+                        else if( name.equalsIgnoreCase("jobstatus") ) {
+                            try {
+                                status = Integer.parseInt(attribute.getFirstChild().getNodeValue().trim());
+                            }
+                            catch( NumberFormatException ignore ) {
+                                // leave it to the individual query
+                            }
+                        }
+                    }
+                    if( jobId != null && status != null ) {
+                        statuses.put(jobId, status);
+                    }
+                }
+            };
+            int page = 1, pages;
+
+            do {
+                int count = new CSMethod(provider).stream(LIST_ASYNC_JOBS, "asyncjobs", handler, new Param("startdate", startDate), new Param("pagesize", String.valueOf(CSPager.PAGE_SIZE)), new Param("page", String.valueOf(page)));
+
+                pages = (count + CSPager.PAGE_SIZE - 1) / CSPager.PAGE_SIZE;
+                page++;
+            } while( page <= pages && !statuses.keySet().containsAll(wanted) );
+            return statuses;
+        }
+        catch( CSException e ) {
+            int code = e.getHttpCode();
+
+            if( code >= 400 && code < 500 ) {
+                logger.warn("listAsyncJobs is not available (" + code + "), polling jobs individually: " + e.getMessage());
+                bulkSupported = false;
+            }
+            else {
+                logger.warn("Unable to list async jobs, polling individually: " + e.getMessage());
+            }
+        }
+        catch( Throwable t ) {
+            logger.warn("Unable to list async jobs, polling individually: " + t.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Interprets a <code>queryAsyncJobResult</code> response.
+     * @param doc the response
+     * @param jobName a readable name for the job used in error messages
+     * @return the response if the job succeeded, <code>null</code> if it is still pending
+     * @throws CloudException the job failed
+     */
+    static @Nullable Document checkJobResult(@Nonnull Document doc, @Nonnull String jobName) throws CloudException {
+        NodeList matches = doc.getElementsByTagName("jobstatus");
+        int status = 0;
+
+        if( matches.getLength() > 0 ) {
+            status = Integer.parseInt(matches.item(0).getFirstChild().getNodeValue());
+        }
+        if( status > 0 ) {
+            int code = status;
+
+            if( status == 1 ) {
+                return doc;
+            }
+            if( status == 2 ) {
+                matches = doc.getElementsByTagName("jobresult");
+                if( matches.getLength() > 0 ) {
+                    String str = matches.item(0).getFirstChild().getNodeValue();
+
+                    if( str == null || str.trim().length() < 1 ) {
+                        NodeList nodes = matches.item(0).getChildNodes();
+                        String message = null;
+
+                        for( int i=0; i<nodes.getLength(); i++ ) {
+                            Node n = nodes.item(i);
+
+                            if( n.getNodeName().equalsIgnoreCase("errorcode") ) {
+                                try {
+                                    code = Integer.parseInt(n.getFirstChild().getNodeValue().trim());
+                                }
+                                catch( NumberFormatException ignore ) {
+                                    // ignore
+                                }
+                            }
+                            else if( n.getNodeName().equalsIgnoreCase("errortext") ) {
+                                message = n.getFirstChild().getNodeValue().trim();
+                            }
+                        }
+                        CSMethod.ParsedError error = new CSMethod.ParsedError();
+
+                        error.code = code;
+                        error.message = message;
+                        throw new CSException(error);
+                    }
+                    else {
+                        throw new CloudException(str);
+                    }
+                }
+                else {
+                    throw new CloudException(jobName + " failed with an unexplained error.");
+                }
+            }
+        }
+        return null;
+    }
+}
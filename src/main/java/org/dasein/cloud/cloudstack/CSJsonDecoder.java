@@ -0,0 +1,390 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Single-pass decoder for CloudStack <code>response=json</code> payloads. The JSON is tokenized straight off the
+ * reader and mapped onto the same DOM shape the XML API produces: object members become child elements, arrays
+ * become repeated elements with the member's name and scalars become text. This lets every existing
+ * <code>toXXX(Node)</code> converter consume JSON responses without modification.
+ * <p>Instances are single-use and not thread safe.</p>
+ */
+public class CSJsonDecoder {
+    static private final int BUFFER_SIZE = 8192;
+
+    private Reader   reader;
+    private char[]   buffer = new char[BUFFER_SIZE];
+    private int      position;
+    private int      limit;
+    private Document doc;
+
+    public CSJsonDecoder(@Nonnull Reader reader) throws InternalException {
+        this.reader = reader;
+        try {
+            doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        }
+        catch( ParserConfigurationException e ) {
+            throw new InternalException(e);
+        }
+    }
+
+    /**
+     * Decodes the whole response into a document whose root element is named after the single top-level member
+     * (e.g. <code>listvirtualmachinesresponse</code>).
+     * @return the decoded document
+     * @throws CloudException the response was not valid JSON
+     * @throws IOException an error occurred reading the response
+     */
+    public @Nonnull Document toDocument() throws CloudException, IOException {
+        expect('{');
+        if( peek() != '}' ) {
+            Element root = doc.createElement(readString());
+
+            expect(':');
+            doc.appendChild(root);
+            if( peek() == '{' ) {
+                readMembers(root);
+            }
+            else {
+                skipValue();
+            }
+        }
+        return doc;
+    }
+
+    /**
+     * Walks the response and hands each item named <code>elementName</code> directly below the response object to
+     * the handler as a detached element, without building the rest of the response.
+     * @param elementName the name of the list items (e.g. "virtualmachine")
+     * @param handler the callback for each item
+     * @return the value of the <code>count</code> member, or the number of items handled if there was none
+     * @throws CloudException the response was not valid JSON or the handler failed
+     * @throws InternalException the handler failed
+     * @throws IOException an error occurred reading the response
+     */
+    public int stream(@Nonnull String elementName, @Nonnull CSMethod.ElementHandler handler) throws CloudException, InternalException, IOException {
+        int total = -1, handled = 0;
+
+        expect('{');
+        if( peek() == '}' ) {
+            return 0;
+        }
+        readString();
+        expect(':');
+        if( peek() != '{' ) {
+            skipValue();
+            return 0;
+        }
+        expect('{');
+        if( peek() == '}' ) {
+            return 0;
+        }
+        do {
+            String name = readString();
+
+            expect(':');
+            if( name.equals(elementName) ) {
+                if( peek() == '[' ) {
+                    expect('[');
+                    if( peek() != ']' ) {
+                        do {
+                            Element item = readItem(name);
+
+                            if( item != null ) {
+                                handler.handle(item);
+                                handled++;
+                            }
+                        } while( nextMember(']') );
+                    }
+                    else {
+                        expect(']');
+                    }
+                }
+                else {
+                    Element item = readItem(name);
+
+                    if( item != null ) {
+                        handler.handle(item);
+                        handled++;
+                    }
+                }
+            }
+            else if( name.equals("count") ) {
+                String value = readScalar();
+
+                if( value != null ) {
+                    try {
+                        total = Integer.parseInt(value.trim());
+                    }
+                    catch( NumberFormatException e ) {
+                        throw new CloudException("Received an invalid count from server: " + value);
+                    }
+                }
+            }
+            else {
+                skipValue();
+            }
+        } while( nextMember('}') );
+        return (total > -1 ? total : handled);
+    }
+
+    private @Nullable Element readItem(@Nonnull String name) throws CloudException, IOException {
+        Element holder = doc.createElement(name);
+
+        appendValue(holder, name);
+        Node item = holder.getFirstChild();
+
+        return (item instanceof Element ? ( Element ) item : null);
+    }
+
+    private void appendValue(@Nonnull Element parent, @Nonnull String name) throws CloudException, IOException {
+        int c = peek();
+
+        if( c == '[' ) {
+            expect('[');
+            if( peek() == ']' ) {
+                expect(']');
+                return;
+            }
+            do {
+                appendValue(parent, name);
+            } while( nextMember(']') );
+            return;
+        }
+        Element element;
+
+        try {
+            element = doc.createElement(name);
+        }
+        catch( DOMException e ) {
+            // member names that cannot be XML element names would not have shown up in the XML response either
+            skipValue();
+            return;
+        }
+        if( c == '{' ) {
+            readMembers(element);
+        }
+        else {
+            String value = readScalar();
+
+            if( value == null ) {
+                return;
+            }
+            element.appendChild(doc.createTextNode(value));
+        }
+        parent.appendChild(element);
+    }
+
+    private void readMembers(@Nonnull Element element) throws CloudException, IOException {
+        expect('{');
+        if( peek() == '}' ) {
+            expect('}');
+            return;
+        }
+        do {
+            String name = readString();
+
+            expect(':');
+            appendValue(element, name);
+        } while( nextMember('}') );
+    }
+
+    private void skipValue() throws CloudException, IOException {
+        int c = peek();
+
+        if( c == '{' ) {
+            expect('{');
+            if( peek() == '}' ) {
+                expect('}');
+                return;
+            }
+            do {
+                readString();
+                expect(':');
+                skipValue();
+            } while( nextMember('}') );
+        }
+        else if( c == '[' ) {
+            expect('[');
+            if( peek() == ']' ) {
+                expect(']');
+                return;
+            }
+            do {
+                skipValue();
+            } while( nextMember(']') );
+        }
+        else {
+            readScalar();
+        }
+    }
+
+    /**
+     * Consumes the separator after a member or array item.
+     * @param close the character closing the current object or array
+     * @return true if another member follows, false if the object or array was closed
+     */
+    private boolean nextMember(char close) throws CloudException, IOException {
+        int c = next();
+
+        if( c == ',' ) {
+            return true;
+        }
+        if( c == close ) {
+            return false;
+        }
+        throw unexpected(c);
+    }
+
+    /**
+     * @return the text of a string, number or boolean, or <code>null</code> for a JSON null
+     */
+    private @Nullable String readScalar() throws CloudException, IOException {
+        int c = peek();
+
+        if( c == '"' ) {
+            return readString();
+        }
+        StringBuilder str = new StringBuilder();
+
+        while( true ) {
+            c = read();
+            if( c == -1 ) {
+                break;
+            }
+            if( c == ',' || c == '}' || c == ']' || Character.isWhitespace(c) ) {
+                position--;
+                break;
+            }
+            str.append(( char ) c);
+        }
+        if( str.length() < 1 ) {
+            throw unexpected(c);
+        }
+        String value = str.toString();
+
+        return (value.equals("null") ? null : value);
+    }
+
+    private @Nonnull String readString() throws CloudException, IOException {
+        expect('"');
+        StringBuilder str = new StringBuilder();
+
+        while( true ) {
+            int c = read();
+
+            if( c == -1 ) {
+                throw new CloudException("Unterminated string in JSON response");
+            }
+            if( c == '"' ) {
+                return str.toString();
+            }
+            if( c != '\\' ) {
+                str.append(( char ) c);
+                continue;
+            }
+            c = read();
+            switch( c ) {
+                case '"': case '\\': case '/': str.append(( char ) c); break;
+                case 'b': str.append('\b'); break;
+                case 'f': str.append('\f'); break;
+                case 'n': str.append('\n'); break;
+                case 'r': str.append('\r'); break;
+                case 't': str.append('\t'); break;
+                case 'u':
+                    int code = 0;
+
+                    for( int i = 0; i < 4; i++ ) {
+                        int digit = Character.digit(read(), 16);
+
+                        if( digit < 0 ) {
+                            throw new CloudException("Invalid unicode escape in JSON response");
+                        }
+                        code = (code << 4) + digit;
+                    }
+                    str.append(( char ) code);
+                    break;
+                default: throw unexpected(c);
+            }
+        }
+    }
+
+    private void expect(char expected) throws CloudException, IOException {
+        int c = next();
+
+        if( c != expected ) {
+            throw unexpected(c);
+        }
+    }
+
+    private @Nonnull CloudException unexpected(int c) {
+        if( c == -1 ) {
+            return new CloudException("Unexpected end of JSON response");
+        }
+        return new CloudException("Unexpected character in JSON response: '" + (( char ) c) + "'");
+    }
+
+    /**
+     * @return the next non-whitespace character without consuming it, or -1 at the end of the stream
+     */
+    private int peek() throws IOException {
+        int c = next();
+
+        if( c != -1 ) {
+            position--;
+        }
+        return c;
+    }
+
+    private int next() throws IOException {
+        int c;
+
+        do {
+            c = read();
+        } while( c != -1 && Character.isWhitespace(c) );
+        return c;
+    }
+
+    private int read() throws IOException {
+        if( position >= limit ) {
+            limit = reader.read(buffer, 0, buffer.length);
+            position = 0;
+            if( limit < 1 ) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+}
@@ -20,41 +20,40 @@ package org.dasein.cloud.cloudstack;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.StringReader;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
-import java.security.SignatureException;
 import java.util.Date;
 import java.util.List;
-import java.util.Properties;
-import java.util.TreeSet;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.annotation.Nonnull;
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
+import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.http.*;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.conn.params.ConnRoutePNames;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
-import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 import org.dasein.cloud.CloudErrorType;
 import org.dasein.cloud.CloudException;
-import org.dasein.cloud.ContextRequirements;
 import org.dasein.cloud.InternalException;
 import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.util.APITrace;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.bootstrap.DOMImplementationRegistry;
@@ -68,6 +67,33 @@ public class CSMethod {
         public String message;
     }
 
+    /**
+     * Callback for {@link CSMethod#stream(String, String, ElementHandler, Param...)}, invoked once per list item
+     * in the order the items appear in the response.
+     */
+    static public interface ElementHandler {
+        public void handle(@Nonnull Node node) throws CloudException, InternalException;
+    }
+
+    static private interface ResponseReader<T> {
+        public T read(int status, @Nonnull HttpEntity entity) throws CloudException, InternalException, IOException;
+    }
+
+    static private final XMLInputFactory xmlInputFactory;
+
+    static {
+        xmlInputFactory = XMLInputFactory.newInstance();
+        // merge adjacent text events so text nodes look exactly like they do in a parsed DOM
+        xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    /**
+     * Read-only requests currently on the wire, keyed by their signed URL (endpoint, API key, command and sorted
+     * parameters), so that identical concurrent requests share a single round trip.
+     */
+    static private final ConcurrentHashMap<String,FutureTask<String>> inFlight = new ConcurrentHashMap<String,FutureTask<String>>();
+
     static public final String CREATE_KEYPAIR = "createSSHKeyPair";
     static public final String DELETE_KEYPAIR = "deleteSSHKeyPair";
     static public final String LIST_KEYPAIRS  = "listSSHKeyPairs";
@@ -79,138 +105,263 @@ public class CSMethod {
     private String buildUrl(String command, Param ... params) throws CloudException, InternalException {
         ProviderContext ctx = provider.getContext();
 
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        StringBuilder str = new StringBuilder(256);
 
-        String apiShared = "";
-        String apiSecret = "";
-        try {
-            List<ContextRequirements.Field> fields = provider.getContextRequirements().getConfigurableValues();
-            for( ContextRequirements.Field f : fields ) {
-                if( f.type.equals(ContextRequirements.FieldType.KEYPAIR) ) {
-                    byte[][] keyPair = ( byte[][] ) ctx.getConfigurationValue(f);
-                    apiShared = new String(keyPair[0], "utf-8");
-                    apiSecret = new String(keyPair[1], "utf-8");
-                }
-            }
+        str.append(ctx.getCloud().getEndpoint());
+
+        // Make sure the url ends up exactly as http://x.x.x.x:y/client/api?command=
+        // otherwise the server may choke like we've found it does for uploadSslCert command.
+        while( str.lastIndexOf("/") == str.length()-1 ) {
+            str.deleteCharAt(str.length()-1);
         }
-        catch( UnsupportedEncodingException ignore ) {
+        if( !str.toString().endsWith("/api") ) {
+            str.append("/api");
         }
+        str.append("?");
+        provider.getSigner().sign(str, command, params);
+        return str.toString();
+    }
 
-        if( ctx == null ) {
-            throw new CloudException("No context was set for this request");
-        }
-        try {
-            StringBuilder str = new StringBuilder();
-            String apiKey = apiShared;
-            String accessKey = apiSecret;
+    protected @Nonnull HttpClient getClient( String url ) throws InternalException {
+        return provider.getHttpClient();
+    }
 
-            StringBuilder newKey = new StringBuilder();
-            for( int i = 0; i < apiKey.length(); i++ ) {
-                char c = apiKey.charAt(i);
+    public @Nonnull Document get(@Nonnull String command, @Nonnull List<Param> params) throws CloudException, InternalException {
+        return get(command, params.toArray(new Param[params.size()]));
+    }
 
-                if( c != '\r' ) {
-                    newKey.append(c);
+    /**
+     * Executes the command and parses the response. Concurrent calls for the same read-only command with the same
+     * parameters and credentials share one HTTP request; each caller still gets its own parsed document, as DOM
+     * trees are not safe to read from several threads.
+     * @param command the API command to execute
+     * @param params the parameters for the command
+     * @return the parsed response
+     * @throws CloudException an error occurred with the cloud provider while executing the command
+     * @throws InternalException an error occurred locally while executing or parsing the command
+     */
+    public @Nonnull Document get(@Nonnull final String command, Param ... params) throws CloudException, InternalException {
+        params = withResponseFormat(params);
+        final boolean json = isJson(params);
+        final String url = buildUrl(command, params);
+
+        if( !isReadOnly(command) ) {
+            return execute(command, url, new ResponseReader<Document>() {
+                public Document read(int status, @Nonnull HttpEntity entity) throws CloudException, InternalException, IOException {
+                    return parseResponse(status, (json ? EntityUtils.toString(entity, "utf-8") : EntityUtils.toString(entity)), json);
                 }
-            }
-            apiKey = newKey.toString();
-            newKey = new StringBuilder();
-            for( int i = 0; i < accessKey.length(); i++ ) {
-                char c = accessKey.charAt(i);
+            });
+        }
+        String body = fetch(command, url, json);
 
-                if( c != '\r' ) {
-                    newKey.append(c);
-                }
+        return (body == null ? null : parseResponse(HttpServletResponse.SC_OK, body, json));
+    }
+
+    /**
+     * Executes a read-only command whose response rarely changes, such as <code>listServiceOfferings</code> or
+     * <code>listOsTypes</code>. When a {@link CSCatalogStore} is configured the response may be served from disk
+     * and revalidated in the background; otherwise this is the same as {@link #get(String, Param...)}.
+     * @param command the API command to execute
+     * @param params the parameters for the command
+     * @return the parsed response
+     * @throws CloudException an error occurred with the cloud provider while executing the command
+     * @throws InternalException an error occurred locally while executing or parsing the command
+     */
+    public @Nonnull Document getCatalog(@Nonnull final String command, Param ... params) throws CloudException, InternalException {
+        CSCatalogStore store = CSCatalogStore.getInstance(provider);
+
+        if( store == null ) {
+            return get(command, params);
+        }
+        params = withResponseFormat(params);
+        final boolean json = isJson(params);
+        // signed now, so a background revalidation runs with these credentials whatever the context is by then
+        final String url = buildUrl(command, params);
+        StringBuilder key = new StringBuilder(command);
+
+        for( Param param : params ) {
+            key.append('&').append(param.getKey()).append('=').append(param.getValue());
+        }
+        String body = store.get(key.toString(), provider, new Callable<String>() {
+            public String call() throws CloudException, InternalException {
+                return fetch(command, url, json);
             }
-            accessKey = newKey.toString();
-            str.append(ctx.getCloud().getEndpoint());
-
-            // Make sure the url ends up exactly as http://x.x.x.x:y/client/api?command=
-            // otherwise the server may choke like we've found it does for uploadSslCert command.
-            while( str.lastIndexOf("/") == str.length()-1 ) {
-                str.deleteCharAt(str.length()-1);
-            }
-            if( !str.toString().endsWith("/api") ) {
-                str.append("/api");
-            }
-            str.append("?command=");
-            str.append(command);
-            for( Param param : params ) {
-                str.append("&");
-                str.append(param.getKey());
-                if( param.getValue() != null ) {
-                    str.append("=");
-                    str.append(URLEncoder.encode(param.getValue(), "UTF-8").replaceAll("\\+", "%20"));
-                }
+        });
+
+        return (body == null ? null : parseResponse(HttpServletResponse.SC_OK, body, json));
+    }
+
+    /**
+     * Reads the raw response body. Callers that ask for the same URL at the same time share one request.
+     */
+    private @Nullable String fetch(@Nonnull final String command, @Nonnull final String url, final boolean json) throws CloudException, InternalException {
+        FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+            public String call() throws CloudException, InternalException {
+                return execute(command, url, new ResponseReader<String>() {
+                    public String read(int status, @Nonnull HttpEntity entity) throws IOException {
+                        return (json ? EntityUtils.toString(entity, "utf-8") : EntityUtils.toString(entity));
+                    }
+                });
             }
-            str.append("&apiKey=");
-            str.append(URLEncoder.encode(apiKey, "UTF-8").replaceAll("\\+", "%20"));
-            str.append("&signature=");
+        });
+        FutureTask<String> shared = inFlight.putIfAbsent(url, task);
+
+        if( shared == null ) {
+            shared = task;
             try {
-                str.append(URLEncoder.encode(getSignature(command, apiKey, accessKey, params), "UTF-8").replaceAll("\\+", "%20"));
+                task.run();
             }
-            catch( SignatureException e ) {
-                throw new InternalException(e);
+            finally {
+                inFlight.remove(url, task);
             }
-            return str.toString();
         }
-        catch( UnsupportedEncodingException e ) {
-            e.printStackTrace();
-            throw new RuntimeException("This cannot happen: " + e.getMessage());
-        }
-    }
-
-    private byte[] calculateHmac( String data, String key ) throws SignatureException {
         try {
-            SecretKeySpec signingKey = new SecretKeySpec(key.getBytes(), "HmacSHA1");
-            Mac mac = Mac.getInstance("HmacSHA1");
-            mac.init(signingKey);
-
-            return mac.doFinal(data.getBytes());
+            return shared.get();
         }
-        catch( Exception e ) {
-            throw new SignatureException("Failed to generate HMAC : " + e.getMessage());
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while waiting for " + command);
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw ( CloudException ) cause;
+            }
+            if( cause instanceof InternalException ) {
+                throw ( InternalException ) cause;
+            }
+            throw new InternalException(cause);
         }
     }
 
-    protected @Nonnull HttpClient getClient( String url ) throws InternalException {
-        ProviderContext ctx = provider.getContext();
+    /**
+     * Only commands that cannot change anything may share a request with another caller. Everything that is not a
+     * <code>list</code> or <code>query</code> command (deploy, create, delete, associate and so on) always gets its own.
+     */
+    static private boolean isReadOnly(@Nonnull String command) {
+        String c = command.toLowerCase(Locale.ENGLISH);
 
-        if( ctx == null ) {
-            throw new InternalException("No context was specified for this request");
-        }
-        boolean ssl = url.startsWith("https");
-        HttpParams params = new BasicHttpParams();
+        return (c.startsWith("list") || c.startsWith("query"));
+    }
 
-        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
-        //noinspection deprecation
-        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
-        HttpProtocolParams.setUserAgent(params, "Dasein Cloud");
+    public @Nonnull Future<Document> getAsync(@Nonnull String command, @Nonnull List<Param> params) {
+        return getAsync(command, params.toArray(new Param[params.size()]));
+    }
 
-        Properties p = ctx.getCustomProperties();
+    /**
+     * Executes the command on the provider's executor rather than the calling thread. Signing, error mapping and
+     * response parsing are exactly those of {@link #get(String, Param...)}; failures surface as the cause of the
+     * {@link java.util.concurrent.ExecutionException} thrown by {@link Future#get()}.
+     * @param command the API command to execute
+     * @param params the parameters for the command
+     * @return a future holding the parsed response
+     */
+    public @Nonnull Future<Document> getAsync(@Nonnull final String command, @Nonnull final Param ... params) {
+        return provider.getExecutor().submit(new Callable<Document>() {
+            public Document call() throws CloudException, InternalException {
+                APITrace.begin(provider, "CSMethod.getAsync");
+                try {
+                    return get(command, params);
+                }
+                finally {
+                    APITrace.end();
+                }
+            }
+        });
+    }
 
-        if( p != null ) {
-            String proxyHost = p.getProperty("proxyHost");
-            String proxyPort = p.getProperty("proxyPort");
+    /**
+     * Streams a list response, handing each top-level item named <code>elementName</code> to the handler as it
+     * comes off the wire instead of materializing the whole response as a single DOM. Each node passed to the
+     * handler is a detached element carrying the same structure the DOM path would have produced, so the
+     * existing <code>toXXX(Node)</code> converters can be reused unchanged.
+     * @param command the API command to execute
+     * @param elementName the name of the item elements directly below the response root (e.g. "virtualmachine")
+     * @param handler the callback for each matching element
+     * @param params the parameters for the command
+     * @return the total number of matching items reported by the server in the <code>count</code> element, or the number of items handled if the server did not report a count
+     * @throws CloudException an error occurred with the cloud provider while executing the command
+     * @throws InternalException an error occurred locally while executing or parsing the command
+     */
+    public int stream(@Nonnull String command, @Nonnull final String elementName, @Nonnull final ElementHandler handler, Param ... params) throws CloudException, InternalException {
+        params = withResponseFormat(params);
+        final boolean json = isJson(params);
+
+        Integer total = execute(command, params, new ResponseReader<Integer>() {
+            public Integer read(int status, @Nonnull HttpEntity entity) throws CloudException, InternalException, IOException {
+                Logger wire = CSCloud.getLogger(CSMethod.class, "wire");
+                InputStream input;
 
-            if( proxyHost != null ) {
-                int port = 0;
+                if( wire.isDebugEnabled() ) {
+                    // keep the wire log readable at the cost of buffering the body
+                    String body = EntityUtils.toString(entity, "utf-8");
 
-                if( proxyPort != null && proxyPort.length() > 0 ) {
-                    port = Integer.parseInt(proxyPort);
+                    wire.debug(body);
+                    input = new ByteArrayInputStream(body.getBytes("utf-8"));
                 }
-                params.setParameter(ConnRoutePNames.DEFAULT_PROXY, new HttpHost(proxyHost, port, ssl ? "https" : "http"));
+                else {
+                    input = entity.getContent();
+                }
+                try {
+                    if( json ) {
+                        return new CSJsonDecoder(new InputStreamReader(input, "utf-8")).stream(elementName, handler);
+                    }
+                    return streamResponse(status, input, elementName, handler);
+                }
+                finally {
+                    input.close();
+                }
+            }
+        });
+
+        return (total == null ? 0 : total);
+    }
+
+    public int stream(@Nonnull String command, @Nonnull String elementName, @Nonnull ElementHandler handler, @Nonnull List<Param> params) throws CloudException, InternalException {
+        return stream(command, elementName, handler, params.toArray(new Param[params.size()]));
+    }
+
+    /**
+     * Adds <code>response=json</code> when the provider is configured for JSON responses, unless the caller
+     * explicitly asked for a format (e.g. to read the <code>cloud-stack-version</code> attribute only present in XML).
+     * The parameter goes through the normal parameter list so it is part of both the URL and the signature.
+     */
+    private @Nonnull Param[] withResponseFormat(@Nonnull Param[] params) {
+        if( !provider.isJsonResponseFormat() ) {
+            return params;
+        }
+        for( Param param : params ) {
+            if( param.getKey().equalsIgnoreCase("response") ) {
+                return params;
             }
         }
-        return new DefaultHttpClient(params);
+        Param[] copy = new Param[params.length + 1];
+
+        System.arraycopy(params, 0, copy, 0, params.length);
+        copy[params.length] = new Param("response", "json");
+        return copy;
     }
 
-    public @Nonnull Document get(@Nonnull String command, @Nonnull List<Param> params) throws CloudException, InternalException {
-        return get(command, params.toArray(new Param[params.size()]));
+    private boolean isJson(@Nonnull Param[] params) {
+        for( Param param : params ) {
+            if( param.getKey().equalsIgnoreCase("response") ) {
+                return "json".equalsIgnoreCase(param.getValue());
+            }
+        }
+        return false;
     }
 
-    public @Nonnull Document get(@Nonnull String command, Param ... params) throws CloudException, InternalException {
+    private <T> T execute(@Nonnull String command, @Nonnull Param[] params, @Nonnull ResponseReader<T> reader) throws CloudException, InternalException {
+        return execute(command, buildUrl(command, params), reader);
+    }
+
+    private <T> T execute(@Nonnull String command, @Nonnull String url, @Nonnull ResponseReader<T> reader) throws CloudException, InternalException {
         Logger wire = CSCloud.getLogger(CSMethod.class, "wire");
         Logger logger = CSCloud.getLogger(CSMethod.class, "std");
-        String url = buildUrl(command, params);
         if( logger.isTraceEnabled() ) {
             logger.trace("enter - " + CSMethod.class.getName() + ".get(" + url + ")");
         }
@@ -218,11 +369,10 @@ public class CSMethod {
             wire.debug("[" + ( new Date() ) + "] -------------------------------------------------------------------");
             wire.debug("");
         }
-        HttpClient client = null;
+        HttpResponse response = null;
         try {
             HttpGet get = new HttpGet(url);
-            client = getClient(url);
-            HttpResponse response;
+            HttpClient client = getClient(url);
 
             get.addHeader("Content-Type", "application/x-www-form-urlencoded; charset=utf-8");
             //get.getParams().setCookiePolicy(CookiePolicy.IGNORE_COOKIES);
@@ -293,7 +443,7 @@ public class CSMethod {
                 }
                 HttpEntity entity = response.getEntity();
 
-                return parseResponse(status, EntityUtils.toString(entity));
+                return reader.read(status, entity);
             }
             catch( NoHttpResponseException e ) {
                 throw new CloudException("No answer from endpoint: " + e.getMessage());
@@ -310,45 +460,10 @@ public class CSMethod {
             if( logger.isTraceEnabled() ) {
                 logger.trace("exit - " + CSMethod.class.getName() + ".get()");
             }
-            if( client != null ) {
-                client.getConnectionManager().shutdown();
-            }
-        }
-    }
-
-    private String getSignature(String command, String apiKey, String accessKey, Param ... params) throws UnsupportedEncodingException, SignatureException {
-        Logger logger = CSCloud.getLogger(CSMethod.class, "std");
-
-        if( logger.isTraceEnabled() ) {
-            logger.trace("enter - " + CSMethod.class.getName() + ".getSignature(" + command + "," + apiKey + "," + accessKey + ",[params])");
-        }
-        try {
-            TreeSet<Param> sorted = new TreeSet<Param>();
-            StringBuilder str = new StringBuilder();
-
-            sorted.add(new Param("command", URLEncoder.encode(command, "UTF-8").replaceAll("\\+", "%20").toLowerCase()));
-            sorted.add(new Param("apikey", URLEncoder.encode(apiKey, "UTF-8").replaceAll("\\+", "%20").toLowerCase()));
-            for( Param param : params ) {
-                sorted.add(new Param(param.getKey().toLowerCase(), URLEncoder.encode(param.getValue(), "UTF-8").replaceAll("\\+", "%20").toLowerCase()));
-            }
-            boolean first = true;
-            for( Param param : sorted ) {
-                if( !first ) {
-                    str.append("&");
-                }
-                first = false;
-                str.append(param.getKey());
-                str.append("=");
-                str.append(param.getValue());
-            }
-            if( logger.isDebugEnabled() ) {
-                logger.debug("getSignature(): String to sign=" + str.toString());
-            }
-            return new String(Base64.encodeBase64(calculateHmac(str.toString(), accessKey)));
-        }
-        finally {
-            if( logger.isTraceEnabled() ) {
-                logger.trace("exit - " + CSMethod.class.getName() + ".getSignature()");
+            if( response != null ) {
+                // hand the connection back to the pool even if we bailed out before reading the body
+                try { EntityUtils.consume(response.getEntity()); }
+                catch( Throwable ignore ) { }
             }
         }
     }
@@ -365,7 +480,7 @@ public class CSMethod {
             error.code = httpStatus;
             error.message = null;
             try {
-                Document doc = parseResponse(httpStatus, assumedXml);
+                Document doc = parseResponse(httpStatus, assumedXml, assumedXml.trim().startsWith("{"));
 
                 NodeList codes = doc.getElementsByTagName("errorcode");
                 for( int i = 0; i < codes.getLength(); i++ ) {
@@ -416,7 +531,7 @@ public class CSMethod {
         }
     }
 
-    private @Nonnull Document parseResponse(int code, String xml) throws CloudException, InternalException {
+    private @Nonnull Document parseResponse(int code, String xml, boolean json) throws CloudException, InternalException {
         Logger wire = CSCloud.getLogger(CSMethod.class, "wire");
         Logger logger = CSCloud.getLogger(CSMethod.class, "std");
 
@@ -424,6 +539,20 @@ public class CSMethod {
             logger.trace("enter - " + CSMethod.class.getName() + ".parseResponse(" + xml + ")");
         }
         try {
+            if( json ) {
+                if( wire.isDebugEnabled() ) {
+                    wire.debug(xml);
+                }
+                try {
+                    return new CSJsonDecoder(new StringReader(xml)).toDocument();
+                }
+                catch( IOException e ) {
+                    throw new CloudException(e);
+                }
+                catch( CloudException e ) {
+                    throw new CloudException("Received error code from server [" + code + "]: " + xml);
+                }
+            }
             try {
                 ByteArrayInputStream input = new ByteArrayInputStream(xml.getBytes("utf-8"));
 
@@ -459,6 +588,114 @@ public class CSMethod {
         }
     }
 
+    static int streamResponse(int code, @Nonnull InputStream input, @Nonnull String elementName, @Nonnull ElementHandler handler) throws CloudException, InternalException {
+        Logger logger = CSCloud.getLogger(CSMethod.class, "std");
+
+        if( logger.isTraceEnabled() ) {
+            logger.trace("enter - " + CSMethod.class.getName() + ".streamResponse(" + code + "," + elementName + ")");
+        }
+        try {
+            XMLStreamReader reader = null;
+
+            try {
+                Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+                int total = -1, handled = 0, depth = 0;
+
+                reader = xmlInputFactory.createXMLStreamReader(input, "utf-8");
+                while( reader.hasNext() ) {
+                    int event = reader.next();
+
+                    if( event == XMLStreamConstants.START_ELEMENT ) {
+                        depth++;
+                        if( depth == 2 ) {
+                            String name = reader.getLocalName();
+
+                            if( name.equals(elementName) ) {
+                                // the subtree has been consumed up to and including its end tag
+                                handler.handle(readElement(reader, doc));
+                                handled++;
+                                depth--;
+                            }
+                            else if( name.equals("count") ) {
+                                String value = reader.getElementText().trim();
+
+                                if( value.length() > 0 ) {
+                                    total = Integer.parseInt(value);
+                                }
+                                depth--;
+                            }
+                        }
+                    }
+                    else if( event == XMLStreamConstants.END_ELEMENT ) {
+                        depth--;
+                    }
+                }
+                return (total > -1 ? total : handled);
+            }
+            catch( ParserConfigurationException e ) {
+                throw new CloudException(e);
+            }
+            catch( NumberFormatException e ) {
+                throw new CloudException("Received an invalid count from server [" + code + "]: " + e.getMessage());
+            }
+            catch( XMLStreamException e ) {
+                throw new CloudException("Received error code from server [" + code + "]: " + e.getMessage());
+            }
+            finally {
+                if( reader != null ) {
+                    try { reader.close(); }
+                    catch( Throwable ignore ) { }
+                }
+            }
+        }
+        finally {
+            if( logger.isTraceEnabled() ) {
+                logger.trace("exit - " + CSMethod.class.getName() + ".streamResponse()");
+            }
+        }
+    }
+
+    static private @Nonnull Element readElement(@Nonnull XMLStreamReader reader, @Nonnull Document doc) throws XMLStreamException {
+        Element root = createElement(reader, doc);
+        Element current = root;
+        int depth = 1;
+
+        while( depth > 0 ) {
+            int event = reader.next();
+
+            switch( event ) {
+                case XMLStreamConstants.START_ELEMENT:
+                    Element child = createElement(reader, doc);
+
+                    current.appendChild(child);
+                    current = child;
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    if( depth > 0 ) {
+                        current = ( Element ) current.getParentNode();
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    current.appendChild(doc.createTextNode(reader.getText()));
+                    break;
+            }
+        }
+        return root;
+    }
+
+    static private @Nonnull Element createElement(@Nonnull XMLStreamReader reader, @Nonnull Document doc) {
+        Element element = doc.createElement(reader.getLocalName());
+
+        for( int i = 0; i < reader.getAttributeCount(); i++ ) {
+            element.setAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+        return element;
+    }
+
     private String prettifyXml( Document doc ) {
         try {
             DOMImplementationLS impl = ( DOMImplementationLS ) DOMImplementationRegistry.newInstance().getDOMImplementation("LS");
@@ -0,0 +1,470 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.io.Closeable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.util.APITrace;
+import org.dasein.util.JiteratorLoadException;
+import org.w3c.dom.Node;
+
+/**
+ * Fetches every page of a CloudStack list command. The first page is requested with the standard page size and
+ * reveals the total count; the remaining pages are then fetched concurrently on the provider's executor, no more
+ * than {@link CSCloud#getPageParallelism()} at a time. Items are always delivered in page order, so results are
+ * the same as those of a sequential walk.
+ * @param <T> the type the list items are converted to
+ */
+public class CSPager<T> {
+    static public final int PAGE_SIZE = 500;
+
+    /**
+     * How long a consumer waits for a background listing to be picked up by the provider's executor before it starts
+     * the listing on a thread of its own, so that a saturated pool cannot leave the consumer waiting on itself.
+     */
+    static private final long START_TIMEOUT = TimeUnit.SECONDS.toMillis(2);
+
+    /**
+     * Marks the end of a streamed listing.
+     */
+    static private final Object END = new Object();
+
+    /**
+     * Converts a list item into its Dasein representation.
+     * @param <T> the target type
+     */
+    static public interface Converter<T> {
+        /**
+         * @param node the list item
+         * @return the converted item or <code>null</code> to skip it
+         */
+        public @Nullable T convert(@Nonnull Node node) throws CloudException, InternalException;
+    }
+
+    /**
+     * Receives converted items in order.
+     * @param <T> the item type
+     */
+    static public interface Consumer<T> {
+        public void accept(@Nonnull T item) throws CloudException, InternalException;
+    }
+
+    /**
+     * Passes list items through unconverted, for callers whose conversion is not thread safe and must happen in
+     * {@link Consumer#accept(Object)} instead.
+     */
+    static public final Converter<Node> NODES = new Converter<Node>() {
+        public @Nullable Node convert(@Nonnull Node node) {
+            return node;
+        }
+    };
+
+    private final CSCloud      provider;
+    private final String       command;
+    private final String       elementName;
+    private final Converter<T> converter;
+    private final List<Param>  params = new ArrayList<Param>();
+
+    /**
+     * @param provider the provider to run the command against
+     * @param command the list command
+     * @param elementName the name of the list items (e.g. "virtualmachine")
+     * @param converter the conversion applied to each item
+     * @param params the command parameters; any <code>page</code> or <code>pagesize</code> is replaced by the pager
+     */
+    public CSPager(@Nonnull CSCloud provider, @Nonnull String command, @Nonnull String elementName, @Nonnull Converter<T> converter, @Nonnull Param ... params) {
+        this.provider = provider;
+        this.command = command;
+        this.elementName = elementName;
+        this.converter = converter;
+        for( Param param : params ) {
+            if( !param.getKey().equalsIgnoreCase("page") && !param.getKey().equalsIgnoreCase("pagesize") ) {
+                this.params.add(param);
+            }
+        }
+    }
+
+    public CSPager(@Nonnull CSCloud provider, @Nonnull String command, @Nonnull String elementName, @Nonnull Converter<T> converter, @Nonnull List<Param> params) {
+        this(provider, command, elementName, converter, params.toArray(new Param[params.size()]));
+    }
+
+    /**
+     * @return all converted items, in the order the server lists them
+     * @throws CloudException an error occurred with the cloud provider while listing
+     * @throws InternalException an error occurred locally while listing
+     */
+    public @Nonnull List<T> list() throws CloudException, InternalException {
+        final List<T> items = new ArrayList<T>();
+
+        forEach(new Consumer<T>() {
+            public void accept(@Nonnull T item) {
+                items.add(item);
+            }
+        });
+        return items;
+    }
+
+    /**
+     * Lists on the provider's executor so the caller can overlap the listing with other work. The pages are fetched
+     * in parallel just as for {@link #list()}, and cancelling the future with interruption stops the listing before
+     * the next page.
+     * @return a future holding all converted items, in the order the server lists them
+     * @throws RejectedExecutionException the provider is closing
+     */
+    public @Nonnull Future<Iterable<T>> listConcurrently() {
+        return provider.getExecutor().submit(new Callable<Iterable<T>>() {
+            public Iterable<T> call() throws CloudException, InternalException {
+                APITrace.begin(provider, "CSPager.listConcurrently");
+                try {
+                    return list();
+                }
+                finally {
+                    APITrace.end();
+                }
+            }
+        });
+    }
+
+    /**
+     * Walks all pages, handing each converted item to the consumer on the calling thread in the order the server
+     * lists them.
+     * @param consumer the receiver of the items
+     * @throws CloudException an error occurred with the cloud provider while listing
+     * @throws InternalException an error occurred locally while listing
+     */
+    public void forEach(@Nonnull final Consumer<T> consumer) throws CloudException, InternalException {
+        int count = new CSMethod(provider).stream(command, elementName, new CSMethod.ElementHandler() {
+            public void handle(@Nonnull Node node) throws CloudException, InternalException {
+                T item = converter.convert(node);
+
+                if( item != null ) {
+                    consumer.accept(item);
+                }
+            }
+        }, pageParams(1));
+        int pages = (count + PAGE_SIZE - 1) / PAGE_SIZE;
+
+        if( pages < 2 ) {
+            return;
+        }
+        int parallelism = Math.max(1, provider.getPageParallelism());
+        LinkedList<FutureTask<List<T>>> window = new LinkedList<FutureTask<List<T>>>();
+        int next = 2;
+
+        try {
+            while( next <= pages || !window.isEmpty() ) {
+                if( Thread.interrupted() ) {
+                    throw new InterruptedException();
+                }
+                while( next <= pages && window.size() < parallelism ) {
+                    FutureTask<List<T>> task = new FutureTask<List<T>>(fetch(next++));
+
+                    window.add(task);
+                    try {
+                        provider.getExecutor().execute(task);
+                    }
+                    catch( RejectedExecutionException ignore ) {
+                        // the provider is closing; the page gets fetched on this thread below
+                    }
+                }
+                FutureTask<List<T>> head = window.removeFirst();
+
+                // if the pool is busy (possibly with our own callers) fetch the page here rather than wait for a thread
+                head.run();
+                for( T item : head.get() ) {
+                    consumer.accept(item);
+                }
+            }
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while listing " + command);
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw ( CloudException ) cause;
+            }
+            if( cause instanceof InternalException ) {
+                throw ( InternalException ) cause;
+            }
+            throw new InternalException(cause);
+        }
+        finally {
+            for( FutureTask<List<T>> task : window ) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Lists in the background and hands out items as the pages arrive, so the caller can start working on the first
+     * page while later ones are still being fetched. At most one page of items is buffered ahead of the consumer;
+     * beyond that the listing pauses until the consumer catches up. Errors are raised from the iterator as
+     * {@link JiteratorLoadException}, as with the other dasein streaming results.
+     * <p>The listing runs on the provider's executor and waits for as long as the consumer takes, however slow. Items
+     * once read are kept, so the result can be iterated more than once, like a list. The result is
+     * {@link java.io.Closeable}: a consumer that stops early should close it to end the listing right away. A result
+     * that is dropped without being closed ends its listing once it has been garbage collected.</p>
+     * @return the items in the order the server lists them
+     */
+    public @Nonnull Iterable<T> stream() {
+        Stream<T> stream = new Stream<T>(this);
+
+        provider.hold();
+        try {
+            provider.getExecutor().execute(stream.listing);
+        }
+        catch( RejectedExecutionException ignore ) {
+            // the provider is closing; the consumer starts the listing itself
+        }
+        return stream;
+    }
+
+    static private class Failure {
+        private final Throwable cause;
+
+        Failure(@Nonnull Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+    /**
+     * The background half of a {@link #stream()}: fetches the pages and hands the items over through a bounded
+     * queue. It refers to the result the consumer holds only weakly, so that a result dropped without being closed
+     * can be collected, which the listing notices and stops.
+     */
+    static private class Listing<T> implements Runnable {
+        private final CSPager<T>            pager;
+        private final WeakReference<Object> owner;
+        private final BlockingQueue<Object> queue   = new ArrayBlockingQueue<Object>(PAGE_SIZE);
+        private final AtomicBoolean         started = new AtomicBoolean();
+        private final long                  created = System.currentTimeMillis();
+        private volatile boolean            closed;
+        private volatile Object             terminal;
+
+        Listing(@Nonnull CSPager<T> pager, @Nonnull Object owner) {
+            this.pager = pager;
+            this.owner = new WeakReference<Object>(owner);
+        }
+
+        public void run() {
+            if( !started.compareAndSet(false, true) ) {
+                return;
+            }
+            try {
+                pager.forEach(new Consumer<T>() {
+                    public void accept(@Nonnull T item) throws InternalException {
+                        try {
+                            while( closed || !queue.offer(item, 1, TimeUnit.SECONDS) ) {
+                                if( closed ) {
+                                    throw new InternalException("Stopped listing " + pager.command + " because the consumer closed the stream");
+                                }
+                                if( owner.get() == null ) {
+                                    throw new InternalException("Stopped listing " + pager.command + " because the stream was dropped without being closed");
+                                }
+                            }
+                        }
+                        catch( InterruptedException e ) {
+                            Thread.currentThread().interrupt();
+                            throw new InternalException("Interrupted while listing " + pager.command);
+                        }
+                    }
+                });
+                terminal = END;
+            }
+            catch( Throwable t ) {
+                terminal = new Failure(t);
+            }
+            finally {
+                // if the buffer is full the consumer picks up the terminal once it drains it
+                queue.offer(terminal);
+                pager.provider.release();
+            }
+        }
+
+        void close() {
+            closed = true;
+            queue.clear();
+            if( started.compareAndSet(false, true) ) {
+                // never started, so the listing will not release the provider itself
+                pager.provider.release();
+            }
+        }
+
+        /**
+         * @return the next item, or {@link #END} or a {@link Failure} once the listing is over
+         */
+        @Nonnull Object take() {
+            try {
+                while( true ) {
+                    if( closed ) {
+                        return END;
+                    }
+                    Object item = queue.poll(1, TimeUnit.SECONDS);
+
+                    if( item != null ) {
+                        return item;
+                    }
+                    if( !started.get() && System.currentTimeMillis() - created > START_TIMEOUT ) {
+                        Thread t = new Thread(this, "CloudStack-" + pager.command);
+
+                        t.setDaemon(true);
+                        t.start();
+                        continue;
+                    }
+                    Object t = terminal;
+
+                    if( t != null ) {
+                        item = queue.poll();
+                        return (item == null ? t : item);
+                    }
+                }
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return new Failure(new InternalException("Interrupted while listing " + pager.command));
+            }
+        }
+    }
+
+    /**
+     * The result of a {@link #stream()} as the consumer sees it. Items are kept as they are read so that every
+     * iterator sees the whole listing.
+     */
+    static private class Stream<T> implements Iterable<T>, Closeable {
+        private final Listing<T> listing;
+        private final List<T>    read = new ArrayList<T>();
+        private Object           terminal;
+
+        Stream(@Nonnull CSPager<T> pager) {
+            this.listing = new Listing<T>(pager, this);
+        }
+
+        public @Nonnull Iterator<T> iterator() {
+            return new Iterator<T>() {
+                private int position;
+
+                public boolean hasNext() {
+                    Object item = get(position);
+
+                    if( item instanceof Failure ) {
+                        throw new JiteratorLoadException(((Failure)item).cause);
+                    }
+                    return (item != END);
+                }
+
+                @SuppressWarnings("unchecked")
+                public T next() {
+                    if( !hasNext() ) {
+                        throw new NoSuchElementException();
+                    }
+                    return (T)get(position++);
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        /**
+         * Ends the listing without reading the rest of it. The remaining pages are not fetched; items already read
+         * can still be iterated.
+         */
+        public void close() {
+            listing.close();
+        }
+
+        /**
+         * @return the item at the position, reading ahead from the listing as needed, or the terminal once past the end
+         */
+        @SuppressWarnings("unchecked")
+        private synchronized @Nonnull Object get(int position) {
+            while( position >= read.size() ) {
+                if( terminal != null ) {
+                    return terminal;
+                }
+                Object item = listing.take();
+
+                if( item == END || item instanceof Failure ) {
+                    terminal = item;
+                }
+                else {
+                    read.add((T)item);
+                }
+            }
+            return read.get(position);
+        }
+    }
+
+    private @Nonnull Callable<List<T>> fetch(final int page) {
+        return new Callable<List<T>>() {
+            public List<T> call() throws CloudException, InternalException {
+                APITrace.begin(provider, "CSPager.fetch");
+                try {
+                    final List<T> items = new ArrayList<T>();
+
+                    new CSMethod(provider).stream(command, elementName, new CSMethod.ElementHandler() {
+                        public void handle(@Nonnull Node node) throws CloudException, InternalException {
+                            T item = converter.convert(node);
+
+                            if( item != null ) {
+                                items.add(item);
+                            }
+                        }
+                    }, pageParams(page));
+                    return items;
+                }
+                finally {
+                    APITrace.end();
+                }
+            }
+        };
+    }
+
+    private @Nonnull Param[] pageParams(int page) {
+        Param[] p = params.toArray(new Param[params.size() + 2]);
+
+        p[params.size()] = new Param("pagesize", String.valueOf(PAGE_SIZE));
+        p[params.size() + 1] = new Param("page", String.valueOf(page));
+        return p;
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Describes how often an asynchronous job is polled and how long to wait for it overall. The first poll happens after
+ * the initial delay; each subsequent delay grows by the multiplier up to the maximum, with random jitter so that jobs
+ * started together do not poll in lock step.
+ */
+public class CSPollingPolicy {
+    /**
+     * Jobs that usually finish within a second or two, such as tag and firewall rule changes.
+     */
+    static public final CSPollingPolicy FAST    = new CSPollingPolicy(250L, 5000L, 1.5, 0.2, TimeUnit.MINUTES.toMillis(10));
+    /**
+     * Jobs that usually take tens of seconds to a few minutes, such as deploying or stopping a VM.
+     */
+    static public final CSPollingPolicy DEFAULT = new CSPollingPolicy(1000L, 15000L, 2.0, 0.2, TimeUnit.HOURS.toMillis(1));
+    /**
+     * Jobs that copy disk images around and can run for a long time, such as template and snapshot creation.
+     */
+    static public final CSPollingPolicy SLOW    = new CSPollingPolicy(5000L, 60000L, 2.0, 0.2, TimeUnit.HOURS.toMillis(6));
+
+    static private final Set<String> fastCommands = new HashSet<String>(Arrays.asList(
+            "createtags", "deletetags",
+            "authorizesecuritygroupingress", "authorizesecuritygroupegress",
+            "revokesecuritygroupingress", "revokesecuritygroupegress",
+            "createfirewallrule", "deletefirewallrule",
+            "createportforwardingrule", "deleteportforwardingrule",
+            "createipforwardingrule", "deleteipforwardingrule",
+            "assigntoloadbalancerrule", "removefromloadbalancerrule",
+            "createloadbalancerrule", "deleteloadbalancerrule",
+            "associateipaddress", "disassociateipaddress",
+            "updatetemplatepermissions", "updateisopermissions"
+    ));
+
+    static private final Set<String> slowCommands = new HashSet<String>(Arrays.asList(
+            "createtemplate", "copytemplate", "extracttemplate",
+            "createsnapshot", "revertsnapshot",
+            "copyiso", "extractiso",
+            "migratevolume", "extractvolume"
+    ));
+
+    static private final Random random = new Random();
+
+    /**
+     * Picks the profile for an API command.
+     * @param command the command that started the job, in any case, or <code>null</code> if it is not known
+     * @return the matching profile, {@link #DEFAULT} for unknown commands
+     */
+    static public @Nonnull CSPollingPolicy forCommand(@Nullable String command) {
+        if( command == null ) {
+            return DEFAULT;
+        }
+        command = command.toLowerCase(Locale.ENGLISH);
+        if( fastCommands.contains(command) ) {
+            return FAST;
+        }
+        if( slowCommands.contains(command) ) {
+            return SLOW;
+        }
+        return DEFAULT;
+    }
+
+    private final long   initialDelay;
+    private final long   maxDelay;
+    private final double multiplier;
+    private final double jitter;
+    private final long   timeout;
+
+    /**
+     * @param initialDelay milliseconds before the first poll
+     * @param maxDelay upper bound in milliseconds for the delay between polls
+     * @param multiplier growth factor applied to the delay after each poll
+     * @param jitter fraction of each delay (0 to 1) that is randomized
+     * @param timeout milliseconds after which the job is given up on
+     */
+    public CSPollingPolicy(@Nonnegative long initialDelay, @Nonnegative long maxDelay, double multiplier, double jitter, @Nonnegative long timeout) {
+        this.initialDelay = initialDelay;
+        this.maxDelay = Math.max(initialDelay, maxDelay);
+        this.multiplier = Math.max(1.0, multiplier);
+        this.jitter = Math.min(1.0, Math.max(0.0, jitter));
+        this.timeout = timeout;
+    }
+
+    public @Nonnegative long getInitialDelay() {
+        return initialDelay;
+    }
+
+    public @Nonnegative long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    public @Nonnegative long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * @param attempt the number of polls made so far
+     * @return the delay in milliseconds before the next poll
+     */
+    public @Nonnegative long getDelay(@Nonnegative int attempt) {
+        double delay = initialDelay * Math.pow(multiplier, attempt);
+
+        if( delay > maxDelay ) {
+            delay = maxDelay;
+        }
+        if( jitter > 0 ) {
+            double spread;
+
+            synchronized( random ) {
+                spread = random.nextDouble();
+            }
+            delay = delay * (1.0 - jitter) + delay * jitter * 2.0 * spread;
+        }
+        return Math.max(0L, Math.round(delay));
+    }
+
+    public @Nonnull CSPollingPolicy withMaxDelay(@Nonnegative long maxDelay) {
+        return new CSPollingPolicy(initialDelay, maxDelay, multiplier, jitter, timeout);
+    }
+
+    public @Nonnull CSPollingPolicy withTimeout(@Nonnegative long timeout) {
+        return new CSPollingPolicy(initialDelay, maxDelay, multiplier, jitter, timeout);
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return "[initial=" + initialDelay + ",max=" + maxDelay + ",multiplier=" + multiplier + ",jitter=" + jitter + ",timeout=" + timeout + "]";
+    }
+}
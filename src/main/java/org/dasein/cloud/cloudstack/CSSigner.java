@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.InternalException;
+
+/**
+ * Signs CloudStack API requests for a single API key/secret pair. Instances are cached by {@link CSCloud} so the
+ * key material, the encoded <code>apiKey</code> component and the HMAC engine are only set up once per credential
+ * rather than once per request.
+ * <p>Thread safe: each thread gets its own {@link Mac}.</p>
+ */
+public class CSSigner {
+    static private final Charset UTF8      = Charset.forName("utf-8");
+    static private final String  ALGORITHM = "HmacSHA1";
+    static private final char[]  HEX       = "0123456789ABCDEF".toCharArray();
+
+    static private class Entry implements Comparable<Entry> {
+        String signingKey;
+        String key;
+        String value;
+
+        Entry(@Nonnull String key, @Nonnull String value) {
+            this.key = key;
+            this.signingKey = key.toLowerCase(Locale.ENGLISH);
+            this.value = value;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return signingKey.compareTo(other.signingKey);
+        }
+    }
+
+    private final String        apiKey;
+    private final String        encodedApiKey;
+    private final SecretKeySpec secretKey;
+    private final ThreadLocal<Mac> mac = new ThreadLocal<Mac>();
+
+    /**
+     * Sets up the signer for the specified credentials.
+     * @param apiKey the API key
+     * @param secretKey the secret key the requests are signed with
+     * @throws InternalException the API key or the secret key is empty
+     */
+    public CSSigner(@Nonnull String apiKey, @Nonnull String secretKey) throws InternalException {
+        String secret = stripReturns(secretKey);
+
+        this.apiKey = stripReturns(apiKey);
+        if( this.apiKey.length() < 1 ) {
+            throw new InternalException("No API key was provided for signing requests");
+        }
+        if( secret.length() < 1 ) {
+            throw new InternalException("No secret key was provided for signing requests");
+        }
+        this.encodedApiKey = encode(this.apiKey);
+        this.secretKey = new SecretKeySpec(secret.getBytes(UTF8), ALGORITHM);
+    }
+
+    public @Nonnull String getApiKey() {
+        return apiKey;
+    }
+
+    boolean matches(@Nonnull String secretKey) {
+        return Arrays.equals(this.secretKey.getEncoded(), stripReturns(secretKey).getBytes(UTF8));
+    }
+
+    /**
+     * Appends the signed query string for the command to the URL under construction. The command is written first,
+     * followed by the parameters in canonical (sorted) order, the API key and the signature; the canonical string to
+     * sign is built in the same pass. As with the server, the first occurrence of a repeated parameter wins.
+     * @param url the URL so far, ending in <code>?</code>
+     * @param command the API command
+     * @param params the command parameters
+     * @throws InternalException the HMAC could not be computed
+     */
+    public void sign(@Nonnull StringBuilder url, @Nonnull String command, @Nonnull Param ... params) throws InternalException {
+        Logger logger = CSCloud.getLogger(CSSigner.class, "std");
+        Entry[] entries = new Entry[params.length + 2];
+        String encodedCommand = encode(command);
+
+        entries[0] = new Entry("command", encodedCommand);
+        entries[1] = new Entry("apiKey", encodedApiKey);
+        for( int i = 0; i < params.length; i++ ) {
+            String value = params[i].getValue();
+
+            entries[i + 2] = new Entry(params[i].getKey(), (value == null ? "" : encode(value)));
+        }
+        // stable, so the earliest of any duplicates sorts first
+        Arrays.sort(entries);
+
+        StringBuilder canonical = new StringBuilder(url.length());
+        String last = null;
+
+        url.append("command=").append(encodedCommand);
+        for( Entry entry : entries ) {
+            if( entry.signingKey.equals(last) ) {
+                continue;
+            }
+            last = entry.signingKey;
+            if( canonical.length() > 0 ) {
+                canonical.append('&');
+            }
+            canonical.append(entry.signingKey).append('=').append(entry.value.toLowerCase(Locale.ENGLISH));
+            if( !entry.signingKey.equals("command") ) {
+                url.append('&').append(entry.key).append('=').append(entry.value);
+            }
+        }
+        if( logger.isDebugEnabled() ) {
+            logger.debug("sign(): String to sign=" + canonical);
+        }
+        url.append("&signature=").append(encode(new String(Base64.encodeBase64(getMac().doFinal(canonical.toString().getBytes(UTF8))), UTF8)));
+    }
+
+    private @Nonnull Mac getMac() throws InternalException {
+        Mac m = mac.get();
+
+        if( m == null ) {
+            try {
+                m = Mac.getInstance(ALGORITHM);
+                m.init(secretKey);
+            }
+            catch( GeneralSecurityException e ) {
+                throw new InternalException(e);
+            }
+            mac.set(m);
+        }
+        return m;
+    }
+
+    /**
+     * Percent-encodes a value in one pass with the same rules CloudStack applies when it verifies the signature:
+     * those of {@link java.net.URLEncoder} in UTF-8 with spaces written as <code>%20</code>.
+     * @param value the value to encode
+     * @return the encoded value
+     */
+    static public @Nonnull String encode(@Nonnull String value) {
+        int len = value.length();
+        int i = 0;
+
+        while( i < len && isUnreserved(value.charAt(i)) ) {
+            i++;
+        }
+        if( i == len ) {
+            return value;
+        }
+        StringBuilder str = new StringBuilder(len + 16);
+
+        str.append(value, 0, i);
+        while( i < len ) {
+            char c = value.charAt(i++);
+
+            if( isUnreserved(c) ) {
+                str.append(c);
+                continue;
+            }
+            int cp = c;
+
+            if( Character.isHighSurrogate(c) && i < len && Character.isLowSurrogate(value.charAt(i)) ) {
+                cp = Character.toCodePoint(c, value.charAt(i++));
+            }
+            else if( c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE ) {
+                cp = '?';
+            }
+            if( cp < 0x80 ) {
+                appendByte(str, cp);
+            }
+            else if( cp < 0x800 ) {
+                appendByte(str, 0xC0 | (cp >> 6));
+                appendByte(str, 0x80 | (cp & 0x3F));
+            }
+            else if( cp < 0x10000 ) {
+                appendByte(str, 0xE0 | (cp >> 12));
+                appendByte(str, 0x80 | ((cp >> 6) & 0x3F));
+                appendByte(str, 0x80 | (cp & 0x3F));
+            }
+            else {
+                appendByte(str, 0xF0 | (cp >> 18));
+                appendByte(str, 0x80 | ((cp >> 12) & 0x3F));
+                appendByte(str, 0x80 | ((cp >> 6) & 0x3F));
+                appendByte(str, 0x80 | (cp & 0x3F));
+            }
+        }
+        return str.toString();
+    }
+
+    static private boolean isUnreserved(char c) {
+        return ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.' || c == '*');
+    }
+
+    static private void appendByte(@Nonnull StringBuilder str, int b) {
+        str.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+
+    static private @Nonnull String stripReturns(@Nullable String value) {
+        if( value == null ) {
+            return "";
+        }
+        return (value.indexOf('\r') < 0 ? value : value.replace("\r", ""));
+    }
+}
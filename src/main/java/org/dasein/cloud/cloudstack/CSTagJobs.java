@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+
+/**
+ * Confirms tag changes in the background so that tagging does not hold up the launch or create call it is a side
+ * effect of. Enabled by setting the <code>tagMode</code> custom property to <code>deferred</code>; the tag commands are
+ * still submitted on the caller's thread, but their jobs are only tracked, and the outcome is reported to the
+ * registered {@link CSTagListener}s and counted.
+ */
+public class CSTagJobs {
+    static private final Logger logger = CSCloud.getLogger(CSTagJobs.class, "std");
+
+    private final CSCloud                             provider;
+    private final CopyOnWriteArrayList<CSTagListener> listeners = new CopyOnWriteArrayList<CSTagListener>();
+    private final AtomicLong                          submitted = new AtomicLong();
+    private final AtomicLong                          succeeded = new AtomicLong();
+    private final AtomicLong                          failed    = new AtomicLong();
+    private final AtomicInteger                       pending   = new AtomicInteger();
+
+    public CSTagJobs(@Nonnull CSCloud provider) {
+        this.provider = provider;
+    }
+
+    public void addListener(@Nonnull CSTagListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(@Nonnull CSTagListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return the number of tag changes handed to the background so far
+     */
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getSucceeded() {
+        return succeeded.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of tag changes whose jobs have not all finished yet
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Waits for the tag changes submitted so far, for callers that want to confirm them at a point of their choosing.
+     * @param timeout the longest time to wait
+     * @param unit the unit of the timeout
+     * @return true if nothing is pending any more
+     * @throws InterruptedException the wait was interrupted
+     */
+    public boolean awaitPending(long timeout, @Nonnull TimeUnit unit) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+
+        synchronized( pending ) {
+            while( pending.get() > 0 ) {
+                long wait = deadline - System.currentTimeMillis();
+
+                if( wait <= 0 ) {
+                    return false;
+                }
+                pending.wait(wait);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tracks the jobs of one tag change.
+     * @param jobs the responses of the tag commands, holding the job ids
+     * @param operation a readable name of the change
+     * @param resourceType the CloudStack resource type
+     * @param resourceIds the resources being tagged
+     * @param then run on the provider's executor once every job has succeeded, e.g. to create tags after the old
+     * values are gone
+     */
+    public void track(@Nonnull List<Document> jobs, @Nonnull final String operation, @Nonnull final String resourceType, @Nonnull List<String> resourceIds, @Nullable final Runnable then) {
+        final List<String> ids = Collections.unmodifiableList(resourceIds);
+        final AtomicInteger remaining = new AtomicInteger(jobs.size());
+        final AtomicBoolean reported = new AtomicBoolean();
+
+        submitted.incrementAndGet();
+        pending.incrementAndGet();
+        if( jobs.isEmpty() ) {
+            applied(operation, resourceType, ids, then);
+            return;
+        }
+        for( Document doc : jobs ) {
+            provider.trackJob(doc, operation, new CSJobTracker.Callback() {
+                public void completed(@Nonnull Document result) {
+                    if( remaining.decrementAndGet() == 0 && reported.compareAndSet(false, true) ) {
+                        applied(operation, resourceType, ids, then);
+                    }
+                }
+
+                public void failed(@Nonnull Throwable cause) {
+                    if( reported.compareAndSet(false, true) ) {
+                        fail(operation, resourceType, ids, cause);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Reports a tag change that could not even be submitted.
+     */
+    void failed(@Nonnull String operation, @Nonnull String resourceType, @Nonnull List<String> resourceIds, @Nonnull Throwable cause) {
+        submitted.incrementAndGet();
+        pending.incrementAndGet();
+        fail(operation, resourceType, Collections.unmodifiableList(resourceIds), cause);
+    }
+
+    private void applied(@Nonnull String operation, @Nonnull String resourceType, @Nonnull List<String> ids, @Nullable final Runnable then) {
+        succeeded.incrementAndGet();
+        provider.invalidate(resourceType, ids);
+        for( CSTagListener listener : listeners ) {
+            try {
+                listener.tagsApplied(operation, resourceType, ids);
+            }
+            catch( Throwable t ) {
+                logger.error("Tag listener failed: " + t.getMessage(), t);
+            }
+        }
+        if( then != null ) {
+            // the follow-up counts as pending until it has submitted its own jobs
+            pending.incrementAndGet();
+            try {
+                provider.getExecutor().execute(new Runnable() {
+                    public void run() {
+                        try {
+                            then.run();
+                        }
+                        finally {
+                            done();
+                        }
+                    }
+                });
+            }
+            catch( RejectedExecutionException e ) {
+                logger.warn("Dropped the follow-up of " + operation + " for " + resourceType + " because the provider is closing");
+                done();
+            }
+        }
+        done();
+    }
+
+    private void fail(@Nonnull String operation, @Nonnull String resourceType, @Nonnull List<String> ids, @Nonnull Throwable cause) {
+        failed.incrementAndGet();
+        // some of the jobs may have succeeded
+        provider.invalidate(resourceType, ids);
+        logger.error("Error while confirming " + operation + " for " + resourceType + " " + ids + " - ", cause);
+        for( CSTagListener listener : listeners ) {
+            try {
+                listener.tagsFailed(operation, resourceType, ids, cause);
+            }
+            catch( Throwable t ) {
+                logger.error("Tag listener failed: " + t.getMessage(), t);
+            }
+        }
+        done();
+    }
+
+    private void done() {
+        synchronized( pending ) {
+            pending.decrementAndGet();
+            pending.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Receives the outcome of tag changes confirmed in the background (see {@link CSTagJobs}). Listeners are called on
+ * the job tracker's thread and should return quickly.
+ */
+public interface CSTagListener {
+    /**
+     * @param operation a readable name of the change, such as "Create Tags"
+     * @param resourceType the CloudStack resource type, such as <code>UserVm</code>
+     * @param resourceIds the resources that were tagged
+     */
+    public void tagsApplied(@Nonnull String operation, @Nonnull String resourceType, @Nonnull List<String> resourceIds);
+
+    /**
+     * @param operation a readable name of the change, such as "Create Tags"
+     * @param resourceType the CloudStack resource type, such as <code>UserVm</code>
+     * @param resourceIds the resources the change was meant for; some of them may have been tagged anyway
+     * @param cause the reason the change failed
+     */
+    public void tagsFailed(@Nonnull String operation, @Nonnull String resourceType, @Nonnull List<String> resourceIds, @Nonnull Throwable cause);
+}
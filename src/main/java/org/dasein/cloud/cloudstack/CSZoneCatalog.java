@@ -0,0 +1,324 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.APITrace;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * A parsed snapshot of <code>listZones available=true</code>, shared by every provider instance signed in to the
+ * same account on the same endpoint. Version detection, topology and capability checks all read from it, so the
+ * zones are listed once per TTL rather than once per question.
+ * <p>A catalog older than the TTL is reloaded before it is used; one past the refresh-ahead point is still handed
+ * out while a fresh copy loads in the background. Only one load per account is ever in flight, and concurrent
+ * callers wait for it rather than issue their own.</p>
+ */
+public class CSZoneCatalog {
+    static private final Logger logger = CSCloud.getLogger(CSZoneCatalog.class, "std");
+
+    static private final long   DEFAULT_TTL   = TimeUnit.MINUTES.toMillis(15);
+    static private final double REFRESH_AHEAD = 0.8;
+
+    /**
+     * The attributes of a zone that the provider makes decisions on.
+     */
+    static public class Zone {
+        private final String  id;
+        private final String  name;
+        private final String  networkType;
+        private final boolean securityGroupsEnabled;
+
+        Zone(@Nonnull String id, @Nullable String name, @Nullable String networkType, boolean securityGroupsEnabled) {
+            this.id = id;
+            this.name = (name == null ? id : name);
+            this.networkType = networkType;
+            this.securityGroupsEnabled = securityGroupsEnabled;
+        }
+
+        public @Nonnull String getId() {
+            return id;
+        }
+
+        public @Nonnull String getName() {
+            return name;
+        }
+
+        public @Nullable String getNetworkType() {
+            return networkType;
+        }
+
+        public boolean isBasic() {
+            return "basic".equalsIgnoreCase(networkType);
+        }
+
+        public boolean isSecurityGroupsEnabled() {
+            return securityGroupsEnabled;
+        }
+    }
+
+    static private class Loader {
+        private volatile CSZoneCatalog    catalog;
+        private FutureTask<CSZoneCatalog> loading;
+
+        @Nonnull CSZoneCatalog get(@Nonnull CSCloud provider, long ttl) throws CloudException, InternalException {
+            CSZoneCatalog current = catalog;
+
+            if( current != null ) {
+                long age = System.currentTimeMillis() - current.loadedAt;
+
+                if( age < ttl ) {
+                    if( age > ttl * REFRESH_AHEAD ) {
+                        refresh(provider);
+                    }
+                    return current;
+                }
+            }
+            FutureTask<CSZoneCatalog> task;
+            boolean owner = false;
+
+            synchronized( this ) {
+                if( loading == null ) {
+                    loading = newTask(provider);
+                    owner = true;
+                }
+                task = loading;
+            }
+            if( owner ) {
+                task.run();
+            }
+            try {
+                return task.get();
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InternalException("Interrupted while listing zones");
+            }
+            catch( ExecutionException e ) {
+                Throwable cause = e.getCause();
+
+                if( cause instanceof CloudException ) {
+                    throw ( CloudException ) cause;
+                }
+                if( cause instanceof InternalException ) {
+                    throw ( InternalException ) cause;
+                }
+                throw new InternalException(cause);
+            }
+        }
+
+        private void refresh(@Nonnull CSCloud provider) {
+            FutureTask<CSZoneCatalog> task;
+
+            synchronized( this ) {
+                if( loading != null ) {
+                    return;
+                }
+                task = newTask(provider);
+                loading = task;
+            }
+            try {
+                provider.getExecutor().execute(task);
+            }
+            catch( RejectedExecutionException e ) {
+                synchronized( this ) {
+                    if( loading == task ) {
+                        loading = null;
+                    }
+                }
+            }
+        }
+
+        private @Nonnull FutureTask<CSZoneCatalog> newTask(@Nonnull final CSCloud provider) {
+            return new FutureTask<CSZoneCatalog>(new Callable<CSZoneCatalog>() {
+                public CSZoneCatalog call() throws CloudException, InternalException {
+                    try {
+                        CSZoneCatalog c = load(provider);
+
+                        catalog = c;
+                        return c;
+                    }
+                    catch( CloudException e ) {
+                        logger.warn("Unable to list zones for " + provider.getCloudName() + ": " + e.getMessage());
+                        throw e;
+                    }
+                    finally {
+                        synchronized( Loader.this ) {
+                            loading = null;
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    static private final ConcurrentHashMap<String,Loader> loaders = new ConcurrentHashMap<String,Loader>();
+
+    /**
+     * Provides the zone catalog for the account of the provider's current context, loading it if necessary.
+     * @param provider the provider asking
+     * @return the current zone catalog
+     * @throws CloudException the zones could not be listed
+     * @throws InternalException an error occurred locally while listing the zones
+     */
+    static public @Nonnull CSZoneCatalog getInstance(@Nonnull CSCloud provider) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        String key = ctx.getCloud().getEndpoint() + "#" + provider.getSigner().getApiKey();
+        Loader loader = loaders.get(key);
+
+        if( loader == null ) {
+            Loader l = new Loader();
+
+            loader = loaders.putIfAbsent(key, l);
+            if( loader == null ) {
+                loader = l;
+            }
+        }
+        return loader.get(provider, getTtl(ctx));
+    }
+
+    static private long getTtl(@Nonnull ProviderContext ctx) {
+        String value = (ctx.getCustomProperties() == null ? null : ctx.getCustomProperties().getProperty("zoneCatalogTtlMinutes"));
+
+        if( value != null && value.trim().length() > 0 ) {
+            try {
+                return TimeUnit.MINUTES.toMillis(Long.parseLong(value.trim()));
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Ignoring invalid value for zoneCatalogTtlMinutes: " + value);
+            }
+        }
+        return DEFAULT_TTL;
+    }
+
+    static private @Nonnull CSZoneCatalog load(@Nonnull CSCloud provider) throws CloudException, InternalException {
+        APITrace.begin(provider, "CSZoneCatalog.load");
+        try {
+            // the version is only reported as an attribute on the XML response
+            Document doc = new CSMethod(provider).get(CSTopology.LIST_ZONES, new Param("available", "true"), new Param("response", "xml"));
+            List<Zone> zones = new ArrayList<Zone>();
+            String version = null;
+
+            NodeList meta = doc.getElementsByTagName("listzonesresponse");
+            for( int i=0; i<meta.getLength(); i++ ) {
+                Node v = meta.item(i).getAttributes().getNamedItem("cloud-stack-version");
+
+                if( v != null ) {
+                    version = v.getNodeValue();
+                }
+            }
+            NodeList matches = doc.getElementsByTagName("zone");
+            for( int i=0; i<matches.getLength(); i++ ) {
+                Zone zone = toZone(matches.item(i));
+
+                if( zone != null ) {
+                    zones.add(zone);
+                }
+            }
+            return new CSZoneCatalog(Collections.unmodifiableList(zones), version);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    static private @Nullable Zone toZone(@Nullable Node node) {
+        if( node == null || !node.hasChildNodes() ) {
+            return null;
+        }
+        NodeList attrs = node.getChildNodes();
+        String id = null, name = null, networkType = null;
+        boolean groups = false;
+
+        for( int i=0; i<attrs.getLength(); i++ ) {
+            Node attr = attrs.item(i);
+
+            if( !attr.hasChildNodes() ) {
+                continue;
+            }
+            String value = attr.getFirstChild().getNodeValue().trim();
+
+            if( attr.getNodeName().equalsIgnoreCase("id") ) {
+                id = value;
+            }
+            else if( attr.getNodeName().equalsIgnoreCase("name") ) {
+                name = value;
+            }
+            else if( attr.getNodeName().equalsIgnoreCase("networkType") ) {
+                networkType = value;
+            }
+            else if( attr.getNodeName().equalsIgnoreCase("securitygroupsenabled") ) {
+                groups = value.equalsIgnoreCase("true");
+            }
+        }
+        return (id == null ? null : new Zone(id, name, networkType, groups));
+    }
+
+    private final List<Zone> zones;
+    private final String     version;
+    private final long       loadedAt;
+
+    private CSZoneCatalog(@Nonnull List<Zone> zones, @Nullable String version) {
+        this.zones = zones;
+        this.version = version;
+        this.loadedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the <code>cloud-stack-version</code> the server reported, if any
+     */
+    public @Nullable String getVersion() {
+        return version;
+    }
+
+    public @Nullable Zone getZone(@Nonnull String zoneId) {
+        for( Zone zone : zones ) {
+            if( zone.getId().equals(zoneId) ) {
+                return zone;
+            }
+        }
+        return null;
+    }
+
+    public @Nonnull List<Zone> getZones() {
+        return zones;
+    }
+}
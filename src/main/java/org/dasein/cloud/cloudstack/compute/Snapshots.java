@@ -35,6 +35,7 @@ import org.dasein.cloud.Tag;
 import org.dasein.cloud.cloudstack.CSCloud;
 import org.dasein.cloud.cloudstack.CSException;
 import org.dasein.cloud.cloudstack.CSMethod;
+import org.dasein.cloud.cloudstack.CSPager;
 import org.dasein.cloud.cloudstack.CSVersion;
 import org.dasein.cloud.cloudstack.Param;
 import org.dasein.cloud.compute.AbstractSnapshotSupport;
@@ -280,42 +281,11 @@ public class Snapshots extends AbstractSnapshotSupport {
     public @Nonnull Iterable<ResourceStatus> listSnapshotStatus() throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Snapshot.listSnapshotStatus");
         try {
-            CSMethod method = new CSMethod(provider);
-            Document doc = method.get(LIST_SNAPSHOTS, new Param("zoneId", getContext().getRegionId()));
-            List<ResourceStatus> snapshots = new ArrayList<ResourceStatus>();
-
-            int numPages = 1;
-            NodeList nodes = doc.getElementsByTagName("count");
-            Node n = nodes.item(0);
-            if (n != null) {
-                String value = n.getFirstChild().getNodeValue().trim();
-                int count = Integer.parseInt(value);
-                numPages = count/500;
-                int remainder = count % 500;
-                if (remainder > 0) {
-                    numPages++;
+            return new CSPager<ResourceStatus>(provider, LIST_SNAPSHOTS, "snapshot", new CSPager.Converter<ResourceStatus>() {
+                public @Nullable ResourceStatus convert(@Nonnull Node node) throws CloudException, InternalException {
+                    return toStatus(node);
                 }
-            }
-
-            for (int page = 1; page <= numPages; page++) {
-                if (page > 1) {
-                    String nextPage = String.valueOf(page);
-                    doc = method.get(LIST_SNAPSHOTS, new Param("zoneId", getContext().getRegionId()), new Param("pagesize", "500"), new Param("page", nextPage));
-                }
-                NodeList matches = doc.getElementsByTagName("snapshot");
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    Node s = matches.item(i);
-
-                    if( s != null ) {
-                        ResourceStatus snapshot = toStatus(s);
-
-                        if( snapshot != null ) {
-                            snapshots.add(snapshot);
-                        }
-                    }
-                }
-            }
-            return snapshots;
+            }, new Param("zoneId", getContext().getRegionId())).list();
         }
         finally {
             APITrace.end();
@@ -331,43 +301,17 @@ public class Snapshots extends AbstractSnapshotSupport {
     public @Nonnull Iterable<Snapshot> listSnapshots() throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Snapshot.listSnapshots");
         try {
-            Iterable<Volume> volumes = provider.getComputeServices().getVolumeSupport().listVolumes();
-            CSMethod method = new CSMethod(provider);
-            Document doc = method.get(LIST_SNAPSHOTS, new Param("zoneId", getContext().getRegionId()));
-            ArrayList<Snapshot> snapshots = new ArrayList<Snapshot>();
-
-            int numPages = 1;
-            NodeList nodes = doc.getElementsByTagName("count");
-            Node n = nodes.item(0);
-            if (n != null) {
-                String value = n.getFirstChild().getNodeValue().trim();
-                int count = Integer.parseInt(value);
-                numPages = count/500;
-                int remainder = count % 500;
-                if (remainder > 0) {
-                    numPages++;
-                }
-            }
-
-            for (int page = 1; page <= numPages; page++) {
-                if (page > 1) {
-                    String nextPage = String.valueOf(page);
-                    doc = method.get(LIST_SNAPSHOTS, new Param("zoneId", getContext().getRegionId()), new Param("pagesize", "500"), new Param("page", nextPage));
-                }
-                NodeList matches = doc.getElementsByTagName("snapshot");
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    Node s = matches.item(i);
-
-                    if( s != null ) {
-                        Snapshot snapshot = toSnapshot(s, getContext(), volumes);
+            final List<Volume> volumes = new ArrayList<Volume>();
+            final ProviderContext ctx = getContext();
 
-                        if( snapshot != null ) {
-                            snapshots.add(snapshot);
-                        }
-                    }
-                }
+            for( Volume volume : provider.getComputeServices().getVolumeSupport().listVolumes() ) {
+                volumes.add(volume);
             }
-            return snapshots;
+            return new CSPager<Snapshot>(provider, LIST_SNAPSHOTS, "snapshot", new CSPager.Converter<Snapshot>() {
+                public @Nullable Snapshot convert(@Nonnull Node node) throws CloudException, InternalException {
+                    return toSnapshot(node, ctx, volumes);
+                }
+            }, new Param("zoneId", ctx.getRegionId())).stream();
         }
         finally {
             APITrace.end();
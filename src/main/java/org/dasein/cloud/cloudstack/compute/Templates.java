@@ -19,6 +19,12 @@
 package org.dasein.cloud.cloudstack.compute;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -35,8 +41,8 @@ import org.dasein.cloud.Tag;
 import org.dasein.cloud.cloudstack.CSCloud;
 import org.dasein.cloud.cloudstack.CSException;
 import org.dasein.cloud.cloudstack.CSMethod;
+import org.dasein.cloud.cloudstack.CSPager;
 import org.dasein.cloud.cloudstack.CSServiceProvider;
-import org.dasein.cloud.cloudstack.CSTopology;
 import org.dasein.cloud.cloudstack.Param;
 import org.dasein.cloud.compute.AbstractImageSupport;
 import org.dasein.cloud.compute.Architecture;
@@ -228,7 +234,7 @@ public class Templates extends AbstractImageSupport<CSCloud> {
         return getProvider().getComputeServices().getVolumeSupport().getRootVolumeId(serverId);
     }
     
-    private Architecture guess(String desc) {
+    static private Architecture guess(String desc) {
         Architecture arch = Architecture.I64;
         
         if( desc.contains("x64") ) {
@@ -533,10 +539,8 @@ public class Templates extends AbstractImageSupport<CSCloud> {
     public boolean isSubscribed() throws CloudException, InternalException {
         APITrace.begin(getProvider(), "Image.isSubscribed");
         try {
-            CSMethod method = new CSMethod(getProvider());
-
             try {
-                method.get(CSTopology.LIST_ZONES, new Param("available", "true"));
+                getProvider().getZoneCatalog();
                 return true;
             }
             catch( CSException e ) {
@@ -560,38 +564,11 @@ public class Templates extends AbstractImageSupport<CSCloud> {
             if( !cls.equals(ImageClass.MACHINE) ) {
                 return Collections.emptyList();
             }
-            CSMethod method = new CSMethod(getProvider());
-            Document doc = method.get(LIST_TEMPLATES, new Param("templateFilter", "self"), new Param("zoneId", getContext().getRegionId()));
-            List<ResourceStatus> templates = new ArrayList<ResourceStatus>();
-
-            int numPages = 1;
-            NodeList nodes = doc.getElementsByTagName("count");
-            Node n = nodes.item(0);
-            if (n != null) {
-                String value = n.getFirstChild().getNodeValue().trim();
-                int count = Integer.parseInt(value);
-                numPages = count/500;
-                int remainder = count % 500;
-                if (remainder > 0) {
-                    numPages++;
-                }
-            }
-
-            for (int page = 1; page <= numPages; page++) {
-                if (page > 1) {
-                    String nextPage = String.valueOf(page);
-                    doc = method.get(LIST_TEMPLATES, new Param("templateFilter", "self"), new Param("zoneId", getContext().getRegionId()), new Param("pagesize", "500"), new Param("page", nextPage));
-                }
-                NodeList matches = doc.getElementsByTagName("template");
-
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    ResourceStatus status = toStatus(matches.item(i), false);
-
-                    if( status != null ) {
-                        templates.add(status);
-                    }
+            List<ResourceStatus> templates = new CSPager<ResourceStatus>(getProvider(), LIST_TEMPLATES, "template", new CSPager.Converter<ResourceStatus>() {
+                public @Nullable ResourceStatus convert(@Nonnull Node node) throws CloudException, InternalException {
+                    return toStatus(node, false);
                 }
-            }
+            }, new Param("templateFilter", "self"), new Param("zoneId", getContext().getRegionId())).list();
             //todo add iso status once we have support for launching from them
             //templates.addAll(listIsoStatus());
             return templates;
@@ -604,39 +581,11 @@ public class Templates extends AbstractImageSupport<CSCloud> {
     private @Nonnull List<ResourceStatus> listIsoStatus() throws CloudException, InternalException {
         APITrace.begin(getProvider(), "Image.listImageStatus");
         try {
-            CSMethod method = new CSMethod(getProvider());
-            Document doc = method.get(LIST_ISOS, new Param("isoFilter", "self"), new Param("zoneId", getContext().getRegionId()), new Param("bootable", "true"));
-            List<ResourceStatus> templates = new ArrayList<ResourceStatus>();
-
-            int numPages = 1;
-            NodeList nodes = doc.getElementsByTagName("count");
-            Node n = nodes.item(0);
-            if (n != null) {
-                String value = n.getFirstChild().getNodeValue().trim();
-                int count = Integer.parseInt(value);
-                numPages = count/500;
-                int remainder = count % 500;
-                if (remainder > 0) {
-                    numPages++;
-                }
-            }
-
-            for (int page = 1; page <= numPages; page++) {
-                if (page > 1) {
-                    String nextPage = String.valueOf(page);
-                    doc = method.get(LIST_ISOS, new Param("isoFilter", "self"), new Param("zoneId", getContext().getRegionId()), new Param("bootable", "true"), new Param("pagesize", "500"), new Param("page", nextPage));
-                }
-                NodeList matches = doc.getElementsByTagName("iso");
-
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    ResourceStatus status = toStatus(matches.item(i), false);
-
-                    if( status != null ) {
-                        templates.add(status);
-                    }
+            return new CSPager<ResourceStatus>(getProvider(), LIST_ISOS, "iso", new CSPager.Converter<ResourceStatus>() {
+                public @Nullable ResourceStatus convert(@Nonnull Node node) throws CloudException, InternalException {
+                    return toStatus(node, false);
                 }
-            }
-            return templates;
+            }, new Param("isoFilter", "self"), new Param("zoneId", getContext().getRegionId()), new Param("bootable", "true")).list();
         }
         finally {
             APITrace.end();
@@ -644,18 +593,16 @@ public class Templates extends AbstractImageSupport<CSCloud> {
     }
 
     @Override
-    public @Nonnull Iterable<MachineImage> listImages(@Nullable ImageFilterOptions options) throws CloudException, InternalException {
+    public @Nonnull Iterable<MachineImage> listImages(final @Nullable ImageFilterOptions options) throws CloudException, InternalException {
         APITrace.begin(getProvider(), "Image.listImages");
         try {
             final List<String> hypervisors = getProvider().getZoneHypervisors(getContext().getRegionId());
 
-            final CSMethod method = new CSMethod(getProvider());
             final String accountNumber = (options == null ? null : options.getAccountNumber());
             final List<Param> params = new ArrayList<Param>();
             if( getContext().getRegionId() != null && !getContext().getRegionId().isEmpty() ) {
                 params.add(new Param("zoneId", getContext().getRegionId()));
             }
-            params.add(new Param("pagesize", "500"));
 
             // if only single hypervisor is supported by zone, let's limit to that
             if( hypervisors != null && hypervisors.size() == 1 ) {
@@ -667,43 +614,17 @@ public class Templates extends AbstractImageSupport<CSCloud> {
                 templateFilter = "selfexecutable";
             }
             params.add(new Param("templateFilter", templateFilter));
-            final Param pageParam = new Param("page", "1");
-            params.add(pageParam);
-
-            Document doc = method.get(LIST_TEMPLATES, params);
-
-            List<MachineImage> templates = new ArrayList<MachineImage>();
-
-            int numPages = 1;
-            NodeList nodes = doc.getElementsByTagName("count");
-            Node n = nodes.item(0);
-            if (n != null) {
-                String value = n.getFirstChild().getNodeValue().trim();
-                int count = Integer.parseInt(value);
-                numPages = count/500;
-                int remainder = count % 500;
-                if (remainder > 0) {
-                    numPages++;
-                }
-            }
-
-            for (int page = 1; page <= numPages; page++) {
-                if (page > 1) {
-                    String nextPage = String.valueOf(page);
-                    pageParam.setValue(nextPage);
-                    doc = method.get(LIST_TEMPLATES, params);
-                }
-                NodeList matches = doc.getElementsByTagName("iso");
 
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    MachineImage image = toImage(matches.item(i), false, hypervisors);
+            List<MachineImage> templates = new CSPager<MachineImage>(getProvider(), LIST_TEMPLATES, "template", new CSPager.Converter<MachineImage>() {
+                public @Nullable MachineImage convert(@Nonnull Node node) throws CloudException, InternalException {
+                    MachineImage image = toImage(node, false, hypervisors);
 
                     if( image != null && (options == null || options.matches(image)) ) {
-                        image.setTag("isISO", "true");
-                        templates.add(image);
+                        return image;
                     }
+                    return null;
                 }
-            }
+            }, params).list();
 
             //todo list isos too once we have support for launching from them
             //templates.addAll(listIsos(options));
@@ -716,17 +637,13 @@ public class Templates extends AbstractImageSupport<CSCloud> {
     }
 
     // TODO: refactor to use listImages, as the code is a copy-paste with minor changes.
-    private @Nonnull List<MachineImage> listIsos(@Nullable ImageFilterOptions options) throws CloudException, InternalException {
+    private @Nonnull List<MachineImage> listIsos(final @Nullable ImageFilterOptions options) throws CloudException, InternalException {
         APITrace.begin(getProvider(), "Image.listIsos");
         try {
-            final CSMethod method = new CSMethod(getProvider());
             final String accountNumber = (options == null ? null : options.getAccountNumber());
             final List<Param> params = new ArrayList<Param>();
             params.add(new Param("zoneId", getContext().getRegionId()));
             params.add(new Param("bootable", "true"));
-            params.add(new Param("pagesize", "500"));
-            final Param pageParam = new Param("page", "1");
-            params.add(pageParam);
 
             if( accountNumber == null || getProvider().getServiceProvider().equals(CSServiceProvider.DATAPIPE) ) {
                 params.add(new Param("isoFilter", "selfexecutable"));
@@ -735,43 +652,18 @@ public class Templates extends AbstractImageSupport<CSCloud> {
                 params.add(new Param("isoFilter", "executable"));
             }
 
-            Document doc = method.get(LIST_ISOS, params);
-
-            final List<MachineImage> templates = new ArrayList<MachineImage>();
-
-            int numPages = 1;
-            NodeList nodes = doc.getElementsByTagName("count");
-            Node n = nodes.item(0);
-            if (n != null) {
-                String value = n.getFirstChild().getNodeValue().trim();
-                int count = Integer.parseInt(value);
-                numPages = count/500;
-                int remainder = count % 500;
-                if (remainder > 0) {
-                    numPages++;
-                }
-            }
-
-            for (int page = 1; page <= numPages; page++) {
-                if (page > 1) {
-                    String nextPage = String.valueOf(page);
-                    pageParam.setValue(nextPage);
-                    doc = method.get(LIST_ISOS, params);
-                }
-                NodeList matches = doc.getElementsByTagName("iso");
-
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    MachineImage image = toImage(matches.item(i), false, getProvider().getZoneHypervisors(getContext().getRegionId()));
-
+            final List<String> hypervisors = getProvider().getZoneHypervisors(getContext().getRegionId());
+            return new CSPager<MachineImage>(getProvider(), LIST_ISOS, "iso", new CSPager.Converter<MachineImage>() {
+                public @Nullable MachineImage convert(@Nonnull Node node) throws CloudException, InternalException {
+                    MachineImage image = toImage(node, false, hypervisors);
 
                     if( image != null && (options == null || options.matches(image)) ) {
                         image.setTag("isISO", "true");
-                        templates.add(image);
+                        return image;
                     }
+                    return null;
                 }
-            }
-
-            return templates;
+            }, params).list();
         }
         finally {
             APITrace.end();
@@ -1002,14 +894,15 @@ public class Templates extends AbstractImageSupport<CSCloud> {
         }
     }
 
+    /**
+     * Searches the featured and, except on DataPipe, the community templates. Both filters are listed at the same
+     * time, each with its pages fetched in parallel, and the matches are handed to the caller as they arrive. A
+     * template listed under both filters is returned once.
+     */
     @Override
     public @Nonnull Iterable<MachineImage> searchPublicImages(final @Nonnull ImageFilterOptions options) throws CloudException, InternalException {
         //dmayne 20131004: need to get both sets of filters (featured and community) to match direct console
         final List<Param> params = new ArrayList<Param>();
-        final List<MachineImage> allImages = new ArrayList<MachineImage>();
-        final CSMethod method = new CSMethod(getProvider());
-        Param filterParam = new Param("templateFilter", "featured");
-        params.add(filterParam);
         final List<String> hypervisors = getProvider().getZoneHypervisors(getContext().getRegionId());
         if( hypervisors != null && hypervisors.size() == 1) {
             params.add(new Param("hypervisor", hypervisors.get(0)));
@@ -1017,28 +910,69 @@ public class Templates extends AbstractImageSupport<CSCloud> {
         if( getContext().getRegionId() != null && !getContext().getRegionId().isEmpty() ) {
             params.add(new Param("zoneId", getContext().getRegionId()));
         }
+        final List<CSPager<MachineImage>> pagers = new ArrayList<CSPager<MachineImage>>();
+        CSPager.Converter<MachineImage> converter = new CSPager.Converter<MachineImage>() {
+            public @Nullable MachineImage convert(@Nonnull Node node) throws CloudException, InternalException {
+                MachineImage img = toImage(node, true, hypervisors);
 
-        //todo add public isos when we can support launching vms from them
-        //todo refactor to make smaller methods
-        // params3 = new Param[] { new Param("isoFilter", "featured"),  new Param("zoneId", getContext().getRegionId()), new Param("bootable", "true") };
-        // params4 = new Param[] { new Param("isoFilter", "community"),  new Param("zoneId", getContext().getRegionId()), new Param("bootable", "true") };
+                return (img != null && options.matches(img) ? img : null);
+            }
+        };
 
+        pagers.add(new CSPager<MachineImage>(getProvider(), LIST_TEMPLATES, "template", converter, withFilter(params, "featured")));
+        if (!getProvider().getServiceProvider().equals(CSServiceProvider.DATAPIPE) ) {
+            pagers.add(new CSPager<MachineImage>(getProvider(), LIST_TEMPLATES, "template", converter, withFilter(params, "community")));
+        }
+        //todo add public isos when we can support launching vms from them, e.g. a pager per isoFilter with bootable=true
 
         getProvider().hold();
         PopulatorThread<MachineImage> populator = new PopulatorThread<MachineImage>(new JiteratorPopulator<MachineImage>() {
             @Override
-            public void populate(@Nonnull Jiterator<MachineImage> iterator) throws Exception {
+            public void populate(@Nonnull final Jiterator<MachineImage> iterator) throws Exception {
                 try {
                     APITrace.begin(getProvider(), "Image.searchPublicImages.populate");
                     try {
-                        final Document doc = method.get(LIST_TEMPLATES, params);
-                        final NodeList matches = doc.getElementsByTagName("template");
-
-                        for( int i=0; i<matches.getLength(); i++ ) {
-                            final MachineImage img = toImage(matches.item(i), true, hypervisors);
+                        final Set<String> seen = new HashSet<String>();
+                        final CSPager.Consumer<MachineImage> consumer = new CSPager.Consumer<MachineImage>() {
+                            public void accept(@Nonnull MachineImage img) {
+                                synchronized( seen ) {
+                                    if( seen.add(img.getProviderMachineImageId() + "#" + img.getProviderRegionId()) ) {
+                                        iterator.push(img);
+                                    }
+                                }
+                            }
+                        };
+                        List<FutureTask<Void>> others = new ArrayList<FutureTask<Void>>();
+
+                        for( final CSPager<MachineImage> pager : pagers.subList(1, pagers.size()) ) {
+                            FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+                                public Void call() throws CloudException, InternalException {
+                                    pager.forEach(consumer);
+                                    return null;
+                                }
+                            });
 
-                            if( img != null && options.matches(img) ) {
-                                iterator.push(img);
+                            others.add(task);
+                            try {
+                                getProvider().getExecutor().execute(task);
+                            }
+                            catch( RejectedExecutionException ignore ) {
+                                // the provider is closing; the filter gets listed on this thread below
+                            }
+                        }
+                        try {
+                            pagers.get(0).forEach(consumer);
+                            for( FutureTask<Void> task : others ) {
+                                task.run();
+                                task.get();
+                            }
+                        }
+                        catch( ExecutionException e ) {
+                            throw (e.getCause() instanceof Exception ? (Exception)e.getCause() : e);
+                        }
+                        finally {
+                            for( FutureTask<Void> task : others ) {
+                                task.cancel(true);
                             }
                         }
                     }
@@ -1053,111 +987,15 @@ public class Templates extends AbstractImageSupport<CSCloud> {
         });
 
         populator.populate();
-        allImages.addAll(populator.getResult());
-
-        /*todo add public isos when we can support launching vms from them
-         getProvider().hold();
-         populator = new PopulatorThread<MachineImage>(new JiteratorPopulator<MachineImage>() {
-             @Override
-             public void populate(@Nonnull Jiterator<MachineImage> iterator) throws Exception {
-                 try {
-                     APITrace.begin(getProvider(), "Image.searchPublicImages.populate");
-                     try {
-                         Document doc = method.get(method.buildUrl(LIST_ISOS, params3), LIST_ISOS);
-                         NodeList matches = doc.getElementsByTagName("iso");
-
-                         for( int i=0; i<matches.getLength(); i++ ) {
-                             MachineImage img = toImage(matches.item(i), true);
-
-
-                             if( img != null && options.matches(img) ) {
-                                 img.setTag("isISO", "true");
-                                 iterator.push(img);
-                             }
-                         }
-                     }
-                     finally {
-                         APITrace.end();
-                     }
-                 }
-                 finally {
-                     getProvider().release();
-                 }
-             }
-         });
-
-         populator.populate();
-         allImages.addAll(populator.getResult());
-         */
-        filterParam.setValue("community");
-        if (!getProvider().getServiceProvider().equals(CSServiceProvider.DATAPIPE) ) {
-            getProvider().hold();
-            populator = new PopulatorThread<MachineImage>(new JiteratorPopulator<MachineImage>() {
-                @Override
-                public void populate(@Nonnull Jiterator<MachineImage> iterator) throws Exception {
-                    try {
-                        APITrace.begin(getProvider(), "Image.searchPublicImages.populate");
-                        try {
-                            final Document doc = method.get(LIST_TEMPLATES, params);
-                            final NodeList matches = doc.getElementsByTagName("template");
-
-                            for( int i=0; i<matches.getLength(); i++ ) {
-                                final MachineImage img = toImage(matches.item(i), true, hypervisors);
-
-                                if( img != null && options.matches(img) && !allImages.contains(img)) {
-                                    iterator.push(img);
-                                }
-                            }
-                        }
-                        finally {
-                            APITrace.end();
-                        }
-                    }
-                    finally {
-                        getProvider().release();
-                    }
-                }
-            });
-
-            populator.populate();
-            allImages.addAll(populator.getResult());
-
-            /*todo add public isos when we can support launching vms from them
-             getProvider().hold();
-             populator = new PopulatorThread<MachineImage>(new JiteratorPopulator<MachineImage>() {
-                 @Override
-                 public void populate(@Nonnull Jiterator<MachineImage> iterator) throws Exception {
-                     try {
-                         APITrace.begin(getProvider(), "Image.searchPublicImages.populate");
-                         try {
-                             Document doc = method.get(method.buildUrl(LIST_ISOS, params4), LIST_ISOS);
-                             NodeList matches = doc.getElementsByTagName("iso");
-
-                             for( int i=0; i<matches.getLength(); i++ ) {
-                                 MachineImage img = toImage(matches.item(i), true);
+        return populator.getResult();
+    }
 
+    static private @Nonnull List<Param> withFilter(@Nonnull List<Param> params, @Nonnull String templateFilter) {
+        List<Param> filtered = new ArrayList<Param>();
 
-                                 if( img != null && options.matches(img) && !allImages.contains(img)) {
-                                    img.setTag("isISO", "true");
-                                    iterator.push(img);
-                                }
-                            }
-                        }
-                        finally {
-                            APITrace.end();
-                        }
-                    }
-                    finally {
-                        getProvider().release();
-                    }
-                }
-            });
-
-            populator.populate();
-            allImages.addAll(populator.getResult());
-            */
-        }
-        return allImages;
+        filtered.add(new Param("templateFilter", templateFilter));
+        filtered.addAll(params);
+        return filtered;
     }
 
     private @Nullable MachineImage toImage(@Nullable Node node, boolean onlyIfPublic, List<String> desiredHypervisors) throws CloudException, InternalException {
@@ -1335,34 +1173,115 @@ public class Templates extends AbstractImageSupport<CSCloud> {
         return null;
     }
 
-    private String toOs(Platform platform, Architecture architecture) throws InternalException, CloudException {
-        Document doc = new CSMethod(getProvider()).get(LIST_OS_TYPES);
-        NodeList matches = doc.getElementsByTagName("ostype");
-        
-        for( int i=0; i<matches.getLength(); i++ ) {
-            NodeList attrs = matches.item(i).getChildNodes();
-            Architecture arch = Architecture.I64;
-            Platform pf = null;
-            String id = null;
-            
-            for( int j=0; j<attrs.getLength(); j++ ) {
-                Node attr = attrs.item(j);
+    /**
+     * How long an endpoint's OS type table is used before <code>listOsTypes</code> is called again.
+     */
+    static private final long OS_TYPES_TTL = TimeUnit.HOURS.toMillis(24);
+
+    static private final ConcurrentHashMap<String,OsTypes> osTypes = new ConcurrentHashMap<String,OsTypes>();
+
+    /**
+     * The OS types of one endpoint indexed by platform and architecture. The first type listed for a pair wins,
+     * as it did when the listing was scanned on every lookup.
+     */
+    static private class OsTypes {
+        private final Map<Platform,Map<Architecture,String>> index = new HashMap<Platform,Map<Architecture,String>>();
+        private final long                                   loadedAt = System.currentTimeMillis();
+
+        void add(@Nonnull Platform platform, @Nonnull Architecture architecture, @Nonnull String id) {
+            Map<Architecture,String> ids = index.get(platform);
+
+            if( ids == null ) {
+                ids = new EnumMap<Architecture,String>(Architecture.class);
+                index.put(platform, ids);
+            }
+            if( !ids.containsKey(architecture) ) {
+                ids.put(architecture, id);
+            }
+        }
+
+        /**
+         * Falls back from the exact pair to the same platform on another architecture, then to the generic Windows or
+         * Unix type.
+         */
+        @Nullable String find(@Nonnull Platform platform, @Nonnull Architecture architecture) {
+            String id = find(index.get(platform), architecture);
 
-                if( attr.getNodeName().equals("id") ) {
-                    id = attr.getFirstChild().getNodeValue();
+            if( id == null && !platform.equals(Platform.UNKNOWN) ) {
+                if( platform.isWindows() && !platform.equals(Platform.WINDOWS) ) {
+                    id = find(index.get(Platform.WINDOWS), architecture);
                 }
-                else if( attr.getNodeName().equals("description") ) {
-                    String desc = attr.getFirstChild().getNodeValue();
-                    
-                    pf = Platform.guess(desc);
-                    arch = guess(desc);
+                else if( platform.isUnix() && !platform.equals(Platform.UNIX) ) {
+                    id = find(index.get(Platform.UNIX), architecture);
                 }
             }
-            if( platform.equals(pf) && architecture.equals(arch) ) {
-                return id;
+            return id;
+        }
+
+        private @Nullable String find(@Nullable Map<Architecture,String> ids, @Nonnull Architecture architecture) {
+            if( ids == null || ids.isEmpty() ) {
+                return null;
             }
+            String id = ids.get(architecture);
+
+            return (id == null ? ids.values().iterator().next() : id);
+        }
+
+        boolean isExpired() {
+            return (System.currentTimeMillis() - loadedAt > OS_TYPES_TTL);
+        }
+    }
+
+    private @Nullable String toOs(@Nonnull Platform platform, @Nonnull Architecture architecture) throws InternalException, CloudException {
+        String endpoint = getContext().getCloud().getEndpoint();
+        OsTypes types = osTypes.get(endpoint);
+
+        if( types == null || types.isExpired() ) {
+            // concurrent loads for the same endpoint already share one request in CSMethod
+            types = loadOsTypes();
+            osTypes.put(endpoint, types);
+        }
+        return types.find(platform, architecture);
+    }
+
+    private @Nonnull OsTypes loadOsTypes() throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "Image.loadOsTypes");
+        try {
+            Document doc = new CSMethod(getProvider()).getCatalog(LIST_OS_TYPES);
+            NodeList matches = doc.getElementsByTagName("ostype");
+            OsTypes types = new OsTypes();
+
+            for( int i=0; i<matches.getLength(); i++ ) {
+                NodeList attrs = matches.item(i).getChildNodes();
+                Architecture arch = Architecture.I64;
+                Platform pf = null;
+                String id = null;
+
+                for( int j=0; j<attrs.getLength(); j++ ) {
+                    Node attr = attrs.item(j);
+
+                    if( !attr.hasChildNodes() ) {
+                        continue;
+                    }
+                    if( attr.getNodeName().equals("id") ) {
+                        id = attr.getFirstChild().getNodeValue();
+                    }
+                    else if( attr.getNodeName().equals("description") ) {
+                        String desc = attr.getFirstChild().getNodeValue();
+
+                        pf = Platform.guess(desc);
+                        arch = guess(desc);
+                    }
+                }
+                if( id != null && pf != null ) {
+                    types.add(pf, arch, id);
+                }
+            }
+            return types;
+        }
+        finally {
+            APITrace.end();
         }
-        return null;
     }
     
     private String validateName(String name) throws InternalException, CloudException {
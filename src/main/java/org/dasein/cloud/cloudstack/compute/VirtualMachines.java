@@ -29,8 +29,9 @@ import org.dasein.cloud.ResourceStatus;
 import org.dasein.cloud.Tag;
 import org.dasein.cloud.cloudstack.CSCloud;
 import org.dasein.cloud.cloudstack.CSException;
+import org.dasein.cloud.cloudstack.CSInventory;
 import org.dasein.cloud.cloudstack.CSMethod;
-import org.dasein.cloud.cloudstack.CSTopology;
+import org.dasein.cloud.cloudstack.CSPager;
 import org.dasein.cloud.cloudstack.CSVersion;
 import org.dasein.cloud.cloudstack.Param;
 import org.dasein.cloud.cloudstack.network.Network;
@@ -69,6 +70,7 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Future;
 
 public class VirtualMachines extends AbstractVMSupport<CSCloud> {
     static public final Logger logger = Logger.getLogger(VirtualMachines.class);
@@ -405,6 +407,15 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
     public @Nullable VirtualMachine getVirtualMachine(@Nonnull String serverId) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "VM.getVirtualMachine");
         try {
+            CSInventory inventory = getProvider().getInventory();
+
+            if( inventory != null && inventory.isFresh() ) {
+                VirtualMachine vm = inventory.getVirtualMachine(serverId);
+
+                if( vm != null ) {
+                    return vm;
+                }
+            }
             Document doc = new CSMethod(getProvider()).get(LIST_VIRTUAL_MACHINES, new Param("id", serverId));
             NodeList matches = doc.getElementsByTagName("virtualmachine");
 
@@ -435,7 +446,7 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
     public boolean isSubscribed() throws CloudException, InternalException {
         APITrace.begin(getProvider(), "VM.isSubscribed");
         try {
-            new CSMethod(getProvider()).get(CSTopology.LIST_ZONES, new Param("available", "true"));
+            getProvider().getZoneCatalog();
             return true;
         }
         catch( CSException e ) {
@@ -494,6 +505,7 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
             if( withLaunchOptions.getVirtualMachineGroup() != null ) {
             	tags.add(new Tag("dsnVMGroup", withLaunchOptions.getVirtualMachineGroup()));
             }
+            // createTags invalidates the new VM in the inventory, so the next sync indexes it with its tags
             getProvider().createTags(new String[] { vm.getProviderVirtualMachineId() }, "UserVm", tags.toArray(new Tag[tags.size()]));
             return vm;
         }
@@ -919,7 +931,7 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
                 }
                 products = new ArrayList<VirtualMachineProduct>();
 
-                Document doc = new CSMethod(getProvider()).get(
+                Document doc = new CSMethod(getProvider()).getCatalog(
                         LIST_SERVICE_OFFERINGS,
                         new Param("zoneId", getContext().getRegionId())
                 );
@@ -998,108 +1010,194 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
     public @Nonnull Iterable<ResourceStatus> listVirtualMachineStatus() throws InternalException, CloudException {
         APITrace.begin(getProvider(), "VM.listVirtualMachineStatus");
         try {
-            CSMethod method = new CSMethod(getProvider());
-            Document doc = method.get(
-                    LIST_VIRTUAL_MACHINES,
-                    new Param("zoneId", getContext().getRegionId())
-            );
-            List<ResourceStatus> servers = new ArrayList<ResourceStatus>();
-
-            int numPages = 1;
-            NodeList nodes = doc.getElementsByTagName("count");
-            Node n = nodes.item(0);
-            if (n != null) {
-                String value = n.getFirstChild().getNodeValue().trim();
-                int count = Integer.parseInt(value);
-                numPages = count/500;
-                int remainder = count % 500;
-                if (remainder > 0) {
-                    numPages++;
-                }
-            }
-
-            for (int page = 1; page <= numPages; page++) {
-                if (page > 1) {
-                    String nextPage = String.valueOf(page);
-                    doc = method.get(
-                            LIST_VIRTUAL_MACHINES,
-                            new Param("zoneId", getContext().getRegionId()),
-                            new Param("pagesize", "500"),
-                            new Param("page", nextPage)
-                    );
+            return new CSPager<ResourceStatus>(getProvider(), LIST_VIRTUAL_MACHINES, "virtualmachine", new CSPager.Converter<ResourceStatus>() {
+                public @Nullable ResourceStatus convert(@Nonnull Node node) throws CloudException, InternalException {
+                    return toStatus(node);
                 }
-                NodeList matches = doc.getElementsByTagName("virtualmachine");
+            }, new Param("zoneId", getContext().getRegionId())).list();
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    Node node = matches.item(i);
+    @Override
+    public @Nonnull Iterable<VirtualMachine> listVirtualMachines() throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "VM.listVirtualMachines");
+        try {
+            return getVirtualMachinePager().stream();
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-                    if( node != null ) {
-                        ResourceStatus vm = toStatus(node);
+    /**
+     * Lists the virtual machines on the provider's executor, with the pages fetched in parallel, so that the listing
+     * can overlap other work such as listing the volumes, addresses and firewalls.
+     * @return a cancellable future holding the virtual machines
+     * @throws InternalException an error occurred locally while starting the listing
+     * @throws CloudException an error occurred with the cloud provider while starting the listing
+     */
+    public @Nonnull Future<Iterable<VirtualMachine>> listVirtualMachinesConcurrently() throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "VM.listVirtualMachinesConcurrently");
+        try {
+            return getVirtualMachinePager().listConcurrently();
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-                        if( vm != null ) {
-                            servers.add(vm);
+    private @Nonnull CSPager<VirtualMachine> getVirtualMachinePager() throws InternalException, CloudException {
+        return new CSPager<VirtualMachine>(getProvider(), LIST_VIRTUAL_MACHINES, "virtualmachine", new CSPager.Converter<VirtualMachine>() {
+            public @Nullable VirtualMachine convert(@Nonnull Node node) throws CloudException, InternalException {
+                return toVirtualMachine(node);
+            }
+        }, new Param("zoneId", getContext().getRegionId()));
+    }
+
+    @Override
+    public @Nonnull Iterable<VirtualMachine> listVirtualMachines(@Nullable VMFilterOptions options) throws InternalException, CloudException {
+        if( options == null || !options.hasCriteria() ) {
+            return listVirtualMachines();
+        }
+        APITrace.begin(getProvider(), "VM.listVirtualMachines");
+        try {
+            Map<String,String> tags = options.getTags();
+            CSInventory inventory = getProvider().getInventory();
+
+            // every match carries all of the tags, so the machines indexed under any one of them are the candidates
+            if( !options.isMatchesAny() && tags != null && !tags.isEmpty() && inventory != null && inventory.isFresh() ) {
+                Map.Entry<String,String> tag = tags.entrySet().iterator().next();
+
+                if( tag.getKey() != null && tag.getValue() != null && isLiteral(tag.getValue()) ) {
+                    List<VirtualMachine> matches = new ArrayList<VirtualMachine>();
+
+                    for( Object resource : inventory.findByTag(tag.getKey(), tag.getValue()) ) {
+                        if( resource instanceof VirtualMachine && options.matches((VirtualMachine)resource) ) {
+                            matches.add((VirtualMachine)resource);
                         }
                     }
+                    return matches;
                 }
             }
-            return servers;
+            return listVirtualMachines(options, new ArrayList<Param>());
         }
         finally {
             APITrace.end();
         }
     }
 
-    @Override
-    public @Nonnull Iterable<VirtualMachine> listVirtualMachines() throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "VM.listVirtualMachines");
+    /**
+     * Lists the virtual machines attached to a network, filtered by the cloud rather than client side.
+     * @param vlanId the network to list the virtual machines of
+     * @return the virtual machines in the network
+     * @throws InternalException an error occurred locally while listing
+     * @throws CloudException an error occurred with the cloud provider while listing
+     */
+    public @Nonnull Iterable<VirtualMachine> listVirtualMachinesInVlan(@Nonnull String vlanId) throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "VM.listVirtualMachinesInVlan");
         try {
-            CSMethod method = new CSMethod(getProvider());
-            Document doc = method.get(
-                    LIST_VIRTUAL_MACHINES,
-                    new Param("zoneId", getContext().getRegionId())
-            );
-            List<VirtualMachine> servers = new ArrayList<VirtualMachine>();
+            List<Param> filters = new ArrayList<Param>();
 
-            int numPages = 1;
-            NodeList nodes = doc.getElementsByTagName("count");
-            Node n = nodes.item(0);
-            if (n != null) {
-                String value = n.getFirstChild().getNodeValue().trim();
-                int count = Integer.parseInt(value);
-                numPages = count/500;
-                int remainder = count % 500;
-                if (remainder > 0) {
-                    numPages++;
-                }
-            }
+            filters.add(new Param("networkid", vlanId));
+            return listVirtualMachines(null, filters);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Lists the virtual machines launched from an image, filtered by the cloud rather than client side.
+     * @param imageId the template or ISO the virtual machines were launched from
+     * @return the matching virtual machines
+     * @throws InternalException an error occurred locally while listing
+     * @throws CloudException an error occurred with the cloud provider while listing
+     */
+    public @Nonnull Iterable<VirtualMachine> listVirtualMachinesFromImage(@Nonnull String imageId) throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "VM.listVirtualMachinesFromImage");
+        try {
+            List<Param> filters = new ArrayList<Param>();
 
-            for (int page = 1; page <= numPages; page++) {
-                if (page > 1) {
-                    String nextPage = String.valueOf(page);
-                    doc = method.get(
-                            LIST_VIRTUAL_MACHINES,
-                            new Param("zoneId", getContext().getRegionId()),
-                            new Param("pagesize", "500"),
-                            new Param("page", nextPage));
+            filters.add(new Param("templateid", imageId));
+            return listVirtualMachines(null, filters);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Translates as much of the filter options as the API can evaluate into <code>listVirtualMachines</code>
+     * parameters. The options are still applied to every result, so a parameter only has to narrow the listing,
+     * never to match the options exactly.
+     */
+    private @Nonnull Iterable<VirtualMachine> listVirtualMachines(@Nullable final VMFilterOptions options, @Nonnull List<Param> filters) throws InternalException, CloudException {
+        filters.add(new Param("zoneId", getContext().getRegionId()));
+        if( options != null && !options.isMatchesAny() ) {
+            Set<VmState> states = options.getVmStates();
+
+            if( states != null && states.size() == 1 ) {
+                String state = toStateFilter(states.iterator().next());
+
+                if( state != null ) {
+                    filters.add(new Param("state", state));
                 }
-                NodeList matches = doc.getElementsByTagName("virtualmachine");
+            }
+            String regex = options.getRegex();
 
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    Node node = matches.item(i);
+            // keyword is a substring match on name and display name, so only a plain name can be passed on
+            if( regex != null && isLiteral(regex) && !regex.matches("[0-9a-fA-F:]+") ) {
+                filters.add(new Param("keyword", regex));
+            }
+            Map<String,String> tags = options.getTags();
 
-                    if( node != null ) {
-                        VirtualMachine vm = toVirtualMachine(node);
+            if( tags != null ) {
+                int i = 0;
 
-                        if( vm != null ) {
-                            servers.add(vm);
-                        }
+                for( Map.Entry<String,String> tag : tags.entrySet() ) {
+                    if( tag.getKey() != null && tag.getValue() != null && isLiteral(tag.getValue()) ) {
+                        filters.add(new Param("tags[" + i + "].key", tag.getKey()));
+                        filters.add(new Param("tags[" + i + "].value", tag.getValue()));
+                        i++;
                     }
                 }
             }
-            return servers;
         }
-        finally {
-            APITrace.end();
+        return new CSPager<VirtualMachine>(getProvider(), LIST_VIRTUAL_MACHINES, "virtualmachine", new CSPager.Converter<VirtualMachine>() {
+            public @Nullable VirtualMachine convert(@Nonnull Node node) throws CloudException, InternalException {
+                VirtualMachine vm = toVirtualMachine(node);
+
+                if( vm != null && (options == null || options.matches(vm)) ) {
+                    return vm;
+                }
+                return null;
+            }
+        }, filters).stream();
+    }
+
+    static private boolean isLiteral(@Nonnull String regex) {
+        for( int i=0; i<regex.length(); i++ ) {
+            if( "\\.[]{}()<>*+-=!?^$|".indexOf(regex.charAt(i)) > -1 ) {
+                return false;
+            }
+        }
+        return !regex.isEmpty();
+    }
+
+    /**
+     * @param state a Dasein VM state
+     * @return the CloudStack state that maps to it alone, or <code>null</code> if several CloudStack states map to it
+     */
+    static private @Nullable String toStateFilter(@Nonnull VmState state) {
+        switch( state ) {
+            case RUNNING: return "Running";
+            case STOPPED: return "Stopped";
+            case STOPPING: return "Stopping";
+            case ERROR: return "Error";
+            default: return null;
         }
     }
 
@@ -1204,6 +1302,11 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
             new CSMethod(getProvider()).get(
                     DESTROY_VIRTUAL_MACHINE, params
             );
+            CSInventory inventory = getProvider().getInventory();
+
+            if( inventory != null ) {
+                inventory.removeVirtualMachine(serverId);
+            }
         }
         finally {
             APITrace.end();
@@ -1328,7 +1431,15 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
                     for( int j=0; j<parts.getLength(); j++ ) {
                         Node part = parts.item(j);
                         if( "id".equalsIgnoreCase(part.getNodeName()) ) {
-                            server.setProviderFirewallIds(new String[] { part.getFirstChild().getNodeValue() });
+                            // one element per group, so add to the ids of any groups seen before
+                            String[] ids = server.getProviderFirewallIds();
+                            List<String> all = new ArrayList<String>();
+
+                            if( ids != null ) {
+                                Collections.addAll(all, ids);
+                            }
+                            all.add(part.getFirstChild().getNodeValue());
+                            server.setProviderFirewallIds(all.toArray(new String[all.size()]));
                             break;
                         }
                     }
@@ -27,6 +27,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -41,7 +42,9 @@ import org.dasein.cloud.ResourceStatus;
 import org.dasein.cloud.Tag;
 import org.dasein.cloud.cloudstack.CSCloud;
 import org.dasein.cloud.cloudstack.CSException;
+import org.dasein.cloud.cloudstack.CSInventory;
 import org.dasein.cloud.cloudstack.CSMethod;
+import org.dasein.cloud.cloudstack.CSPager;
 import org.dasein.cloud.cloudstack.CSServiceProvider;
 import org.dasein.cloud.cloudstack.Param;
 import org.dasein.cloud.compute.AbstractVolumeSupport;
@@ -330,6 +333,15 @@ public class Volumes extends AbstractVolumeSupport {
             tags.add(new Tag("Name", options.getName()));
             tags.add(new Tag("Description", options.getDescription()));
             provider.createTags(new String[] { volumeId }, "Volume", tags.toArray(new Tag[tags.size()]));
+            CSInventory inventory = provider.getInventory();
+
+            if( inventory != null ) {
+                Volume volume = getVolume(volumeId);
+
+                if( volume != null ) {
+                    inventory.put(volume);
+                }
+            }
             return volumeId;
         }
         finally {
@@ -376,7 +388,7 @@ public class Volumes extends AbstractVolumeSupport {
     }
 
     @Nonnull Collection<DiskOffering> getDiskOfferings() throws InternalException, CloudException {
-        final Document doc = new CSMethod(provider).get(LIST_DISK_OFFERINGS);
+        final Document doc = new CSMethod(provider).getCatalog(LIST_DISK_OFFERINGS);
         List<DiskOffering> offerings = new ArrayList<DiskOffering>();
         NodeList matches = doc.getElementsByTagName("diskoffering");
         
@@ -464,6 +476,15 @@ public class Volumes extends AbstractVolumeSupport {
     public @Nullable Volume getVolume(@Nonnull String volumeId) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Volume.getVolume");
         try {
+            CSInventory inventory = provider.getInventory();
+
+            if( inventory != null && inventory.isFresh() ) {
+                Volume volume = inventory.getVolume(volumeId);
+
+                if( volume != null ) {
+                    return volume;
+                }
+            }
             final Document doc = new CSMethod(provider).get(LIST_VOLUMES, new Param("id", volumeId), new Param("zoneId", getContext().getRegionId()));
             NodeList matches = doc.getElementsByTagName("volume");
 
@@ -582,43 +603,11 @@ public class Volumes extends AbstractVolumeSupport {
     public @Nonnull Iterable<ResourceStatus> listVolumeStatus() throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Volume.listVolumeStatus");
         try {
-            CSMethod method = new CSMethod(provider);
-            Document doc = method.get(LIST_VOLUMES, new Param("zoneId", getContext().getRegionId()));
-            List<ResourceStatus> volumes = new ArrayList<ResourceStatus>();
-
-            int numPages = 1;
-            NodeList nodes = doc.getElementsByTagName("count");
-            Node n = nodes.item(0);
-            if (n != null) {
-                String value = n.getFirstChild().getNodeValue().trim();
-                int count = Integer.parseInt(value);
-                numPages = count/500;
-                int remainder = count % 500;
-                if (remainder > 0) {
-                    numPages++;
-                }
-            }
-
-            for (int page = 1; page <= numPages; page++) {
-                if (page > 1) {
-                    String nextPage = String.valueOf(page);
-                    doc = method.get(LIST_VOLUMES, new Param("zoneId", getContext().getRegionId()), new Param("pagesize", "500"), new Param("page", nextPage));
+            return new CSPager<ResourceStatus>(provider, LIST_VOLUMES, "volume", new CSPager.Converter<ResourceStatus>() {
+                public @Nullable ResourceStatus convert(@Nonnull Node node) throws CloudException, InternalException {
+                    return toStatus(node);
                 }
-                NodeList matches = doc.getElementsByTagName("volume");
-
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    Node v = matches.item(i);
-
-                    if( v != null ) {
-                        ResourceStatus volume = toStatus(v);
-
-                        if( volume != null ) {
-                            volumes.add(volume);
-                        }
-                    }
-                }
-            }
-            return volumes;
+            }, new Param("zoneId", getContext().getRegionId())).list();
         }
         finally {
             APITrace.end();
@@ -636,43 +625,33 @@ public class Volumes extends AbstractVolumeSupport {
         }
     }
      
-    private @Nonnull Collection<Volume> listVolumes(boolean rootOnly) throws InternalException, CloudException {
-        CSMethod method = new CSMethod(provider);
-        Document doc = method.get(LIST_VOLUMES, new Param("zoneId", getContext().getRegionId()));
-        ArrayList<Volume> volumes = new ArrayList<Volume>();
-        int numPages = 1;
-        NodeList nodes = doc.getElementsByTagName("count");
-        Node n = nodes.item(0);
-        if (n != null) {
-            String value = n.getFirstChild().getNodeValue().trim();
-            int count = Integer.parseInt(value);
-            numPages = count/500;
-            int remainder = count % 500;
-            if (remainder > 0) {
-                numPages++;
-            }
-        }
-
-        for (int page = 1; page <= numPages; page++) {
-            if (page > 1) {
-                String nextPage = String.valueOf(page);
-                doc = method.get(LIST_VOLUMES, new Param("zoneId", getContext().getRegionId()), new Param("pagesize", "500"), new Param("page", nextPage));
-            }
-            NodeList matches = doc.getElementsByTagName("volume");
-
-            for( int i=0; i<matches.getLength(); i++ ) {
-                Node v = matches.item(i);
+    /**
+     * Lists the volumes on the provider's executor, with the pages fetched in parallel, so that the listing can
+     * overlap other work.
+     * @return a cancellable future holding the volumes
+     * @throws InternalException an error occurred locally while starting the listing
+     * @throws CloudException an error occurred with the cloud provider while starting the listing
+     */
+    public @Nonnull Future<Iterable<Volume>> listVolumesConcurrently() throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "Volume.listVolumesConcurrently");
+        try {
+            return getVolumePager(false).listConcurrently();
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-                if( v != null ) {
-                    Volume volume = toVolume(v, rootOnly);
+    private @Nonnull Iterable<Volume> listVolumes(final boolean rootOnly) throws InternalException, CloudException {
+        return getVolumePager(rootOnly).stream();
+    }
 
-                    if( volume != null ) {
-                        volumes.add(volume);
-                    }
-                }
+    private @Nonnull CSPager<Volume> getVolumePager(final boolean rootOnly) throws InternalException, CloudException {
+        return new CSPager<Volume>(provider, LIST_VOLUMES, "volume", new CSPager.Converter<Volume>() {
+            public @Nullable Volume convert(@Nonnull Node node) throws CloudException, InternalException {
+                return toVolume(node, rootOnly);
             }
-        }
-        return volumes;
+        }, new Param("zoneId", getContext().getRegionId()));
     }
 
     @Override
@@ -682,6 +661,11 @@ public class Volumes extends AbstractVolumeSupport {
             Document doc = new CSMethod(provider).get(DELETE_VOLUME, new Param("id", volumeId));
 
             provider.waitForJob(doc, "Delete Volume");
+            CSInventory inventory = provider.getInventory();
+
+            if( inventory != null ) {
+                inventory.removeVolume(volumeId);
+            }
         }
         finally {
             APITrace.end();
@@ -25,6 +25,7 @@ import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.Requirement;
 import org.dasein.cloud.cloudstack.CSCloud;
 import org.dasein.cloud.cloudstack.CSMethod;
+import org.dasein.cloud.cloudstack.CSPager;
 import org.dasein.cloud.cloudstack.Param;
 import org.dasein.cloud.identity.SSHKeypair;
 import org.dasein.cloud.identity.ServiceAction;
@@ -38,9 +39,7 @@ import org.w3c.dom.NodeList;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
 import java.util.Locale;
 
 /**
@@ -165,42 +164,11 @@ public class Keypair implements ShellKeySupport {
     public @Nonnull Collection<SSHKeypair> list() throws InternalException, CloudException {
         APITrace.begin(provider, "Keypair.list");
         try {
-            final CSMethod method = new CSMethod(provider);
-            Document doc = method.get(CSMethod.LIST_KEYPAIRS);
-            final List<SSHKeypair> keys = new ArrayList<SSHKeypair>();
-
-            int numPages = 1;
-            NodeList nodes = doc.getElementsByTagName("count");
-            Node n = nodes.item(0);
-            if (n != null) {
-                String value = n.getFirstChild().getNodeValue().trim();
-                int count = Integer.parseInt(value);
-                numPages = count/500;
-                int remainder = count % 500;
-                if (remainder > 0) {
-                    numPages++;
-                }
-            }
-
-            for (int page = 1; page <= numPages; page++) {
-                if (page > 1) {
-                    String nextPage = String.valueOf(page);
-                    doc = method.get(
-                            CSMethod.LIST_KEYPAIRS,
-                            new Param("pagesize", "500"),
-                            new Param("page", nextPage)
-                    );
+            return new CSPager<SSHKeypair>(provider, CSMethod.LIST_KEYPAIRS, "sshkeypair", new CSPager.Converter<SSHKeypair>() {
+                public @Nullable SSHKeypair convert(@Nonnull Node node) throws CloudException, InternalException {
+                    return toKeypair(provider.getContext(), node);
                 }
-                NodeList matches = doc.getElementsByTagName("sshkeypair");
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    SSHKeypair key = toKeypair(provider.getContext(), matches.item(i));
-
-                    if( key != null ) {
-                        keys.add(key);
-                    }
-                }
-            }
-            return keys;
+            }).list();
         }
         finally {
             APITrace.end();
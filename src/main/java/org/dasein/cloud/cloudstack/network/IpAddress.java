@@ -22,10 +22,15 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -42,7 +47,9 @@ import org.dasein.cloud.Tag;
 import org.dasein.cloud.Taggable;
 import org.dasein.cloud.cloudstack.CSCloud;
 import org.dasein.cloud.cloudstack.CSException;
+import org.dasein.cloud.cloudstack.CSInventory;
 import org.dasein.cloud.cloudstack.CSMethod;
+import org.dasein.cloud.cloudstack.CSPager;
 import org.dasein.cloud.cloudstack.CSVersion;
 import org.dasein.cloud.cloudstack.Param;
 import org.dasein.cloud.compute.VirtualMachine;
@@ -72,6 +79,56 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
     static private final String LIST_PUBLIC_IP_ADDRESSES    = "listPublicIpAddresses";
     static private final String STOP_FORWARD                = "deletePortForwardingRule";
 
+    /**
+     * What an address listing needs to know beyond the addresses themselves: which addresses carry load balancer
+     * rules and which servers have public addresses. Both are looked up at most once per listing and only if an
+     * address needs them, so the cost of a listing stays proportional to the number of addresses.
+     */
+    private class Associations {
+        private Set<String>        loadBalancers;
+        private Map<String,String> servers;
+
+        Associations() { }
+
+        Associations(@Nonnull Set<String> loadBalancers) {
+            this.loadBalancers = loadBalancers;
+        }
+
+        /**
+         * For addresses whose associations are already known, e.g. one that was just allocated.
+         */
+        Associations(@Nonnull Set<String> loadBalancers, @Nonnull Map<String,String> servers) {
+            this.loadBalancers = loadBalancers;
+            this.servers = servers;
+        }
+
+        synchronized boolean isLoadBalanced(@Nonnull String address) throws CloudException, InternalException {
+            if( loadBalancers == null ) {
+                LoadBalancerSupport support = getProvider().getNetworkServices().getLoadBalancerSupport();
+
+                if( support == null ) {
+                    loadBalancers = Collections.emptySet();
+                }
+                else {
+                    loadBalancers = LoadBalancers.listAddresses(getProvider());
+                }
+            }
+            return loadBalancers.contains(address);
+        }
+
+        synchronized @Nullable String getServerId(@Nonnull String address) throws CloudException, InternalException {
+            if( servers == null ) {
+                servers = new HashMap<String,String>();
+                for( VirtualMachine vm : getProvider().getComputeServices().getVirtualMachineSupport().listVirtualMachines() ) {
+                    for( RawAddress addr : vm.getPublicAddresses() ) {
+                        servers.put(addr.getIpAddress(), vm.getProviderVirtualMachineId());
+                    }
+                }
+            }
+            return servers.get(address);
+        }
+    }
+
     public IpAddress(CSCloud provider) {
         super(provider);
     }
@@ -146,22 +203,13 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
             try {
                 CSMethod method = new CSMethod(getProvider());
                 Document doc = method.get(LIST_PUBLIC_IP_ADDRESSES, new Param(isId() ? "id" : "ipAddress", addressId));
-                HashMap<String,LoadBalancer> loadBalancers = new HashMap<String,LoadBalancer>();
+                Set<String> loadBalancers = new HashSet<String>();
                 LoadBalancerSupport support = getProvider().getNetworkServices().getLoadBalancerSupport();
                 LoadBalancer lb = (support == null ? null : support.getLoadBalancer(addressId));
                 if( lb != null ) {
-                    loadBalancers.put(addressId, lb);
+                    loadBalancers.add(lb.getProviderLoadBalancerId());
                 }
-                NodeList matches = doc.getElementsByTagName("publicipaddress");
-                for( int i = 0; i < matches.getLength(); i++ ) {
-                    org.dasein.cloud.network.IpAddress addr = toAddress(matches.item(i), loadBalancers);
-                    if( addr != null ) {
-                        if( addr.getProviderIpAddressId().equals(addressId) ) {
-                            return addr;
-                        }
-                    }
-                }
-                return null;
+                return toAddress(doc, addressId, new Associations(loadBalancers));
             }
             catch( CSException e ) {
                 if( e.getHttpCode() == 431 ) {
@@ -175,6 +223,56 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
         }
     }
 
+    /**
+     * Looks up several addresses at once. Unlike calling {@link #getIpAddress(String)} for each, the load balancer
+     * and server lookups are shared, so they are made at most once for all of the addresses.
+     * @param addressIds the addresses to look up
+     * @return the addresses by id, with <code>null</code> for any id that does not name an allocated address
+     * @throws InternalException an error occurred locally while looking up the addresses
+     * @throws CloudException an error occurred with the cloud provider while looking up the addresses
+     */
+    public @Nonnull Map<String,org.dasein.cloud.network.IpAddress> getIpAddresses(@Nonnull Collection<String> addressIds) throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "IpAddress.getIpAddresses");
+        try {
+            Map<String,org.dasein.cloud.network.IpAddress> addresses = new LinkedHashMap<String,org.dasein.cloud.network.IpAddress>();
+            Associations associations = new Associations();
+
+            for( String addressId : addressIds ) {
+                org.dasein.cloud.network.IpAddress addr = null;
+
+                try {
+                    Document doc = new CSMethod(getProvider()).get(LIST_PUBLIC_IP_ADDRESSES, new Param(isId() ? "id" : "ipAddress", addressId));
+
+                    addr = toAddress(doc, addressId, associations);
+                }
+                catch( CSException e ) {
+                    if( e.getHttpCode() != 431 ) {
+                        throw e;
+                    }
+                }
+                addresses.put(addressId, addr);
+            }
+            return addresses;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    private @Nullable org.dasein.cloud.network.IpAddress toAddress(@Nonnull Document doc, @Nonnull String addressId, @Nonnull Associations associations) throws InternalException, CloudException {
+        NodeList matches = doc.getElementsByTagName("publicipaddress");
+
+        for( int i = 0; i < matches.getLength(); i++ ) {
+            org.dasein.cloud.network.IpAddress addr = toAddress(matches.item(i), associations);
+            if( addr != null ) {
+                if( addr.getProviderIpAddressId().equals(addressId) ) {
+                    return addr;
+                }
+            }
+        }
+        return null;
+    }
+
 
     @Override
     public boolean isSubscribed() throws CloudException, InternalException {
@@ -196,55 +294,11 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
     }
 
     @Override
-    public @Nonnull Iterable<org.dasein.cloud.network.IpAddress> listIpPool(@Nonnull IPVersion version, boolean unassignedOnly) throws InternalException, CloudException {
+    public @Nonnull Iterable<org.dasein.cloud.network.IpAddress> listIpPool(@Nonnull IPVersion version, final boolean unassignedOnly) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "IpAddress.listIpPool");
         try {
             if( version.equals(IPVersion.IPV4) ) {
-                HashMap<String,LoadBalancer> loadBalancers = new HashMap<String,LoadBalancer>();
-                LoadBalancerSupport support = getProvider().getNetworkServices().getLoadBalancerSupport();
-
-                if( support != null ) {
-                    for( LoadBalancer lb : support.listLoadBalancers() ) {
-                        loadBalancers.put(lb.getProviderLoadBalancerId(), lb);
-                    }
-                }
-                CSMethod method = new CSMethod(getProvider());
-                Document doc = method.get(LIST_PUBLIC_IP_ADDRESSES, new Param("zoneId", getContext().getRegionId()));
-                ArrayList<org.dasein.cloud.network.IpAddress> addresses = new ArrayList<org.dasein.cloud.network.IpAddress>();
-
-                int numPages = 1;
-                NodeList nodes = doc.getElementsByTagName("count");
-                Node n = nodes.item(0);
-                if (n != null) {
-                    String value = n.getFirstChild().getNodeValue().trim();
-                    int count = Integer.parseInt(value);
-                    numPages = count/500;
-                    int remainder = count % 500;
-                    if (remainder > 0) {
-                        numPages++;
-                    }
-                }
-
-                for (int page = 1; page <= numPages; page++) {
-                    if (page > 1) {
-                        String nextPage = String.valueOf(page);
-                        doc = method.get(LIST_PUBLIC_IP_ADDRESSES,
-                                new Param("zoneId", getContext().getRegionId()),
-                                new Param("pagesize", "500"),
-                                new Param("page", nextPage)
-                        );
-                    }
-                    NodeList matches = doc.getElementsByTagName("publicipaddress");
-
-                    for( int i=0; i<matches.getLength(); i++ ) {
-                        org.dasein.cloud.network.IpAddress addr = toAddress(matches.item(i), loadBalancers);
-
-                        if( addr != null && (!unassignedOnly || !addr.isAssigned()) ) {
-                            addresses.add(addr);
-                        }
-                    }
-                }
-                return addresses;
+                return getIpPoolPager(unassignedOnly).stream();
             }
             return Collections.emptyList();
         }
@@ -256,7 +310,38 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
     @Nonnull
     @Override
     public Future<Iterable<org.dasein.cloud.network.IpAddress>> listIpPoolConcurrently(@Nonnull IPVersion version, boolean unassignedOnly) throws InternalException, CloudException {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        APITrace.begin(getProvider(), "IpAddress.listIpPoolConcurrently");
+        try {
+            if( version.equals(IPVersion.IPV4) ) {
+                return getIpPoolPager(unassignedOnly).listConcurrently();
+            }
+            FutureTask<Iterable<org.dasein.cloud.network.IpAddress>> none = new FutureTask<Iterable<org.dasein.cloud.network.IpAddress>>(new Callable<Iterable<org.dasein.cloud.network.IpAddress>>() {
+                public Iterable<org.dasein.cloud.network.IpAddress> call() {
+                    return Collections.emptyList();
+                }
+            });
+
+            none.run();
+            return none;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    private @Nonnull CSPager<org.dasein.cloud.network.IpAddress> getIpPoolPager(final boolean unassignedOnly) throws InternalException, CloudException {
+        final Associations associations = new Associations();
+
+        return new CSPager<org.dasein.cloud.network.IpAddress>(getProvider(), LIST_PUBLIC_IP_ADDRESSES, "publicipaddress", new CSPager.Converter<org.dasein.cloud.network.IpAddress>() {
+            public @Nullable org.dasein.cloud.network.IpAddress convert(@Nonnull Node node) throws CloudException, InternalException {
+                org.dasein.cloud.network.IpAddress addr = toAddress(node, associations);
+
+                if( addr != null && (!unassignedOnly || !addr.isAssigned()) ) {
+                    return addr;
+                }
+                return null;
+            }
+        }, new Param("zoneId", getContext().getRegionId()));
     }
 
     @Override
@@ -266,50 +351,13 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
             if( !IPVersion.IPV4.equals(version) ) {
                 return Collections.emptyList();
             }
-            final Map<String,LoadBalancer> loadBalancers = new HashMap<String,LoadBalancer>();
-            final LoadBalancerSupport support = getProvider().getNetworkServices().getLoadBalancerSupport();
+            final Associations associations = new Associations();
 
-            if( support != null ) {
-                for( LoadBalancer lb : support.listLoadBalancers() ) {
-                    loadBalancers.put(lb.getProviderLoadBalancerId(), lb);
+            return new CSPager<ResourceStatus>(getProvider(), LIST_PUBLIC_IP_ADDRESSES, "publicipaddress", new CSPager.Converter<ResourceStatus>() {
+                public @Nullable ResourceStatus convert(@Nonnull Node node) throws CloudException, InternalException {
+                    return toStatus(node, associations);
                 }
-            }
-            final CSMethod method = new CSMethod(getProvider());
-            Document doc = method.get(LIST_PUBLIC_IP_ADDRESSES, new Param("zoneId", getContext().getRegionId()));
-            List<ResourceStatus> addresses = new ArrayList<ResourceStatus>();
-
-            int numPages = 1;
-            NodeList nodes = doc.getElementsByTagName("count");
-            Node n = nodes.item(0);
-            if (n != null) {
-                String value = n.getFirstChild().getNodeValue().trim();
-                int count = Integer.parseInt(value);
-                numPages = count/500;
-                int remainder = count % 500;
-                if (remainder > 0) {
-                    numPages++;
-                }
-            }
-
-            for (int page = 1; page <= numPages; page++) {
-                if (page > 1) {
-                    String nextPage = String.valueOf(page);
-                    doc = method.get(LIST_PUBLIC_IP_ADDRESSES,
-                            new Param("zoneId", getContext().getRegionId()),
-                            new Param("pagesize", "500"),
-                            new Param("page", nextPage));
-                }
-                NodeList matches = doc.getElementsByTagName("publicipaddress");
-
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    ResourceStatus addr = toStatus(matches.item(i), loadBalancers);
-
-                    if( addr != null ) {
-                        addresses.add(addr);
-                    }
-                }
-            }
-            return addresses;
+            }, new Param("zoneId", getContext().getRegionId())).list();
         }
         finally {
             APITrace.end();
@@ -403,6 +451,11 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
             CSMethod method = new CSMethod(getProvider());
         
             method.get(DISASSOCIATE_IP_ADDRESS, new Param(isId() ? "id" : "ipaddress", addressId));
+            CSInventory inventory = getProvider().getInventory();
+
+            if( inventory != null ) {
+                inventory.removeIpAddress(addressId);
+            }
         }
         finally {
             APITrace.end();
@@ -456,6 +509,7 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
                 throw new CloudException("Failed to request an IP address without error");
             }
             Document responseDoc = getProvider().waitForJob(doc, ASSOCIATE_IP_ADDRESS);
+            Node allocated = null;
             if (responseDoc != null) {
                 NodeList nodeList = responseDoc.getElementsByTagName("ipaddress");
                 if (nodeList.getLength() > 0) {
@@ -474,11 +528,13 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
                         }
                         if (tmpname.equalsIgnoreCase("id")) {
                             id = value;
+                            allocated = ipAddress;
                             break;
                         }
                     }
                 }
             }
+            track(allocated);
             return id;
         }
         finally {
@@ -523,6 +579,7 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
                 throw new CloudException("Failed to request an IP address without error");
             }
             Document responseDoc = getProvider().waitForJob(doc, ASSOCIATE_IP_ADDRESS);
+            Node allocated = null;
             if (responseDoc != null) {
                 NodeList nodeList = responseDoc.getElementsByTagName("ipaddress");
                 if (nodeList.getLength() > 0) {
@@ -541,11 +598,13 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
                         }
                         if (tmpname.equalsIgnoreCase("id")) {
                             id = value;
+                            allocated = ipAddress;
                             break;
                         }
                     }
                 }
             }
+            track(allocated);
             return id;
         }
         finally {
@@ -553,6 +612,23 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
         }
     }
 
+    /**
+     * Adds a newly allocated address to the inventory, if one is kept, straight from the job result. A new address
+     * has no load balancer rules and is not assigned to a server, so nothing else has to be looked up.
+     * @param node the <code>ipaddress</code> element of the job result
+     */
+    private void track(@Nullable Node node) throws InternalException, CloudException {
+        CSInventory inventory = getProvider().getInventory();
+
+        if( inventory != null && node != null ) {
+            org.dasein.cloud.network.IpAddress address = toAddress(node, new Associations(Collections.<String>emptySet(), Collections.<String,String>emptyMap()));
+
+            if( address != null ) {
+                inventory.put(address);
+            }
+        }
+    }
+
     @Override
     public void stopForward(@Nonnull String ruleId) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "IpAddress.stopForward");
@@ -578,7 +654,19 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
         return IPVersion.IPV4.equals(ofVersion);
     }
 
-    private @Nullable org.dasein.cloud.network.IpAddress toAddress(@Nullable Node node, @Nonnull Map<String,LoadBalancer> loadBalancers) throws InternalException, CloudException {
+    /**
+     * Tells from the <code>purpose</code> and <code>isstaticnat</code> fields of an address whether it carries load
+     * balancer rules. CloudStack only reports a purpose for addresses in use, and static NAT excludes load balancing.
+     * @return whether the address is load balanced, or <code>null</code> if the fields do not say
+     */
+    static private @Nullable Boolean isLoadBalanced(@Nullable String purpose, boolean staticNat) {
+        if( purpose != null && purpose.trim().length() > 0 ) {
+            return purpose.trim().equalsIgnoreCase("lb");
+        }
+        return (staticNat ? Boolean.FALSE : null);
+    }
+
+    private @Nullable org.dasein.cloud.network.IpAddress toAddress(@Nullable Node node, @Nonnull Associations associations) throws InternalException, CloudException {
         if( node == null ) {
             return null;
         }
@@ -594,6 +682,9 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
         address.setServerId(null);
         address.setProviderLoadBalancerId(null);
         address.setAddressType(AddressType.PUBLIC);
+        String purpose = null;
+        boolean staticNat = false;
+
         for( int i=0; i<attributes.getLength(); i++ ) {
             Node n = attributes.item(i);
             String name = n.getNodeName().toLowerCase();
@@ -632,34 +723,34 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
                     address.setProviderVlanId(value);
                 }
             }
+            else if( name.equalsIgnoreCase("purpose") ) {
+                purpose = value;
+            }
+            else if( name.equalsIgnoreCase("isstaticnat") ) {
+                staticNat = (value != null && value.equalsIgnoreCase("true"));
+            }
         }
-        LoadBalancer lb = loadBalancers.get(address.getRawAddress().getIpAddress());
-            
-        if( lb != null ) {
-            address.setProviderLoadBalancerId(lb.getProviderLoadBalancerId());
+        String ip = address.getRawAddress().getIpAddress();
+        Boolean balanced = isLoadBalanced(purpose, staticNat);
+
+        if( balanced == null ? associations.isLoadBalanced(ip) : balanced ) {
+            // load balancers are identified by their public IP
+            address.setProviderLoadBalancerId(ip);
         }
         if( address.getServerId() == null ) {
-            for( VirtualMachine vm : getProvider().getComputeServices().getVirtualMachineSupport().listVirtualMachines() ) {
-                RawAddress[] addrs = vm.getPublicAddresses();
-                
-                for( RawAddress addr : addrs ) {
-                    if( addr.getIpAddress().equals(address.getRawAddress().getIpAddress()) ) {
-                        address.setServerId(vm.getProviderVirtualMachineId());
-                    }
-                }
-            }
+            address.setServerId(associations.getServerId(ip));
         }
         return address;
     }
 
-    private @Nullable ResourceStatus toStatus(@Nullable Node node, @Nonnull Map<String,LoadBalancer> loadBalancers) throws InternalException, CloudException {
+    private @Nullable ResourceStatus toStatus(@Nullable Node node, @Nonnull Associations associations) throws InternalException, CloudException {
         if( node == null ) {
             return null;
         }
         NodeList attributes = node.getChildNodes();
-        String addressId = null, address = null;
+        String addressId = null, address = null, purpose = null;
         Boolean available = null;
-        boolean hasState = false;
+        boolean hasState = false, staticNat = false;
 
         for( int i=0; i<attributes.getLength(); i++ ) {
             Node n = attributes.item(i);
@@ -687,17 +778,20 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
                 }
                 hasState = true;
             }
-            if( addressId != null && address != null && available != null && hasState ) {
-                break;
+            else if( name.equalsIgnoreCase("purpose") ) {
+                purpose = value;
+            }
+            else if( name.equalsIgnoreCase("isstaticnat") ) {
+                staticNat = (value != null && value.equalsIgnoreCase("true"));
             }
         }
         if( addressId == null ) {
             return null;
         }
-        if( address != null ) {
-            LoadBalancer lb = loadBalancers.get(address);
+        if( address != null && !Boolean.FALSE.equals(available) ) {
+            Boolean balanced = isLoadBalanced(purpose, staticNat);
 
-            if( lb != null ) {
+            if( balanced == null ? associations.isLoadBalanced(address) : balanced ) {
                 available = false;
             }
         }
@@ -21,6 +21,10 @@ package org.dasein.cloud.cloudstack.network;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -29,11 +33,13 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.ResourceStatus;
 import org.dasein.cloud.Tag;
 import org.dasein.cloud.cloudstack.CSCloud;
 import org.dasein.cloud.cloudstack.CSException;
 import org.dasein.cloud.cloudstack.CSMethod;
+import org.dasein.cloud.cloudstack.CSPager;
 import org.dasein.cloud.cloudstack.CSVersion;
 import org.dasein.cloud.cloudstack.Param;
 import org.dasein.cloud.compute.VirtualMachine;
@@ -385,38 +391,9 @@ public class LoadBalancers extends AbstractLoadBalancerSupport<CSCloud> {
     public @Nonnull Iterable<ResourceStatus> listLoadBalancerStatus() throws CloudException, InternalException {
         APITrace.begin(getProvider(), "LB.listLoadBalancerStatus");
         try {
-            Map<String,LoadBalancer> matches = new HashMap<String,LoadBalancer>();
-            CSMethod method = new CSMethod(getProvider());
-
             try {
-                Document doc = method.get(LIST_LOAD_BALANCER_RULES);
-
-                int numPages = 1;
-                NodeList nodes = doc.getElementsByTagName("count");
-                Node n = nodes.item(0);
-                if (n != null) {
-                    String value = n.getFirstChild().getNodeValue().trim();
-                    int count = Integer.parseInt(value);
-                    numPages = count/500;
-                    int remainder = count % 500;
-                    if (remainder > 0) {
-                        numPages++;
-                    }
-                }
-
-                for (int page = 1; page <= numPages; page++) {
-                    if (page > 1) {
-                        String nextPage = String.valueOf(page);
-                        doc = method.get(LIST_LOAD_BALANCER_RULES, new Param("pagesize", "500"), new Param("page", nextPage));
-                    }
-                    NodeList rules = doc.getElementsByTagName("loadbalancerrule");
-
-                    for( int i=0; i<rules.getLength(); i++ ) {
-                        Node node = rules.item(i);
-
-                        toRule(node, matches);
-                    }
-                }
+                // the status does not depend on the members, so they are not looked up
+                Map<String,LoadBalancer> matches = listRules(false);
                 final List<ResourceStatus> results = new ArrayList<ResourceStatus>();
                 for( LoadBalancer lb : matches.values() ) {
                     if( matchesRegion(lb.getProviderLoadBalancerId()) ) {
@@ -442,44 +419,191 @@ public class LoadBalancers extends AbstractLoadBalancerSupport<CSCloud> {
     
     private @Nonnull Collection<String> getServersAt(String ruleId) throws InternalException, CloudException {
         // TODO: add trace
-        final List<String> ids = new ArrayList<String>();
-        final CSMethod method = new CSMethod(getProvider());
-        Document doc = method.get(LIST_LOAD_BALANCER_RULE_INSTANCES, new Param("id", ruleId));
-
-        int numPages = 1;
-        NodeList nodes = doc.getElementsByTagName("count");
-        Node nd = nodes.item(0);
-        if (nd != null) {
-            String value = nd.getFirstChild().getNodeValue().trim();
-            int count = Integer.parseInt(value);
-            numPages = count/500;
-            int remainder = count % 500;
-            if (remainder > 0) {
-                numPages++;
-            }
-        }
-
-        for (int page = 1; page <= numPages; page++) {
-            if (page > 1) {
-                String nextPage = String.valueOf(page);
-                doc = method.get(LIST_LOAD_BALANCER_RULE_INSTANCES, new Param("id", ruleId), new Param("pagesize", "500"), new Param("page", nextPage));
-            }
-            NodeList instances = doc.getElementsByTagName("loadbalancerruleinstance");
-        
-            for( int i=0; i<instances.getLength(); i++ ) {
-                Node node = instances.item(i);
+        return new CSPager<String>(getProvider(), LIST_LOAD_BALANCER_RULE_INSTANCES, "loadbalancerruleinstance", new CSPager.Converter<String>() {
+            public @Nullable String convert(@Nonnull Node node) {
                 NodeList attributes = node.getChildNodes();
 
                 for( int j=0; j<attributes.getLength(); j++ ) {
                     Node n = attributes.item(j);
 
                     if( n.getNodeName().equals("id") ) {
-                        ids.add(n.getFirstChild().getNodeValue());
+                        return n.getFirstChild().getNodeValue();
+                    }
+                }
+                return null;
+            }
+        }, new Param("id", ruleId)).list();
+    }
+
+    /**
+     * Looks up the members of several rules at once, running up to the provider's page parallelism of
+     * <code>listLoadBalancerRuleInstances</code> listings concurrently.
+     * @param ruleIds the rules whose members are needed
+     * @return the member server ids by rule id
+     */
+    private @Nonnull Map<String,Collection<String>> getServersAt(@Nonnull Collection<String> ruleIds) throws InternalException, CloudException {
+        Map<String,Collection<String>> members = new HashMap<String,Collection<String>>();
+        int parallelism = Math.max(1, getProvider().getPageParallelism());
+        LinkedList<FutureTask<Collection<String>>> window = new LinkedList<FutureTask<Collection<String>>>();
+        LinkedList<String> windowIds = new LinkedList<String>();
+        Iterator<String> next = ruleIds.iterator();
+
+        try {
+            while( next.hasNext() || !window.isEmpty() ) {
+                while( next.hasNext() && window.size() < parallelism ) {
+                    final String ruleId = next.next();
+                    FutureTask<Collection<String>> task = new FutureTask<Collection<String>>(new Callable<Collection<String>>() {
+                        public Collection<String> call() throws CloudException, InternalException {
+                            return getServersAt(ruleId);
+                        }
+                    });
+
+                    window.add(task);
+                    windowIds.add(ruleId);
+                    try {
+                        getProvider().getExecutor().execute(task);
+                    }
+                    catch( RejectedExecutionException ignore ) {
+                        // the provider is closing; the members get listed on this thread below
+                    }
+                }
+                FutureTask<Collection<String>> head = window.removeFirst();
+
+                // as with list pages, do the lookup here rather than wait for a busy pool
+                head.run();
+                members.put(windowIds.removeFirst(), head.get());
+            }
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while listing load balancer members");
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw ( CloudException ) cause;
+            }
+            if( cause instanceof InternalException ) {
+                throw ( InternalException ) cause;
+            }
+            throw new InternalException(cause);
+        }
+        finally {
+            for( FutureTask<Collection<String>> task : window ) {
+                task.cancel(true);
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Lists every load balancer rule and builds the load balancers from them. The members of all rules are looked
+     * up concurrently once the rules are known, and the data centers are listed once rather than per address.
+     * @param withMembers false to leave the server ids empty, for callers that only need addresses and listeners
+     * @return the load balancers by public IP
+     */
+    private @Nonnull Map<String,LoadBalancer> listRules(boolean withMembers) throws CloudException, InternalException {
+        List<Node> rules = new CSPager<Node>(getProvider(), LIST_LOAD_BALANCER_RULES, "loadbalancerrule", CSPager.NODES).list();
+        Map<String,LoadBalancer> matches = new HashMap<String,LoadBalancer>();
+
+        if( rules.isEmpty() ) {
+            return matches;
+        }
+        Map<String,Collection<String>> members;
+
+        if( withMembers ) {
+            Set<String> ruleIds = new LinkedHashSet<String>();
+
+            for( Node node : rules ) {
+                String ruleId = toRuleId(node);
+
+                if( ruleId != null ) {
+                    ruleIds.add(ruleId);
+                }
+            }
+            members = getServersAt(ruleIds);
+        }
+        else {
+            members = Collections.emptyMap();
+        }
+        String[] dataCenterIds = getDataCenterIds();
+
+        for( Node node : rules ) {
+            toRule(node, matches, members, dataCenterIds);
+        }
+        return matches;
+    }
+
+    /**
+     * Members are normally listed with the load balancers. Setting the <code>loadBalancerMembers</code> custom property
+     * to <code>lazy</code> skips them in {@link #listLoadBalancers()}; they are then looked up per load balancer by
+     * {@link #getLoadBalancer(String)} and {@link #listEndpoints(String)}.
+     */
+    private boolean isLazyMembers() {
+        ProviderContext ctx = getContext();
+        Properties p = (ctx == null ? null : ctx.getCustomProperties());
+
+        return (p != null && "lazy".equalsIgnoreCase(p.getProperty("loadBalancerMembers", "").trim()));
+    }
+
+    private @Nonnull String[] getDataCenterIds() throws CloudException, InternalException {
+        Iterable<DataCenter> dcs = getProvider().getDataCenterServices().listDataCenters(getProvider().getContext().getRegionId());
+        List<String> ids = new ArrayList<String>();
+
+        for( DataCenter dc : dcs ) {
+            ids.add(dc.getProviderDataCenterId());
+        }
+        return ids.toArray(new String[ids.size()]);
+    }
+
+    /**
+     * Lists the public IPs that carry load balancer rules, without looking up the rules' members.
+     * @param provider the provider to list for
+     * @return the public IPs, which are also the ids of the load balancers
+     */
+    static @Nonnull Set<String> listAddresses(@Nonnull CSCloud provider) throws CloudException, InternalException {
+        final Set<String> addresses = new HashSet<String>();
+
+        try {
+            new CSPager<String>(provider, LIST_LOAD_BALANCER_RULES, "loadbalancerrule", new CSPager.Converter<String>() {
+                public @Nullable String convert(@Nonnull Node node) {
+                    NodeList attributes = node.getChildNodes();
+
+                    for( int i=0; i<attributes.getLength(); i++ ) {
+                        Node n = attributes.item(i);
+
+                        if( n.getNodeName().equalsIgnoreCase("publicip") && n.getChildNodes().getLength() > 0 ) {
+                            return n.getFirstChild().getNodeValue();
+                        }
                     }
+                    return null;
+                }
+            }).forEach(new CSPager.Consumer<String>() {
+                public void accept(@Nonnull String address) {
+                    addresses.add(address);
                 }
+            });
+        }
+        catch( CloudException e ) {
+            if( e.getHttpCode() != HttpServletResponse.SC_NOT_FOUND ) {
+                throw e;
             }
         }
-        return ids;
+        return addresses;
+    }
+
+    static private @Nullable String toRuleId(@Nonnull Node node) {
+        NodeList attributes = node.getChildNodes();
+
+        for( int i=0; i<attributes.getLength(); i++ ) {
+            Node n = attributes.item(i);
+
+            if( n.getNodeName().equalsIgnoreCase("id") && n.getChildNodes().getLength() > 0 ) {
+                return n.getFirstChild().getNodeValue();
+            }
+        }
+        return null;
     }
     
     private @Nullable String getVmOpsRuleId(@Nonnull LbAlgorithm lbAlgorithm, @Nonnull String publicIp, int publicPort, int privatePort, @Nullable String networkId) throws CloudException, InternalException {
@@ -603,36 +727,7 @@ public class LoadBalancers extends AbstractLoadBalancerSupport<CSCloud> {
     public @Nonnull Iterable<LoadBalancer> listLoadBalancers() throws CloudException, InternalException {
         APITrace.begin(getProvider(), "LB.listLoadBalancers");
         try {
-            Map<String,LoadBalancer> matches = new HashMap<String,LoadBalancer>();
-            CSMethod method = new CSMethod(getProvider());
-            Document doc = method.get(LIST_LOAD_BALANCER_RULES);
-
-            int numPages = 1;
-            NodeList nodes = doc.getElementsByTagName("count");
-            Node n = nodes.item(0);
-            if (n != null) {
-                String value = n.getFirstChild().getNodeValue().trim();
-                int count = Integer.parseInt(value);
-                numPages = count/500;
-                int remainder = count % 500;
-                if (remainder > 0) {
-                    numPages++;
-                }
-            }
-
-            for (int page = 1; page <= numPages; page++) {
-                if (page > 1) {
-                    String nextPage = String.valueOf(page);
-                    doc = method.get(LIST_LOAD_BALANCER_RULES, new Param("pagesize", "500"), new Param("page", nextPage));
-                }
-                NodeList rules = doc.getElementsByTagName("loadbalancerrule");
-
-                for( int i=0; i<rules.getLength(); i++ ) {
-                    Node node = rules.item(i);
-
-                    toRule(node, matches);
-                }
-            }
+            Map<String,LoadBalancer> matches = listRules(!isLazyMembers());
             final List<LoadBalancer> results = new ArrayList<LoadBalancer>();
             for( LoadBalancer lb : matches.values() ) {
                 if( matchesRegion(lb.getProviderLoadBalancerId()) ) {
@@ -916,6 +1011,14 @@ public class LoadBalancers extends AbstractLoadBalancerSupport<CSCloud> {
     }
     
     private void toRule(@Nullable Node node, @Nonnull Map<String,LoadBalancer> current) throws InternalException, CloudException {
+        toRule(node, current, null, null);
+    }
+
+    /**
+     * @param members the members by rule id if already looked up, or <code>null</code> to list the rule's members here
+     * @param dataCenterIds the data centers of the region if already listed, or <code>null</code> to list them here
+     */
+    private void toRule(@Nullable Node node, @Nonnull Map<String,LoadBalancer> current, @Nullable Map<String,Collection<String>> members, @Nullable String[] dataCenterIds) throws InternalException, CloudException {
         NodeList attributes = node.getChildNodes();
         int publicPort = -1, privatePort = -1;
         LbAlgorithm algorithm = null;
@@ -973,7 +1076,17 @@ public class LoadBalancers extends AbstractLoadBalancerSupport<CSCloud> {
             }
         }
         LbListener listener = LbListener.getInstance(algorithm, LbPersistence.NONE, LbProtocol.RAW_TCP, publicPort, privatePort);
-        Collection<String> serverIds = getServersAt(ruleId);
+        Collection<String> serverIds;
+
+        if( members == null ) {
+            serverIds = getServersAt(ruleId);
+        }
+        else {
+            serverIds = members.get(ruleId);
+            if( serverIds == null ) {
+                serverIds = Collections.emptyList();
+            }
+        }
 
         if( current.containsKey(publicIp) ) {
             LoadBalancer lb = current.get(publicIp);
@@ -1012,13 +1125,9 @@ public class LoadBalancers extends AbstractLoadBalancerSupport<CSCloud> {
             lb.setDescription(lbDesc);
         }
         else {
-            Iterable<DataCenter> dcs = getProvider().getDataCenterServices().listDataCenters(getProvider().getContext().getRegionId());
-            List<String> ids = new ArrayList<String>();
-            for( DataCenter dc : dcs ) {
-                ids.add(dc.getProviderDataCenterId());
-            }
+            String[] ids = (dataCenterIds == null ? getDataCenterIds() : dataCenterIds);
 
-            LoadBalancer lb = LoadBalancer.getInstance(getContext().getAccountNumber(), getContext().getRegionId(), publicIp, LoadBalancerState.ACTIVE, lbName, lbDesc, LoadBalancerAddressType.IP, publicIp, publicPort).withListeners(listener).operatingIn(ids.toArray(new String[ids.size()]));
+            LoadBalancer lb = LoadBalancer.getInstance(getContext().getAccountNumber(), getContext().getRegionId(), publicIp, LoadBalancerState.ACTIVE, lbName, lbDesc, LoadBalancerAddressType.IP, publicIp, publicPort).withListeners(listener).operatingIn(ids);
             lb.forVlan(vlanId);
             //noinspection deprecation
             lb.setProviderServerIds(serverIds.toArray(new String[serverIds.size()]));
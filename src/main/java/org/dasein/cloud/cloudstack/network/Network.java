@@ -40,7 +40,9 @@ import org.dasein.cloud.ResourceStatus;
 import org.dasein.cloud.Tag;
 import org.dasein.cloud.cloudstack.CSCloud;
 import org.dasein.cloud.cloudstack.CSException;
+import org.dasein.cloud.cloudstack.CSInventory;
 import org.dasein.cloud.cloudstack.CSMethod;
+import org.dasein.cloud.cloudstack.CSPager;
 import org.dasein.cloud.cloudstack.Param;
 import org.dasein.cloud.compute.VirtualMachine;
 import org.dasein.cloud.network.AbstractVLANSupport;
@@ -123,7 +125,7 @@ public class Network extends AbstractVLANSupport<CSCloud> {
                 return offerings;
             }
         }
-        Document doc = new CSMethod(getProvider()).get(LIST_NETWORK_OFFERINGS, new Param("zoneId", regionId));
+        Document doc = new CSMethod(getProvider()).getCatalog(LIST_NETWORK_OFFERINGS, new Param("zoneId", regionId));
         NodeList matches = doc.getElementsByTagName("networkoffering");
         final List<NetworkOffering> offerings = new ArrayList<NetworkOffering>();
 
@@ -240,48 +242,11 @@ public class Network extends AbstractVLANSupport<CSCloud> {
     public @Nonnull Iterable<VLAN> listVlans() throws CloudException, InternalException {
         APITrace.begin(getProvider(), "VLAN.listVlans");
         try {
-            CSMethod method = new CSMethod(getProvider());
-            Document doc = method.get(Network.LIST_NETWORKS, new Param("zoneId", getContext().getRegionId()), new Param("canusefordeploy", "true"));
-            List<VLAN> networks = new ArrayList<VLAN>();
-
-            int numPages = 1;
-            NodeList nodes = doc.getElementsByTagName("count");
-            Node n = nodes.item(0);
-            if( n != null ) {
-                String value = n.getFirstChild().getNodeValue().trim();
-                int count = Integer.parseInt(value);
-                numPages = count / 500;
-                int remainder = count % 500;
-                if( remainder > 0 ) {
-                    numPages++;
+            return new CSPager<VLAN>(getProvider(), LIST_NETWORKS, "network", new CSPager.Converter<VLAN>() {
+                public @Nullable VLAN convert(@Nonnull Node node) throws CloudException, InternalException {
+                    return toNetwork(node);
                 }
-            }
-
-            for( int page = 1; page <= numPages; page++ ) {
-                if( page > 1 ) {
-                    String nextPage = String.valueOf(page);
-                    doc = method.get(LIST_NETWORKS,
-                            new Param("zoneId", getContext().getRegionId()),
-                            new Param("pagesize", "500"),
-                            new Param("page", nextPage),
-                            new Param("canusefordeploy", "true")
-                    );
-                }
-                NodeList matches = doc.getElementsByTagName("network");
-
-                for( int i = 0; i < matches.getLength(); i++ ) {
-                    Node node = matches.item(i);
-
-                    if( node != null ) {
-                        VLAN vlan = toNetwork(node);
-
-                        if( vlan != null ) {
-                            networks.add(vlan);
-                        }
-                    }
-                }
-            }
-            return networks;
+            }, new Param("zoneId", getContext().getRegionId()), new Param("canusefordeploy", "true")).list();
         }
         finally {
             APITrace.end();
@@ -532,6 +497,15 @@ public class Network extends AbstractVLANSupport<CSCloud> {
         APITrace.begin(getProvider(), "VLAN.listResources");
         try {
             ArrayList<Networkable> resources = new ArrayList<Networkable>();
+            CSInventory inventory = getProvider().getInventory();
+
+            if( inventory != null ) {
+                resources.addAll(inventory.listResources(inVlanId));
+                for( RoutingTable table : listRoutingTables(inVlanId) ) {
+                    resources.add(table);
+                }
+                return resources;
+            }
             NetworkServices network = getProvider().getNetworkServices();
 
             FirewallSupport fwSupport = network.getFirewallSupport();
@@ -559,7 +533,7 @@ public class Network extends AbstractVLANSupport<CSCloud> {
             for( RoutingTable table : listRoutingTables(inVlanId) ) {
                 resources.add(table);
             }
-            Iterable<VirtualMachine> vms = getProvider().getComputeServices().getVirtualMachineSupport().listVirtualMachines();
+            Iterable<VirtualMachine> vms = getProvider().getComputeServices().getVirtualMachineSupport().listVirtualMachinesInVlan(inVlanId);
 
             for( VirtualMachine vm : vms ) {
                 if( inVlanId.equals(vm.getProviderVlanId()) ) {
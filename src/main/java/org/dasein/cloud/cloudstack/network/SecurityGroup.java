@@ -19,22 +19,38 @@
 package org.dasein.cloud.cloudstack.network;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.dasein.cloud.CloudException;
 import org.dasein.cloud.InternalException;
 import org.dasein.cloud.OperationNotSupportedException;
+import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.ResourceStatus;
 import org.dasein.cloud.Tag;
 import org.dasein.cloud.cloudstack.CSCloud;
 import org.dasein.cloud.cloudstack.CSException;
+import org.dasein.cloud.cloudstack.CSInventory;
+import org.dasein.cloud.cloudstack.CSJobTracker;
 import org.dasein.cloud.cloudstack.CSMethod;
+import org.dasein.cloud.cloudstack.CSPager;
 import org.dasein.cloud.cloudstack.Param;
+import org.dasein.cloud.compute.VirtualMachine;
 import org.dasein.cloud.network.AbstractFirewallSupport;
 import org.dasein.cloud.network.Direction;
 import org.dasein.cloud.network.Firewall;
@@ -101,16 +117,35 @@ public class SecurityGroup extends AbstractFirewallSupport<CSCloud> {
             if( sourceCidr != null && sourceCidr.indexOf('/') == -1 ) {
                 sourceCidr = sourceCidr + "/32";
             }
-            Document doc = new CSMethod(getProvider()).get(
-                    command,
-                    new Param("securitygroupid", firewallId),
-                    new Param("cidrlist", sourceCidr),
-                    new Param(Protocol.ICMP.equals(protocol) ? "icmptype" : "startport", String.valueOf(beginPort)),
-                    new Param(Protocol.ICMP.equals(protocol) ? "icmpcode" : "endport", String.valueOf(endPort)),
-                    new Param("protocol", protocol.name())
-            );
-            getProvider().waitForJob(doc, "Authorize rule");
-            final String id = getRuleId(firewallId, direction, permission, protocol, sourceEndpoint, destinationEndpoint, beginPort, endPort);
+            SecurityGroupRules index = getRuleIndex();
+            Document result;
+
+            try {
+                Document doc = new CSMethod(getProvider()).get(
+                        command,
+                        new Param("securitygroupid", firewallId),
+                        new Param("cidrlist", sourceCidr),
+                        new Param(Protocol.ICMP.equals(protocol) ? "icmptype" : "startport", String.valueOf(beginPort)),
+                        new Param(Protocol.ICMP.equals(protocol) ? "icmpcode" : "endport", String.valueOf(endPort)),
+                        new Param("protocol", protocol.name())
+                );
+                result = getProvider().waitForJob(doc, "Authorize rule");
+            }
+            catch( CloudException e ) {
+                index.invalidate(firewallId);
+                throw e;
+            }
+            // the job result lists the rules just added, which spares listing the group again
+            if( result != null ) {
+                for( FirewallRule rule : toRules(firewallId, result) ) {
+                    index.add(firewallId, rule);
+                }
+            }
+            String id = getRuleId(firewallId, direction, permission, protocol, sourceEndpoint, destinationEndpoint, beginPort, endPort);
+            if( id == null ) {
+                index.invalidate(firewallId);
+                id = getRuleId(firewallId, direction, permission, protocol, sourceEndpoint, destinationEndpoint, beginPort, endPort);
+            }
             if( id == null ) {
                 throw new CloudException("Unable to identify newly created firewall rule ID");
             }
@@ -122,54 +157,59 @@ public class SecurityGroup extends AbstractFirewallSupport<CSCloud> {
     }
 
     private @Nullable String getRuleId(@Nonnull String firewallId, @Nonnull Direction direction, @Nonnull Permission permission, @Nonnull Protocol protocol, @Nonnull RuleTarget sourceEndpoint, @Nonnull RuleTarget destinationEndpoint, int beginPort, int endPort) throws CloudException, InternalException {
+        if( !Permission.ALLOW.equals(permission) ) {
+            return null;
+        }
+        RuleTarget remote = (Direction.INGRESS.equals(direction) ? sourceEndpoint : destinationEndpoint);
+        String cidr = (RuleTargetType.CIDR.equals(remote.getRuleTargetType()) ? remote.getCidr() : remote.getProviderFirewallId());
+        SecurityGroupRules index = getRuleIndex();
+        long ttl = getRuleTtl();
 
-        //<egressrule>
-        // <ruleid>720e3652-49f9-4d45-a426-fbf55d3c10e0</ruleid>
-        // <protocol>tcp</protocol>
-        // <startport>83</startport>
-        // <endport>83</endport>
-        // <cidr>209.98.98.98/32</cidr>
-        // </egressrule>
-        for( FirewallRule rule : getRules(firewallId) ) {
-            if( rule.getDirection().equals(direction) ) {
-                if( rule.getPermission().equals(permission) ) {
-                    if( rule.getProtocol().equals(protocol) ) {
-                        if( rule.getSourceEndpoint().getRuleTargetType().equals(sourceEndpoint.getRuleTargetType()) ) {
-                            if( rule.getDestinationEndpoint().getRuleTargetType().equals(destinationEndpoint.getRuleTargetType()) ) {
-                                if( rule.getStartPort() == beginPort ) {
-                                    if( rule.getEndPort() == endPort ) {
-                                        if( rule.getSourceEndpoint().getRuleTargetType().equals(RuleTargetType.CIDR) ) {
-                                            //noinspection ConstantConditions
-                                            if( rule.getSourceEndpoint().getCidr().equals(sourceEndpoint.getCidr()) ) {
-                                                if( rule.getDestinationEndpoint().getRuleTargetType().equals(RuleTargetType.CIDR) ) {
-                                                    //noinspection ConstantConditions
-                                                    if( rule.getDestinationEndpoint().getCidr().equals(destinationEndpoint.getCidr()) ) {
-                                                        return rule.getProviderRuleId();
-                                                    }
-                                                }
-                                                else if( rule.getDestinationEndpoint().getRuleTargetType().equals(RuleTargetType.GLOBAL) ) {
-                                                    //noinspection ConstantConditions
-                                                    if( rule.getDestinationEndpoint().getProviderFirewallId().equals(destinationEndpoint.getProviderFirewallId()) ) {
-                                                        return rule.getProviderRuleId();
-                                                    }
-                                                }
-                                            }
-                                        }
-                                        else if( rule.getSourceEndpoint().getRuleTargetType().equals(RuleTargetType.GLOBAL) ) {
-                                            //noinspection ConstantConditions
-                                            if( rule.getSourceEndpoint().getProviderFirewallId().equals(sourceEndpoint.getProviderFirewallId()) ) {
-                                                return rule.getProviderRuleId();
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
+        if( !index.isLoaded(firewallId, ttl) ) {
+            getRules(firewallId);
+        }
+        return index.findRuleId(firewallId, SecurityGroupRules.toKey(direction, protocol, cidr, beginPort, endPort), ttl);
+    }
+
+    static private final long DEFAULT_RULE_TTL = TimeUnit.MINUTES.toMillis(5);
+
+    private @Nonnull SecurityGroupRules getRuleIndex() throws CloudException {
+        ProviderContext ctx = getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        return SecurityGroupRules.getInstance(ctx.getCloud().getEndpoint() + "#" + ctx.getAccountNumber());
+    }
+
+    static private final long NAME_TTL = TimeUnit.MINUTES.toMillis(30);
+
+    private @Nonnull SecurityGroupNames getNameIndex() throws CloudException {
+        ProviderContext ctx = getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        return SecurityGroupNames.getInstance(ctx.getCloud().getEndpoint() + "#" + ctx.getAccountNumber());
+    }
+
+    /**
+     * @return how long indexed rules are trusted, tunable through the <code>firewallRuleTtlSeconds</code> custom property
+     */
+    private long getRuleTtl() {
+        ProviderContext ctx = getContext();
+        Properties p = (ctx == null ? null : ctx.getCustomProperties());
+        String value = (p == null ? null : p.getProperty("firewallRuleTtlSeconds"));
+
+        if( value != null && value.trim().length() > 0 ) {
+            try {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Ignoring invalid value for firewallRuleTtlSeconds: " + value);
             }
         }
-        return null;
+        return DEFAULT_RULE_TTL;
     }
 
     @Override
@@ -213,6 +253,16 @@ public class SecurityGroup extends AbstractFirewallSupport<CSCloud> {
             tags.add(new Tag("Name", options.getName()));
             tags.add(new Tag("Description", options.getDescription()));
             getProvider().createTags(new String[] { groupId }, "SecurityGroup", tags.toArray(new Tag[tags.size()]));
+            getNameIndex().put(options.getName(), groupId);
+            CSInventory inventory = getProvider().getInventory();
+
+            if( inventory != null ) {
+                Firewall firewall = getFirewall(groupId);
+
+                if( firewall != null ) {
+                    inventory.put(firewall);
+                }
+            }
             return groupId;
         }
         finally {
@@ -220,6 +270,348 @@ public class SecurityGroup extends AbstractFirewallSupport<CSCloud> {
         }
     }
 
+    /**
+     * CIDRs per authorize call, which keeps the signed GET well within common URL length limits.
+     */
+    static private final int CIDRS_PER_CALL = 50;
+
+    /**
+     * Makes the CIDR rules of a security group allow what the desired set allows with as few API calls as possible.
+     * The current rules are listed once. A current TCP/UDP rule is kept as long as the desired rules allow all of its
+     * ports, so rules that are split differently but allow the same ports are not replaced; only the ports left
+     * uncovered are authorized, as merged ranges, and rules that differ only in their CIDR share one authorize call
+     * with a multi-entry <code>cidrlist</code>. Rules whose remote side is another group are left untouched. All
+     * authorizations are made and waited for before any rule is revoked, so that traffic allowed both before and
+     * after is never dropped in between; the jobs within each phase run concurrently. If an authorization fails, no
+     * rule is revoked.
+     * @param firewallId the security group to reconcile
+     * @param desired the rules the group should have when done
+     * @throws OperationNotSupportedException a rule is not an ALLOW rule for a CIDR
+     * @throws CloudException one or more of the changes failed; the others are still applied
+     * @throws InternalException an error occurred locally while reconciling
+     */
+    public void reconcile(@Nonnull String firewallId, @Nonnull Collection<FirewallRuleCreateOptions> desired) throws CloudException, InternalException {
+        APITrace.begin(getProvider(), "Firewall.reconcile");
+        try {
+            // direction|protocol|cidr -> port ranges
+            Map<String,List<int[]>> ranges = new LinkedHashMap<String,List<int[]>>();
+
+            for( FirewallRuleCreateOptions rule : desired ) {
+                if( !Permission.ALLOW.equals(rule.getPermission()) ) {
+                    throw new OperationNotSupportedException("Only ALLOW rules are supported");
+                }
+                String cidr = getRemoteCidr(rule.getDirection(), rule.getSourceEndpoint(), rule.getDestinationEndpoint());
+                String group = rule.getDirection().name() + "|" + rule.getProtocol().name() + "|" + cidr;
+                List<int[]> list = ranges.get(group);
+
+                if( list == null ) {
+                    list = new ArrayList<int[]>();
+                    ranges.put(group, list);
+                }
+                list.add(new int[] { rule.getPortRangeStart(), rule.getPortRangeEnd() });
+            }
+            // the current CIDR rules by direction|protocol|cidr
+            Map<String,List<FirewallRule>> current = new HashMap<String,List<FirewallRule>>();
+
+            for( FirewallRule rule : getRules(firewallId) ) {
+                RuleTarget remote = (Direction.INGRESS.equals(rule.getDirection()) ? rule.getSourceEndpoint() : rule.getDestinationEndpoint());
+
+                if( !RuleTargetType.CIDR.equals(remote.getRuleTargetType()) || remote.getCidr() == null ) {
+                    continue;
+                }
+                String group = rule.getDirection().name() + "|" + rule.getProtocol().name() + "|" + toCidr(remote.getCidr());
+                List<FirewallRule> list = current.get(group);
+
+                if( list == null ) {
+                    list = new ArrayList<FirewallRule>();
+                    current.put(group, list);
+                }
+                list.add(rule);
+            }
+            // the rules to add, grouped by everything but the CIDR
+            Map<String,List<String>> additions = new LinkedHashMap<String,List<String>>();
+            Map<String,int[]> additionPorts = new HashMap<String,int[]>();
+            List<FirewallRule> revocations = new ArrayList<FirewallRule>();
+            Set<String> groups = new LinkedHashSet<String>(ranges.keySet());
+
+            groups.addAll(current.keySet());
+            for( String group : groups ) {
+                String[] parts = group.split("\\|");
+                Direction direction = Direction.valueOf(parts[0]);
+                Protocol protocol = Protocol.valueOf(parts[1]);
+                String cidr = parts[2];
+                List<int[]> wanted = (ranges.containsKey(group) ? ranges.get(group) : Collections.<int[]>emptyList());
+                List<FirewallRule> existing = (current.containsKey(group) ? current.get(group) : Collections.<FirewallRule>emptyList());
+                // ICMP type/code pairs and "all ports" rules are matched exactly, TCP/UDP port ranges by coverage
+                List<int[]> exact = new ArrayList<int[]>();
+                List<int[]> portRanges = new ArrayList<int[]>();
+
+                for( int[] ports : wanted ) {
+                    if( Protocol.ICMP.equals(protocol) || ports[0] < 0 || ports[1] < 0 ) {
+                        exact.add(ports);
+                    }
+                    else {
+                        portRanges.add(ports);
+                    }
+                }
+                List<int[]> allowed = mergeRanges(portRanges);
+                List<int[]> kept = new ArrayList<int[]>();
+                List<int[]> keptExact = new ArrayList<int[]>();
+
+                for( FirewallRule rule : existing ) {
+                    int[] ports = new int[] { rule.getStartPort(), rule.getEndPort() };
+
+                    if( Protocol.ICMP.equals(protocol) || ports[0] < 0 || ports[1] < 0 ) {
+                        if( indexOf(exact, ports) > -1 && indexOf(keptExact, ports) == -1 ) {
+                            keptExact.add(ports);
+                            continue;
+                        }
+                    }
+                    else if( isCovered(allowed, ports) ) {
+                        kept.add(ports);
+                        continue;
+                    }
+                    revocations.add(rule);
+                }
+                List<int[]> adding = new ArrayList<int[]>();
+
+                for( int[] ports : exact ) {
+                    if( indexOf(keptExact, ports) == -1 && indexOf(adding, ports) == -1 ) {
+                        adding.add(ports);
+                    }
+                }
+                adding.addAll(subtractRanges(allowed, mergeRanges(kept)));
+                for( int[] ports : adding ) {
+                    String call = direction.name() + "|" + protocol.name() + "|" + ports[0] + "|" + ports[1];
+                    List<String> cidrs = additions.get(call);
+
+                    if( cidrs == null ) {
+                        cidrs = new ArrayList<String>();
+                        additions.put(call, cidrs);
+                        additionPorts.put(call, ports);
+                    }
+                    cidrs.add(cidr);
+                }
+            }
+            SecurityGroupRules index = getRuleIndex();
+            List<Document> jobs = new ArrayList<Document>();
+            CloudException failure = null;
+
+            try {
+                for( Map.Entry<String,List<String>> entry : additions.entrySet() ) {
+                    String[] parts = entry.getKey().split("\\|");
+                    Direction direction = Direction.valueOf(parts[0]);
+                    Protocol protocol = Protocol.valueOf(parts[1]);
+                    int[] ports = additionPorts.get(entry.getKey());
+                    List<String> cidrs = entry.getValue();
+
+                    for( int from = 0; from < cidrs.size(); from += CIDRS_PER_CALL ) {
+                        StringBuilder cidrList = new StringBuilder();
+
+                        for( String cidr : cidrs.subList(from, Math.min(cidrs.size(), from + CIDRS_PER_CALL)) ) {
+                            if( cidrList.length() > 0 ) {
+                                cidrList.append(",");
+                            }
+                            cidrList.append(cidr);
+                        }
+                        jobs.add(new CSMethod(getProvider()).get(
+                                Direction.INGRESS.equals(direction) ? AUTHORIZE_SECURITY_GROUP_INGRESS : AUTHORIZE_SECURITY_GROUP_EGRESS,
+                                new Param("securitygroupid", firewallId),
+                                new Param("cidrlist", cidrList.toString()),
+                                new Param(Protocol.ICMP.equals(protocol) ? "icmptype" : "startport", String.valueOf(ports[0])),
+                                new Param(Protocol.ICMP.equals(protocol) ? "icmpcode" : "endport", String.valueOf(ports[1])),
+                                new Param("protocol", protocol.name())
+                        ));
+                    }
+                }
+            }
+            catch( CloudException e ) {
+                // still wait for what was started so the index reflects it
+                failure = e;
+            }
+            CloudException failed = awaitRuleJobs(firewallId, jobs);
+
+            if( failure == null ) {
+                failure = failed;
+            }
+            if( failure != null ) {
+                // without the new rules in place, revoking the old ones could drop traffic that should be allowed
+                index.invalidate(firewallId);
+                throw failure;
+            }
+            jobs.clear();
+            List<String> revoked = new ArrayList<String>();
+
+            try {
+                for( FirewallRule rule : revocations ) {
+                    jobs.add(new CSMethod(getProvider()).get(Direction.EGRESS.equals(rule.getDirection()) ? REVOKE_SECURITY_GROUP_EGRESS : REVOKE_SECURITY_GROUP_INGRESS, new Param("id", rule.getProviderRuleId())));
+                    revoked.add(rule.getProviderRuleId());
+                }
+            }
+            catch( CloudException e ) {
+                failure = e;
+            }
+            failed = awaitRuleJobs(firewallId, jobs);
+            if( failure == null ) {
+                failure = failed;
+            }
+            if( failure == null ) {
+                for( String ruleId : revoked ) {
+                    index.remove(ruleId);
+                }
+                return;
+            }
+            index.invalidate(firewallId);
+            throw failure;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Waits for the rule jobs of one phase of a reconcile, adding the rules they create to the index.
+     * @param firewallId the security group being reconciled
+     * @param jobs the responses holding the job ids
+     * @return the first failure, or <code>null</code> if every job succeeded
+     * @throws InternalException interrupted while waiting; the index of the group is invalidated
+     */
+    private @Nullable CloudException awaitRuleJobs(@Nonnull final String firewallId, @Nonnull List<Document> jobs) throws InternalException {
+        final SecurityGroupRules index = getRuleIndex();
+        final CountDownLatch done = new CountDownLatch(jobs.size());
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        for( Document doc : jobs ) {
+            getProvider().trackJob(doc, "Reconcile rules", new CSJobTracker.Callback() {
+                public void completed(@Nonnull Document result) {
+                    for( FirewallRule rule : toRules(firewallId, result) ) {
+                        index.add(firewallId, rule);
+                    }
+                    done.countDown();
+                }
+
+                public void failed(@Nonnull Throwable cause) {
+                    failures.add(cause);
+                    done.countDown();
+                }
+            });
+        }
+        try {
+            done.await();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            index.invalidate(firewallId);
+            throw new InternalException("Interrupted while reconciling " + firewallId);
+        }
+        if( failures.isEmpty() ) {
+            return null;
+        }
+        Throwable t = failures.get(0);
+
+        return (t instanceof CloudException ? (CloudException)t : new CloudException(t));
+    }
+
+    static private @Nonnull String getRemoteCidr(@Nonnull Direction direction, @Nonnull RuleTarget source, @Nonnull RuleTarget destination) throws OperationNotSupportedException {
+        RuleTarget remote = (Direction.INGRESS.equals(direction) ? source : destination);
+        String cidr = remote.getCidr();
+
+        if( !RuleTargetType.CIDR.equals(remote.getRuleTargetType()) || cidr == null ) {
+            throw new OperationNotSupportedException("Security group sources & destinations are not supported");
+        }
+        return toCidr(cidr);
+    }
+
+    static private @Nonnull String toCidr(@Nonnull String cidr) {
+        cidr = cidr.trim().toLowerCase(Locale.ENGLISH);
+        return (cidr.indexOf('/') == -1 ? cidr + "/32" : cidr);
+    }
+
+    static private int indexOf(@Nonnull List<int[]> ranges, @Nonnull int[] ports) {
+        for( int i=0; i<ranges.size(); i++ ) {
+            if( ranges.get(i)[0] == ports[0] && ranges.get(i)[1] == ports[1] ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param merged sorted, non-overlapping port ranges
+     * @return true if one of the ranges contains all ports of the given range
+     */
+    static boolean isCovered(@Nonnull List<int[]> merged, @Nonnull int[] ports) {
+        int begin = Math.min(ports[0], ports[1]), end = Math.max(ports[0], ports[1]);
+
+        for( int[] range : merged ) {
+            if( range[0] <= begin && end <= range[1] ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param from sorted, non-overlapping port ranges
+     * @param minus sorted, non-overlapping port ranges
+     * @return the ports of <code>from</code> that are not in <code>minus</code>, as ranges
+     */
+    static @Nonnull List<int[]> subtractRanges(@Nonnull List<int[]> from, @Nonnull List<int[]> minus) {
+        List<int[]> remaining = new ArrayList<int[]>();
+
+        for( int[] range : from ) {
+            int begin = range[0];
+
+            for( int[] m : minus ) {
+                if( m[1] < begin || m[0] > range[1] ) {
+                    continue;
+                }
+                if( m[0] > begin ) {
+                    remaining.add(new int[] { begin, m[0] - 1 });
+                }
+                begin = m[1] + 1;
+            }
+            if( begin <= range[1] ) {
+                remaining.add(new int[] { begin, range[1] });
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Merges overlapping and adjacent port ranges. Ranges meaning "all ports" (negative ports) are kept as they are.
+     */
+    static @Nonnull List<int[]> mergeRanges(@Nonnull List<int[]> ranges) {
+        List<int[]> sorted = new ArrayList<int[]>();
+        List<int[]> merged = new ArrayList<int[]>();
+
+        for( int[] range : ranges ) {
+            if( range[0] < 0 || range[1] < 0 ) {
+                merged.add(range);
+            }
+            else {
+                sorted.add(new int[] { Math.min(range[0], range[1]), Math.max(range[0], range[1]) });
+            }
+        }
+        Collections.sort(sorted, new Comparator<int[]>() {
+            public int compare(int[] a, int[] b) {
+                return (a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1));
+            }
+        });
+        int[] last = null;
+
+        for( int[] range : sorted ) {
+            if( last != null && range[0] <= last[1] + 1 ) {
+                last[1] = Math.max(last[1], range[1]);
+            }
+            else {
+                last = range;
+                merged.add(last);
+            }
+        }
+        return merged;
+    }
+
     @Override
     public void delete(@Nonnull String firewallId) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Firewall.delete");
@@ -234,6 +626,12 @@ public class SecurityGroup extends AbstractFirewallSupport<CSCloud> {
                 // ignore
             }
             new CSMethod(getProvider()).get(DELETE_SECURITY_GROUP, new Param("id", firewallId));
+            getNameIndex().remove(firewallId);
+            CSInventory inventory = getProvider().getInventory();
+
+            if( inventory != null ) {
+                inventory.removeFirewall(firewallId);
+            }
         }
         finally {
             APITrace.end();
@@ -251,6 +649,87 @@ public class SecurityGroup extends AbstractFirewallSupport<CSCloud> {
         return capabilities;
     }
 
+    /**
+     * Finds a security group by name, e.g. to resolve the <code>default</code> group when launching. The names are
+     * indexed per account from a listing that reads only ids and names; a name missing from the index is looked up
+     * on its own with <code>securitygroupname</code> before it is considered absent.
+     * @param name the name of the group
+     * @return the id of the group, or <code>null</code> if the account has no group of that name
+     * @throws InternalException an error occurred locally while looking up the group
+     * @throws CloudException an error occurred with the cloud provider while looking up the group
+     */
+    public @Nullable String getFirewallIdByName(@Nonnull String name) throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "Firewall.getFirewallIdByName");
+        try {
+            SecurityGroupNames index = getNameIndex();
+
+            if( !index.isLoaded(NAME_TTL) ) {
+                final Map<String,String> groups = new HashMap<String,String>();
+
+                new CSPager<String[]>(getProvider(), LIST_SECURITY_GROUPS, "securitygroup", new CSPager.Converter<String[]>() {
+                    public @Nullable String[] convert(@Nonnull Node node) {
+                        return toIdAndName(node);
+                    }
+                }).forEach(new CSPager.Consumer<String[]>() {
+                    public void accept(@Nonnull String[] group) {
+                        groups.put(group[1], group[0]);
+                    }
+                });
+                index.load(groups);
+                return index.getId(name);
+            }
+            String id = index.getId(name);
+
+            if( id != null ) {
+                return id;
+            }
+            try {
+                NodeList matches = new CSMethod(getProvider()).get(LIST_SECURITY_GROUPS, new Param("securitygroupname", name)).getElementsByTagName("securitygroup");
+
+                for( int i=0; i<matches.getLength(); i++ ) {
+                    String[] group = toIdAndName(matches.item(i));
+
+                    if( group != null && group[1].equalsIgnoreCase(name) ) {
+                        index.put(group[1], group[0]);
+                        return group[0];
+                    }
+                }
+            }
+            catch( CSException e ) {
+                if( e.getHttpCode() != 431 ) {
+                    throw e;
+                }
+            }
+            return null;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    static private @Nullable String[] toIdAndName(@Nullable Node node) {
+        if( node == null ) {
+            return null;
+        }
+        NodeList attributes = node.getChildNodes();
+        String id = null, name = null;
+
+        for( int i=0; i<attributes.getLength(); i++ ) {
+            Node attribute = attributes.item(i);
+
+            if( attribute.getChildNodes().getLength() == 0 ) {
+                continue;
+            }
+            if( attribute.getNodeName().equalsIgnoreCase("id") ) {
+                id = attribute.getFirstChild().getNodeValue();
+            }
+            else if( attribute.getNodeName().equalsIgnoreCase("name") ) {
+                name = attribute.getFirstChild().getNodeValue();
+            }
+        }
+        return (id == null || name == null ? null : new String[] { id, name });
+    }
+
     @Override
     public @Nullable Firewall getFirewall(@Nonnull String firewallId) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Firewall.getFirewall");
@@ -313,37 +792,45 @@ public class SecurityGroup extends AbstractFirewallSupport<CSCloud> {
                     String nextPage = String.valueOf(page);
                     doc = method.get(LIST_SECURITY_GROUPS, new Param("id", firewallId), new Param("pagesize", "500"), new Param("page", nextPage));
                 }
-                NodeList matches = doc.getElementsByTagName("ingressrule");
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    Node node = matches.item(i);
+                rules.addAll(toRules(firewallId, doc));
+            }
+            getRuleIndex().load(firewallId, rules);
+            return rules;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-                    if( node != null ) {
-                        FirewallRule rule = toRule(firewallId, node, Direction.INGRESS);
+    private @Nonnull List<FirewallRule> toRules(@Nonnull String firewallId, @Nonnull Document doc) {
+        List<FirewallRule> rules = new ArrayList<FirewallRule>();
+        NodeList matches = doc.getElementsByTagName("ingressrule");
 
-                        if( rule != null ) {
-                            rules.add(rule);
-                        }
-                    }
+        for( int i=0; i<matches.getLength(); i++ ) {
+            Node node = matches.item(i);
+
+            if( node != null ) {
+                FirewallRule rule = toRule(firewallId, node, Direction.INGRESS);
+
+                if( rule != null ) {
+                    rules.add(rule);
                 }
+            }
+        }
 
-                matches = doc.getElementsByTagName("egressrule");
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    Node node = matches.item(i);
+        matches = doc.getElementsByTagName("egressrule");
+        for( int i=0; i<matches.getLength(); i++ ) {
+            Node node = matches.item(i);
 
-                    if( node != null ) {
-                        FirewallRule rule = toRule(firewallId, node, Direction.EGRESS);
+            if( node != null ) {
+                FirewallRule rule = toRule(firewallId, node, Direction.EGRESS);
 
-                        if( rule != null ) {
-                            rules.add(rule);
-                        }
-                    }
+                if( rule != null ) {
+                    rules.add(rule);
                 }
             }
-            return rules;
-        }
-        finally {
-            APITrace.end();
         }
+        return rules;
     }
 
     public boolean isSubscribed() throws CloudException, InternalException {
@@ -364,89 +851,45 @@ public class SecurityGroup extends AbstractFirewallSupport<CSCloud> {
     public @Nonnull Collection<Firewall> list() throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Firewall.list");
         try {
-            CSMethod method = new CSMethod(getProvider());
-            Document doc = method.get(LIST_SECURITY_GROUPS);
-            final List<Firewall> firewalls = new ArrayList<Firewall>();
-
-            int numPages = 1;
-            NodeList nodes = doc.getElementsByTagName("count");
-            Node n = nodes.item(0);
-            if (n != null) {
-                String value = n.getFirstChild().getNodeValue().trim();
-                int count = Integer.parseInt(value);
-                numPages = count/500;
-                int remainder = count % 500;
-                if (remainder > 0) {
-                    numPages++;
-                }
-            }
-
-            for (int page = 1; page <= numPages; page++) {
-                if (page > 1) {
-                    String nextPage = String.valueOf(page);
-                    doc = method.get(LIST_SECURITY_GROUPS, new Param("pagesize", "500"), new Param("page", nextPage));
-                }
-                NodeList matches = doc.getElementsByTagName("securitygroup");
-
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    Node node = matches.item(i);
-
-                    if( node != null ) {
-                        Firewall fw = toFirewall(node);
+            return getFirewallPager().list();
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-                        if( fw != null ) {
-                            firewalls.add(fw);
-                        }
-                    }
-                }
-            }
-            return firewalls;
+    /**
+     * Lists the security groups on the provider's executor, with the pages fetched in parallel, so that the listing
+     * can overlap other work.
+     * @return a cancellable future holding the security groups
+     */
+    public @Nonnull Future<Iterable<Firewall>> listConcurrently() {
+        APITrace.begin(getProvider(), "Firewall.listConcurrently");
+        try {
+            return getFirewallPager().listConcurrently();
         }
         finally {
             APITrace.end();
         }
     }
 
+    private @Nonnull CSPager<Firewall> getFirewallPager() {
+        return new CSPager<Firewall>(getProvider(), LIST_SECURITY_GROUPS, "securitygroup", new CSPager.Converter<Firewall>() {
+            public @Nullable Firewall convert(@Nonnull Node node) throws CloudException, InternalException {
+                return toFirewall(node);
+            }
+        });
+    }
+
     @Override
     public @Nonnull Iterable<ResourceStatus> listFirewallStatus() throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Firewall.listFirewallStatus");
         try {
-            final CSMethod method = new CSMethod(getProvider());
-            Document doc = method.get(LIST_SECURITY_GROUPS);
-            final List<ResourceStatus> firewalls = new ArrayList<ResourceStatus>();
-
-            int numPages = 1;
-            NodeList nodes = doc.getElementsByTagName("count");
-            Node n = nodes.item(0);
-            if (n != null) {
-                String value = n.getFirstChild().getNodeValue().trim();
-                int count = Integer.parseInt(value);
-                numPages = count/500;
-                int remainder = count % 500;
-                if (remainder > 0) {
-                    numPages++;
+            return new CSPager<ResourceStatus>(getProvider(), LIST_SECURITY_GROUPS, "securitygroup", new CSPager.Converter<ResourceStatus>() {
+                public @Nullable ResourceStatus convert(@Nonnull Node node) throws CloudException, InternalException {
+                    return toStatus(node);
                 }
-            }
-
-            for (int page = 1; page <= numPages; page++) {
-                if (page > 1) {
-                    String nextPage = String.valueOf(page);
-                    doc = method.get(LIST_SECURITY_GROUPS, new Param("pagesize", "500"), new Param("page", nextPage));
-                }
-                NodeList matches = doc.getElementsByTagName("securitygroup");
-
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    Node node = matches.item(i);
-
-                    if( node != null ) {
-                        ResourceStatus fw = toStatus(node);
-                        if( fw != null ) {
-                            firewalls.add(fw);
-                        }
-                    }
-                }
-            }
-            return firewalls;
+            }).list();
         }
         finally {
             APITrace.end();
@@ -457,19 +900,23 @@ public class SecurityGroup extends AbstractFirewallSupport<CSCloud> {
     public void revoke(@Nonnull String providerFirewallRuleId) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Firewall.revoke");
         try {
-            FirewallRule target = null;
+            SecurityGroupRules index = getRuleIndex();
+            FirewallRule target = index.getRule(providerFirewallRuleId, getRuleTtl());
 
-            for( Firewall fw : list() ) {
-                //noinspection ConstantConditions
-                for( FirewallRule rule : getRules(fw.getProviderFirewallId()) ) {
-                    if( rule.getProviderRuleId().equals(providerFirewallRuleId) ) {
-                        target = rule;
+            if( target == null ) {
+                // not in a loaded group, so look through all of them; this loads them into the index as well
+                for( Firewall fw : list() ) {
+                    //noinspection ConstantConditions
+                    for( FirewallRule rule : getRules(fw.getProviderFirewallId()) ) {
+                        if( rule.getProviderRuleId().equals(providerFirewallRuleId) ) {
+                            target = rule;
+                            break;
+                        }
+                    }
+                    if( target != null ) {
                         break;
                     }
                 }
-                if( target != null ) {
-                    break;
-                }
             }
             if( target == null ) {
                 return;
@@ -478,7 +925,14 @@ public class SecurityGroup extends AbstractFirewallSupport<CSCloud> {
             if( Direction.EGRESS.equals(target.getDirection()) ) {
                 command = REVOKE_SECURITY_GROUP_EGRESS;
             }
-            new CSMethod(getProvider()).get(command, new Param("id", providerFirewallRuleId));
+            try {
+                new CSMethod(getProvider()).get(command, new Param("id", providerFirewallRuleId));
+            }
+            catch( CloudException e ) {
+                index.invalidate(target.getFirewallId());
+                throw e;
+            }
+            index.remove(providerFirewallRuleId);
         }
         finally {
             APITrace.end();
@@ -488,47 +942,24 @@ public class SecurityGroup extends AbstractFirewallSupport<CSCloud> {
     public @Nonnull Iterable<String> listFirewallsForVM(@Nonnull String vmId) throws CloudException, InternalException {
         APITrace.begin(getProvider(), "Firewall.listFirewallsForVM");
         try {
-            final CSMethod method = new CSMethod(getProvider());
-            Document doc = method.get(LIST_SECURITY_GROUPS, new Param("virtualmachineId", vmId));
-            final List<String> firewalls = new ArrayList<String>();
-
-            int numPages = 1;
-            NodeList nodes = doc.getElementsByTagName("count");
-            Node n = nodes.item(0);
-            if (n != null) {
-                String value = n.getFirstChild().getNodeValue().trim();
-                int count = Integer.parseInt(value);
-                numPages = count/500;
-                int remainder = count % 500;
-                if (remainder > 0) {
-                    numPages++;
-                }
-            }
-
-            for (int page = 1; page <= numPages; page++) {
-                if (page > 1) {
-                    String nextPage = String.valueOf(page);
-                    doc = method.get(LIST_SECURITY_GROUPS,
-                            new Param("virtualmachineId", vmId),
-                            new Param("pagesize", "500"),
-                            new Param("page", nextPage)
-                    );
-                }
-                NodeList matches = doc.getElementsByTagName("securitygroup");
+            CSInventory inventory = getProvider().getInventory();
 
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    Node node = matches.item(i);
+            if( inventory != null && inventory.isFresh() ) {
+                VirtualMachine vm = inventory.getVirtualMachine(vmId);
 
-                    if( node != null ) {
-                        Firewall fw = toFirewall(node);
+                if( vm != null ) {
+                    String[] ids = vm.getProviderFirewallIds();
 
-                        if( fw != null ) {
-                            firewalls.add(fw.getProviderFirewallId());
-                        }
-                    }
+                    return (ids == null ? Collections.<String>emptyList() : Arrays.asList(ids));
                 }
             }
-            return firewalls;
+            return new CSPager<String>(getProvider(), LIST_SECURITY_GROUPS, "securitygroup", new CSPager.Converter<String>() {
+                public @Nullable String convert(@Nonnull Node node) throws CloudException, InternalException {
+                    Firewall fw = toFirewall(node);
+
+                    return (fw == null ? null : fw.getProviderFirewallId());
+                }
+            }, new Param("virtualmachineId", vmId)).list();
         }
         finally {
             APITrace.end();
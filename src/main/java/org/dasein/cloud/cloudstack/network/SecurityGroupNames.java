@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack.network;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The ids of the security groups of one account by name, so that a group such as <code>default</code> can be found
+ * without listing and converting every group of the account. CloudStack security group names are unique within an
+ * account. The index is filled by one listing, kept current from the provider's own create and delete calls, and
+ * filled again once older than the TTL.
+ */
+class SecurityGroupNames {
+    static private final ConcurrentHashMap<String,SecurityGroupNames> accounts = new ConcurrentHashMap<String,SecurityGroupNames>();
+
+    /**
+     * @param account identifies the cloud and account, e.g. endpoint and account number
+     * @return the name index of the account
+     */
+    static @Nonnull SecurityGroupNames getInstance(@Nonnull String account) {
+        SecurityGroupNames names = accounts.get(account);
+
+        if( names == null ) {
+            SecurityGroupNames created = new SecurityGroupNames();
+
+            names = accounts.putIfAbsent(account, created);
+            if( names == null ) {
+                names = created;
+            }
+        }
+        return names;
+    }
+
+    static private @Nonnull String toKey(@Nonnull String name) {
+        return name.toLowerCase(Locale.ENGLISH);
+    }
+
+    private final Map<String,String> ids      = new HashMap<String,String>();
+    private long                     loadedAt = -1L;
+
+    synchronized boolean isLoaded(long ttl) {
+        return (loadedAt > -1L && System.currentTimeMillis() - loadedAt <= ttl);
+    }
+
+    /**
+     * @return the id of the named group, or <code>null</code> if it is not indexed
+     */
+    synchronized @Nullable String getId(@Nonnull String name) {
+        return ids.get(toKey(name));
+    }
+
+    /**
+     * Replaces the index with a full listing.
+     * @param groups the ids of all groups of the account by name
+     */
+    synchronized void load(@Nonnull Map<String,String> groups) {
+        ids.clear();
+        for( Map.Entry<String,String> entry : groups.entrySet() ) {
+            ids.put(toKey(entry.getKey()), entry.getValue());
+        }
+        loadedAt = System.currentTimeMillis();
+    }
+
+    synchronized void put(@Nonnull String name, @Nonnull String firewallId) {
+        ids.put(toKey(name), firewallId);
+    }
+
+    synchronized void remove(@Nonnull String firewallId) {
+        Iterator<String> it = ids.values().iterator();
+
+        while( it.hasNext() ) {
+            if( it.next().equals(firewallId) ) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack.network;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.network.Direction;
+import org.dasein.cloud.network.FirewallRule;
+import org.dasein.cloud.network.Protocol;
+import org.dasein.cloud.network.RuleTarget;
+import org.dasein.cloud.network.RuleTargetType;
+
+/**
+ * The rules of the security groups of one account, indexed so that a rule id can be resolved from its direction,
+ * protocol, CIDR and port range without listing the group again. A group's rules are loaded the first time they are
+ * needed and then kept current from the provider's own authorize and revoke calls; they are reloaded once older than
+ * the TTL or after a call on the group fails, since the group may then have changed in ways the index did not see.
+ */
+class SecurityGroupRules {
+    static private final ConcurrentHashMap<String,SecurityGroupRules> accounts = new ConcurrentHashMap<String,SecurityGroupRules>();
+
+    /**
+     * @param account identifies the cloud and account, e.g. endpoint and account number
+     * @return the rule index of the account
+     */
+    static @Nonnull SecurityGroupRules getInstance(@Nonnull String account) {
+        SecurityGroupRules rules = accounts.get(account);
+
+        if( rules == null ) {
+            SecurityGroupRules created = new SecurityGroupRules();
+
+            rules = accounts.putIfAbsent(account, created);
+            if( rules == null ) {
+                rules = created;
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * Builds the lookup key of a rule. CloudStack rules always apply to the group itself, so only the remote side,
+     * the source of an ingress rule or the destination of an egress rule, tells rules apart.
+     */
+    static @Nonnull String toKey(@Nonnull Direction direction, @Nonnull Protocol protocol, @Nullable String cidr, int beginPort, int endPort) {
+        if( cidr != null && cidr.indexOf('/') == -1 ) {
+            cidr = cidr + "/32";
+        }
+        return direction.name() + "|" + protocol.name() + "|" + (cidr == null ? "" : cidr.toLowerCase(Locale.ENGLISH)) + "|" + beginPort + "|" + endPort;
+    }
+
+    static @Nonnull String toKey(@Nonnull FirewallRule rule) {
+        RuleTarget remote = (Direction.INGRESS.equals(rule.getDirection()) ? rule.getSourceEndpoint() : rule.getDestinationEndpoint());
+        String cidr = (RuleTargetType.CIDR.equals(remote.getRuleTargetType()) ? remote.getCidr() : remote.getProviderFirewallId());
+
+        return toKey(rule.getDirection(), rule.getProtocol(), cidr, rule.getStartPort(), rule.getEndPort());
+    }
+
+    static private class Group {
+        final long                     loadedAt = System.currentTimeMillis();
+        final Map<String,FirewallRule> byKey    = new HashMap<String,FirewallRule>();
+        final Map<String,FirewallRule> byId     = new HashMap<String,FirewallRule>();
+    }
+
+    private final Map<String,Group>  groups  = new HashMap<String,Group>();
+    /**
+     * The group of each indexed rule.
+     */
+    private final Map<String,String> ruleIds = new HashMap<String,String>();
+
+    /**
+     * @return the id of the matching rule, or <code>null</code> if there is none or the group needs to be (re)loaded
+     */
+    synchronized @Nullable String findRuleId(@Nonnull String firewallId, @Nonnull String key, long ttl) {
+        Group group = getGroup(firewallId, ttl);
+        FirewallRule rule = (group == null ? null : group.byKey.get(key));
+
+        return (rule == null ? null : rule.getProviderRuleId());
+    }
+
+    synchronized boolean isLoaded(@Nonnull String firewallId, long ttl) {
+        return (getGroup(firewallId, ttl) != null);
+    }
+
+    /**
+     * @return the rule with the id, if it is in a loaded group
+     */
+    synchronized @Nullable FirewallRule getRule(@Nonnull String ruleId, long ttl) {
+        String firewallId = ruleIds.get(ruleId);
+        Group group = (firewallId == null ? null : getGroup(firewallId, ttl));
+
+        return (group == null ? null : group.byId.get(ruleId));
+    }
+
+    /**
+     * Replaces the indexed rules of the group with a full listing.
+     */
+    synchronized void load(@Nonnull String firewallId, @Nonnull Collection<FirewallRule> rules) {
+        invalidate(firewallId);
+        Group group = new Group();
+
+        groups.put(firewallId, group);
+        for( FirewallRule rule : rules ) {
+            add(group, firewallId, rule);
+        }
+    }
+
+    /**
+     * Adds a rule reported by an authorize call. Ignored if the group is not loaded, as it will be listed in full.
+     */
+    synchronized void add(@Nonnull String firewallId, @Nonnull FirewallRule rule) {
+        Group group = groups.get(firewallId);
+
+        if( group != null ) {
+            add(group, firewallId, rule);
+        }
+    }
+
+    private void add(@Nonnull Group group, @Nonnull String firewallId, @Nonnull FirewallRule rule) {
+        if( rule.getProviderRuleId() != null ) {
+            group.byKey.put(toKey(rule), rule);
+            group.byId.put(rule.getProviderRuleId(), rule);
+            ruleIds.put(rule.getProviderRuleId(), firewallId);
+        }
+    }
+
+    synchronized void remove(@Nonnull String ruleId) {
+        String firewallId = ruleIds.remove(ruleId);
+        Group group = (firewallId == null ? null : groups.get(firewallId));
+
+        FirewallRule rule = (group == null ? null : group.byId.remove(ruleId));
+
+        if( rule != null ) {
+            group.byKey.remove(toKey(rule));
+        }
+    }
+
+    /**
+     * Forgets the rules of the group so the next lookup lists them again.
+     */
+    synchronized void invalidate(@Nonnull String firewallId) {
+        Group group = groups.remove(firewallId);
+
+        if( group != null ) {
+            for( String ruleId : group.byId.keySet() ) {
+                ruleIds.remove(ruleId);
+            }
+        }
+    }
+
+    private @Nullable Group getGroup(@Nonnull String firewallId, long ttl) {
+        Group group = groups.get(firewallId);
+
+        if( group != null && System.currentTimeMillis() - group.loadedAt > ttl ) {
+            invalidate(firewallId);
+            return null;
+        }
+        return group;
+    }
+}
@@ -0,0 +1,316 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Decodes the same canned CloudStack responses in XML and in JSON and checks both produce the same items, so the
+ * <code>toXXX(Node)</code> converters see identical input whichever format the provider is configured for.
+ */
+public class CSJsonDecoderTest {
+    static private final String DISPLAY_NAME = "Tom & Jerry's \"web\" <tier> \u00e9t\u00e9 C:\\dir/x\nline2";
+
+    static private final String VMS_XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<listvirtualmachinesresponse cloud-stack-version=\"4.2.1\">"
+            + "<count>2</count>"
+            + "<virtualmachine>"
+            + "<id>f3b2a0a4-1c7e-4d2f-9b2e-5a1f0c3d4e01</id>"
+            + "<name>web-1</name>"
+            + "<displayname>Tom &amp; Jerry's \"web\" &lt;tier&gt; \u00e9t\u00e9 C:\\dir/x\nline2</displayname>"
+            + "<state>Running</state>"
+            + "<cpunumber>2</cpunumber>"
+            + "<memory>2048</memory>"
+            + "<haenable>false</haenable>"
+            + "<nic>"
+            + "<id>0c7e2a4b-0001</id>"
+            + "<ipaddress>10.1.1.5</ipaddress>"
+            + "<isdefault>true</isdefault>"
+            + "</nic>"
+            + "<tags>"
+            + "<key>env</key>"
+            + "<value>prod</value>"
+            + "<resourcetype>UserVm</resourcetype>"
+            + "</tags>"
+            + "</virtualmachine>"
+            + "<virtualmachine>"
+            + "<id>f3b2a0a4-1c7e-4d2f-9b2e-5a1f0c3d4e02</id>"
+            + "<name>db-1</name>"
+            + "<state>Stopped</state>"
+            + "<cpunumber>4</cpunumber>"
+            + "<memory>8192</memory>"
+            + "<haenable>true</haenable>"
+            + "<nic>"
+            + "<id>0c7e2a4b-0002</id>"
+            + "<ipaddress>10.1.1.6</ipaddress>"
+            + "<isdefault>true</isdefault>"
+            + "</nic>"
+            + "<nic>"
+            + "<id>0c7e2a4b-0003</id>"
+            + "<ipaddress>192.168.0.6</ipaddress>"
+            + "<isdefault>false</isdefault>"
+            + "</nic>"
+            + "<tags>"
+            + "<key>env</key>"
+            + "<value>prod</value>"
+            + "<resourcetype>UserVm</resourcetype>"
+            + "</tags>"
+            + "<tags>"
+            + "<key>role</key>"
+            + "<value>db/primary</value>"
+            + "<resourcetype>UserVm</resourcetype>"
+            + "</tags>"
+            + "</virtualmachine>"
+            + "</listvirtualmachinesresponse>";
+
+    static private final String VMS_JSON = "{ \"listvirtualmachinesresponse\" : { \"count\":2 ,\"virtualmachine\" : [ "
+            + "{\"id\":\"f3b2a0a4-1c7e-4d2f-9b2e-5a1f0c3d4e01\",\"name\":\"web-1\","
+            + "\"displayname\":\"Tom & Jerry's \\\"web\\\" <tier> \\u00e9t\\u00e9 C:\\\\dir\\/x\\nline2\","
+            + "\"state\":\"Running\",\"cpunumber\":2,\"memory\":2048,\"haenable\":false,\"group\":null,"
+            + "\"nic\":[{\"id\":\"0c7e2a4b-0001\",\"ipaddress\":\"10.1.1.5\",\"isdefault\":true}],"
+            + "\"tags\":[{\"key\":\"env\",\"value\":\"prod\",\"resourcetype\":\"UserVm\"}],"
+            + "\"securitygroup\":[]}, "
+            + "{\"id\":\"f3b2a0a4-1c7e-4d2f-9b2e-5a1f0c3d4e02\",\"name\":\"db-1\","
+            + "\"state\":\"Stopped\",\"cpunumber\":4,\"memory\":8192,\"haenable\":true,"
+            + "\"nic\":[{\"id\":\"0c7e2a4b-0002\",\"ipaddress\":\"10.1.1.6\",\"isdefault\":true},"
+            + "{\"id\":\"0c7e2a4b-0003\",\"ipaddress\":\"192.168.0.6\",\"isdefault\":false}],"
+            + "\"tags\":[{\"key\":\"env\",\"value\":\"prod\",\"resourcetype\":\"UserVm\"},"
+            + "{\"key\":\"role\",\"value\":\"db\\/primary\",\"resourcetype\":\"UserVm\"}]} ] } }";
+
+    static private final String VOLUMES_XML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<listvolumesresponse cloud-stack-version=\"4.2.1\">"
+            + "<count>1</count>"
+            + "<volume>"
+            + "<id>7d1e5b8c-2a3f-4e6d-8c9b-0a1b2c3d4e5f</id>"
+            + "<name>ROOT-42</name>"
+            + "<zoneid>1a2b3c4d-0000</zoneid>"
+            + "<type>ROOT</type>"
+            + "<deviceid>0</deviceid>"
+            + "<virtualmachineid>f3b2a0a4-1c7e-4d2f-9b2e-5a1f0c3d4e01</virtualmachineid>"
+            + "<size>21474836480</size>"
+            + "<created>2015-03-02T10:15:30+0000</created>"
+            + "<state>Ready</state>"
+            + "<tags>"
+            + "<key>backup</key>"
+            + "<value>nightly</value>"
+            + "<resourcetype>Volume</resourcetype>"
+            + "</tags>"
+            + "</volume>"
+            + "</listvolumesresponse>";
+
+    static private final String VOLUMES_JSON = "{ \"listvolumesresponse\" : { \"count\":1 ,\"volume\" : [ "
+            + "{\"id\":\"7d1e5b8c-2a3f-4e6d-8c9b-0a1b2c3d4e5f\",\"name\":\"ROOT-42\",\"zoneid\":\"1a2b3c4d-0000\","
+            + "\"type\":\"ROOT\",\"deviceid\":0,\"virtualmachineid\":\"f3b2a0a4-1c7e-4d2f-9b2e-5a1f0c3d4e01\","
+            + "\"size\":21474836480,\"created\":\"2015-03-02T10:15:30+0000\",\"state\":\"Ready\","
+            + "\"tags\":[{\"key\":\"backup\",\"value\":\"nightly\",\"resourcetype\":\"Volume\"}]} ] } }";
+
+    static private class Collector implements CSMethod.ElementHandler {
+        List<Node> items = new ArrayList<Node>();
+
+        @Override
+        public void handle(@Nonnull Node node) throws CloudException, InternalException {
+            items.add(node);
+        }
+    }
+
+    /**
+     * Renders an element as a canonical string of its name, its text and its child elements in document order.
+     * Attributes are left out since the JSON format has no equivalent for them.
+     */
+    static private @Nonnull String describe(@Nonnull Node node) {
+        StringBuilder str = new StringBuilder();
+        NodeList children = node.getChildNodes();
+        boolean nested = false;
+
+        str.append(node.getNodeName());
+        for( int i=0; i<children.getLength(); i++ ) {
+            if( children.item(i).getNodeType() == Node.ELEMENT_NODE ) {
+                nested = true;
+                break;
+            }
+        }
+        if( nested ) {
+            str.append("{");
+            for( int i=0; i<children.getLength(); i++ ) {
+                Node child = children.item(i);
+
+                if( child.getNodeType() == Node.ELEMENT_NODE ) {
+                    str.append(describe(child)).append(";");
+                }
+            }
+            str.append("}");
+        }
+        else if( children.getLength() > 0 ) {
+            // the converters read getFirstChild().getNodeValue(), so the text has to arrive as a single node
+            assertEquals("Text of " + node.getNodeName() + " is split", 1, children.getLength());
+            str.append("=[").append(node.getFirstChild().getNodeValue()).append("]");
+        }
+        return str.toString();
+    }
+
+    static private @Nonnull List<String> describe(@Nonnull List<Node> items) {
+        List<String> list = new ArrayList<String>();
+
+        for( Node item : items ) {
+            list.add(describe(item));
+        }
+        return list;
+    }
+
+    static private @Nonnull List<Element> children(@Nonnull Node node, @Nonnull String name) {
+        List<Element> list = new ArrayList<Element>();
+        NodeList children = node.getChildNodes();
+
+        for( int i=0; i<children.getLength(); i++ ) {
+            Node child = children.item(i);
+
+            if( child.getNodeType() == Node.ELEMENT_NODE && child.getNodeName().equals(name) ) {
+                list.add(( Element ) child);
+            }
+        }
+        return list;
+    }
+
+    static private @Nullable String text(@Nonnull Node node, @Nonnull String name) {
+        List<Element> list = children(node, name);
+
+        if( list.isEmpty() || !list.get(0).hasChildNodes() ) {
+            return null;
+        }
+        return list.get(0).getFirstChild().getNodeValue();
+    }
+
+    static private @Nonnull Collector streamXml(@Nonnull String xml, @Nonnull String elementName, int count) throws Exception {
+        Collector collector = new Collector();
+
+        assertEquals(count, CSMethod.streamResponse(200, new ByteArrayInputStream(xml.getBytes("utf-8")), elementName, collector));
+        return collector;
+    }
+
+    static private @Nonnull Collector streamJson(@Nonnull String json, @Nonnull String elementName, int count) throws Exception {
+        Collector collector = new Collector();
+
+        assertEquals(count, new CSJsonDecoder(new StringReader(json)).stream(elementName, collector));
+        return collector;
+    }
+
+    static private @Nonnull Document parseXml(@Nonnull String xml) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes("utf-8")));
+    }
+
+    static private @Nonnull Document parseJson(@Nonnull String json) throws Exception {
+        return new CSJsonDecoder(new StringReader(json)).toDocument();
+    }
+
+    @Test
+    public void streamedVirtualMachinesMatch() throws Exception {
+        List<String> xml = describe(streamXml(VMS_XML, "virtualmachine", 2).items);
+        List<String> json = describe(streamJson(VMS_JSON, "virtualmachine", 2).items);
+
+        assertEquals(2, xml.size());
+        assertEquals(xml, json);
+    }
+
+    @Test
+    public void parsedVirtualMachinesMatch() throws Exception {
+        Element xml = parseXml(VMS_XML).getDocumentElement();
+        Element json = parseJson(VMS_JSON).getDocumentElement();
+
+        assertEquals("listvirtualmachinesresponse", json.getNodeName());
+        assertEquals(describe(xml), describe(json));
+    }
+
+    @Test
+    public void singleElementArraysMatch() throws Exception {
+        List<Node> xml = streamXml(VOLUMES_XML, "volume", 1).items;
+        List<Node> json = streamJson(VOLUMES_JSON, "volume", 1).items;
+
+        assertEquals(1, json.size());
+        assertEquals(describe(xml), describe(json));
+        assertEquals(describe(parseXml(VOLUMES_XML).getDocumentElement()), describe(parseJson(VOLUMES_JSON).getDocumentElement()));
+        assertEquals("21474836480", text(json.get(0), "size"));
+        assertEquals("0", text(json.get(0), "deviceid"));
+    }
+
+    @Test
+    public void nestedNicsAndTagsBecomeRepeatedElements() throws Exception {
+        List<Node> vms = streamJson(VMS_JSON, "virtualmachine", 2).items;
+        List<Element> nics = children(vms.get(1), "nic");
+        List<Element> tags = children(vms.get(1), "tags");
+
+        assertEquals(1, children(vms.get(0), "nic").size());
+        assertEquals(1, children(vms.get(0), "tags").size());
+        assertEquals(2, nics.size());
+        assertEquals("192.168.0.6", text(nics.get(1), "ipaddress"));
+        assertEquals("false", text(nics.get(1), "isdefault"));
+        assertEquals(2, tags.size());
+        assertEquals("role", text(tags.get(1), "key"));
+        assertEquals("db/primary", text(tags.get(1), "value"));
+    }
+
+    @Test
+    public void emptyArraysAndNullsAreLeftOut() throws Exception {
+        Node vm = streamJson(VMS_JSON, "virtualmachine", 2).items.get(0);
+
+        assertEquals(0, children(vm, "securitygroup").size());
+        assertEquals(0, children(vm, "group").size());
+        assertNull(text(vm, "group"));
+    }
+
+    @Test
+    public void escapedStringsDecodeAlike() throws Exception {
+        Node xml = streamXml(VMS_XML, "virtualmachine", 2).items.get(0);
+        Node json = streamJson(VMS_JSON, "virtualmachine", 2).items.get(0);
+
+        assertEquals(DISPLAY_NAME, text(xml, "displayname"));
+        assertEquals(DISPLAY_NAME, text(json, "displayname"));
+    }
+
+    @Test
+    public void countFallsBackToTheItemsHandled() throws Exception {
+        String json = "{ \"listvolumesresponse\" : { \"volume\" : [ {\"id\":\"a\"}, {\"id\":\"b\"} ] } }";
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><listvolumesresponse><volume><id>a</id></volume><volume><id>b</id></volume></listvolumesresponse>";
+
+        assertEquals(describe(streamXml(xml, "volume", 2).items), describe(streamJson(json, "volume", 2).items));
+    }
+
+    @Test
+    public void emptyResponsesMatch() throws Exception {
+        assertEquals(0, streamXml("<?xml version=\"1.0\" encoding=\"UTF-8\"?><listvolumesresponse/>", "volume", 0).items.size());
+        assertEquals(0, streamJson("{ \"listvolumesresponse\" : { } }", "volume", 0).items.size());
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the port range arithmetic {@link SecurityGroup#reconcile} uses to decide which live rules it keeps, which it
+ * revokes and which ports it authorizes.
+ */
+public class SecurityGroupRangesTest {
+    static private List<int[]> ranges(int ... bounds) {
+        List<int[]> list = new ArrayList<int[]>();
+
+        for( int i=0; i<bounds.length; i+=2 ) {
+            list.add(new int[] { bounds[i], bounds[i + 1] });
+        }
+        return list;
+    }
+
+    static private String toString(List<int[]> ranges) {
+        StringBuilder str = new StringBuilder();
+
+        for( int[] range : ranges ) {
+            if( str.length() > 0 ) {
+                str.append(",");
+            }
+            str.append(range[0]).append("-").append(range[1]);
+        }
+        return str.toString();
+    }
+
+    @Test
+    public void mergeJoinsOverlappingAndAdjacentRanges() {
+        assertEquals("22-22,80-100,443-443", toString(SecurityGroup.mergeRanges(ranges(90, 100, 443, 443, 80, 90, 22, 22))));
+        assertEquals("80-100", toString(SecurityGroup.mergeRanges(ranges(80, 89, 90, 100))));
+        assertEquals("80-89,91-100", toString(SecurityGroup.mergeRanges(ranges(91, 100, 80, 89))));
+    }
+
+    @Test
+    public void mergeNormalizesReversedRanges() {
+        assertEquals("80-100", toString(SecurityGroup.mergeRanges(ranges(100, 80))));
+    }
+
+    @Test
+    public void mergeKeepsAllPortRangesAsTheyAre() {
+        assertEquals("-1--1,80-80", toString(SecurityGroup.mergeRanges(ranges(80, 80, -1, -1))));
+    }
+
+    @Test
+    public void mergeOfNothingIsEmpty() {
+        assertTrue(SecurityGroup.mergeRanges(new ArrayList<int[]>()).isEmpty());
+    }
+
+    @Test
+    public void coveredRequiresOneRangeToHoldAllPorts() {
+        List<int[]> merged = SecurityGroup.mergeRanges(ranges(80, 90, 100, 110));
+
+        assertTrue(SecurityGroup.isCovered(merged, new int[] { 80, 90 }));
+        assertTrue(SecurityGroup.isCovered(merged, new int[] { 85, 85 }));
+        assertTrue(SecurityGroup.isCovered(merged, new int[] { 110, 100 }));
+        assertFalse(SecurityGroup.isCovered(merged, new int[] { 80, 100 }));
+        assertFalse(SecurityGroup.isCovered(merged, new int[] { 91, 99 }));
+        assertFalse(SecurityGroup.isCovered(new ArrayList<int[]>(), new int[] { 80, 80 }));
+    }
+
+    @Test
+    public void narrowingARuleRevokesIt() {
+        // 80-100 is live, 80-90 is wanted: the live rule is no longer covered
+        assertFalse(SecurityGroup.isCovered(SecurityGroup.mergeRanges(ranges(80, 90)), new int[] { 80, 100 }));
+    }
+
+    @Test
+    public void rulesSplitDifferentlyAreKept() {
+        // 80-100 is wanted as one range, the live rules split it in two
+        List<int[]> allowed = SecurityGroup.mergeRanges(ranges(80, 100));
+
+        assertTrue(SecurityGroup.isCovered(allowed, new int[] { 80, 89 }));
+        assertTrue(SecurityGroup.isCovered(allowed, new int[] { 90, 100 }));
+        assertTrue(SecurityGroup.subtractRanges(allowed, SecurityGroup.mergeRanges(ranges(80, 89, 90, 100))).isEmpty());
+    }
+
+    @Test
+    public void subtractLeavesTheUncoveredPorts() {
+        List<int[]> allowed = SecurityGroup.mergeRanges(ranges(80, 100));
+
+        assertEquals("80-100", toString(SecurityGroup.subtractRanges(allowed, new ArrayList<int[]>())));
+        assertEquals("91-100", toString(SecurityGroup.subtractRanges(allowed, ranges(80, 90))));
+        assertEquals("80-89", toString(SecurityGroup.subtractRanges(allowed, ranges(90, 100))));
+        assertEquals("80-84,91-100", toString(SecurityGroup.subtractRanges(allowed, ranges(85, 90))));
+        assertEquals("80-84,91-94,99-100", toString(SecurityGroup.subtractRanges(allowed, ranges(85, 90, 95, 98))));
+        assertEquals("", toString(SecurityGroup.subtractRanges(allowed, ranges(1, 1000))));
+    }
+
+    @Test
+    public void subtractIgnoresRangesOutsideTheSource() {
+        List<int[]> allowed = SecurityGroup.mergeRanges(ranges(22, 22, 80, 100));
+
+        assertEquals("22-22,80-100", toString(SecurityGroup.subtractRanges(allowed, ranges(23, 79, 101, 200))));
+        assertEquals("22-22,80-80", toString(SecurityGroup.subtractRanges(allowed, ranges(81, 120))));
+    }
+}